@@ -0,0 +1,381 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sdrtouch.core;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SdrTcpArgumentsTest {
+    private static final String TCP = "-a 127.0.0.1 -p 1234";
+
+    private static String repeat(char c, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) builder.append(c);
+        return builder.toString();
+    }
+
+    @Test
+    public void testMaxClientsDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).getMaxClients(), equalTo(1));
+    }
+
+    @Test
+    public void testMaxClients() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -c 4").getMaxClients(), equalTo(4));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNonNumericMaxClients() {
+        SdrTcpArguments.fromString(TCP + " -c many");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoClients() {
+        SdrTcpArguments.fromString(TCP + " -c 0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyClients() {
+        SdrTcpArguments.fromString(TCP + " -c 9");
+    }
+
+    @Test
+    public void testPersistentDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).isPersistent(), equalTo(false));
+    }
+
+    @Test
+    public void testPersistent() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -k 1").isPersistent(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -k 2").isPersistent(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -k 0").isPersistent(), equalTo(false));
+    }
+
+    @Test
+    public void testZeroCopyDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).isZeroCopy(), equalTo(false));
+    }
+
+    @Test
+    public void testZeroCopy() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -z 1").isZeroCopy(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -z 0").isZeroCopy(), equalTo(false));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNonNumericZeroCopy() {
+        SdrTcpArguments.fromString(TCP + " -z yes");
+    }
+
+    @Test
+    public void testWriteBatchBytesDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).getWriteBatchBytes(), equalTo(1024 * 1024));
+    }
+
+    @Test
+    public void testWriteBatchBytes() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -w 65536").getWriteBatchBytes(), equalTo(65536));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWriteBatchBytes() {
+        SdrTcpArguments.fromString(TCP + " -w -1");
+    }
+
+    @Test
+    public void testSendZeroCopyDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).isSendZeroCopy(), equalTo(false));
+    }
+
+    @Test
+    public void testSendZeroCopy() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -Z 7").isSendZeroCopy(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -Z 0").isSendZeroCopy(), equalTo(false));
+    }
+
+    @Test
+    public void testSlowClientDefaults() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.getSlowClientPolicy(), equalTo(0));
+        assertThat(arguments.getLatencyBudgetMs(), equalTo(1000));
+    }
+
+    @Test
+    public void testSlowClientFlags() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP + " -O 2 -L 250");
+        assertThat(arguments.getSlowClientPolicy(), equalTo(2));
+        assertThat(arguments.getLatencyBudgetMs(), equalTo(250));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSlowClientPolicy() {
+        SdrTcpArguments.fromString(TCP + " -O 5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoLatencyBudget() {
+        SdrTcpArguments.fromString(TCP + " -L 0");
+    }
+
+    @Test
+    public void testUdpDefaults() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.getUdpAddress(), nullValue());
+        assertThat(arguments.getUdpPort(), equalTo(0));
+    }
+
+    @Test
+    public void testUdpFlags() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP + " -U 239.1.2.3 -u 5000");
+        assertThat(arguments.getUdpAddress(), equalTo("239.1.2.3"));
+        assertThat(arguments.getUdpPort(), equalTo(5000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUdpAddressTooLong() {
+        SdrTcpArguments.fromString(TCP + " -U " + repeat('x', 257));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNonNumericUdpPort() {
+        SdrTcpArguments.fromString(TCP + " -U 239.1.2.3 -u 5000.5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUdpPortOutOfRange() {
+        SdrTcpArguments.fromString(TCP + " -U 239.1.2.3 -u 65536");
+    }
+
+    @Test
+    public void testTcpAddress() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.isUnixSocket(), equalTo(false));
+        assertThat(arguments.getAddress(), equalTo("127.0.0.1"));
+        assertThat(arguments.getPort(), equalTo(1234));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTcpAddressNeedsPort() {
+        SdrTcpArguments.fromString("-a 127.0.0.1");
+    }
+
+    @Test
+    public void testUnixPathAddress() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString("-a unix:/data/local/tmp/rtl_tcp");
+        assertThat(arguments.isUnixSocket(), equalTo(true));
+        assertThat(arguments.getAddress(), equalTo("unix:/data/local/tmp/rtl_tcp"));
+        assertThat(arguments.getPort(), equalTo(0));
+    }
+
+    @Test
+    public void testAbstractUnixAddress() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString("-a unix:@rtl_tcp");
+        assertThat(arguments.isUnixSocket(), equalTo(true));
+        assertThat(arguments.getAddress(), equalTo("unix:@rtl_tcp"));
+        assertThat(arguments.getPort(), equalTo(0));
+    }
+
+    @Test
+    public void testUnixAddressKeepsPort() {
+        assertThat(SdrTcpArguments.fromString("-a unix:@rtl_tcp -p 1234").getPort(), equalTo(1234));
+    }
+
+    @Test
+    public void testLongestUnixPath() {
+        assertThat(SdrTcpArguments.fromString("-a unix:/" + repeat('x', 106)).isUnixSocket(), equalTo(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnixPathTooLong() {
+        SdrTcpArguments.fromString("-a unix:/" + repeat('x', 107));
+    }
+
+    @Test
+    public void testSharedRingDefault() {
+        assertThat(SdrTcpArguments.fromString("-a unix:@rtl_tcp").getSharedRingBytes(), equalTo(0));
+    }
+
+    @Test
+    public void testSharedRingOnUnixAddress() {
+        assertThat(SdrTcpArguments.fromString("-a unix:@rtl_tcp -m 4194304").getSharedRingBytes(), equalTo(4194304));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSharedRingNeedsUnixAddress() {
+        SdrTcpArguments.fromString(TCP + " -m 4194304");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSharedRingTooLarge() {
+        SdrTcpArguments.fromString("-a unix:@rtl_tcp -m 1073741825");
+    }
+
+    @Test
+    public void testQueueDefaults() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.getQueueMs(), equalTo(500));
+        assertThat(arguments.getQueueMemoryBytes(), equalTo(64 * 1024 * 1024));
+    }
+
+    @Test
+    public void testQueueFlags() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP + " -q 100 -M 1048576");
+        assertThat(arguments.getQueueMs(), equalTo(100));
+        assertThat(arguments.getQueueMemoryBytes(), equalTo(1048576));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testQueueMemoryOutOfIntRange() {
+        SdrTcpArguments.fromString(TCP + " -M 4294967296");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoQueue() {
+        SdrTcpArguments.fromString(TCP + " -q 0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeQueueMemory() {
+        SdrTcpArguments.fromString(TCP + " -M -1");
+    }
+
+    @Test
+    public void testLowLatencyDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).isLowLatency(), equalTo(false));
+    }
+
+    @Test
+    public void testLowLatency() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -l 1").isLowLatency(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -l 0").isLowLatency(), equalTo(false));
+    }
+
+    @Test
+    public void testDecimationDefaults() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.getDecimation(), equalTo(1));
+        assertThat(arguments.getSampleBits(), equalTo(8));
+    }
+
+    @Test
+    public void testDecimationFlags() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP + " -d 8 -b 16");
+        assertThat(arguments.getDecimation(), equalTo(8));
+        assertThat(arguments.getSampleBits(), equalTo(16));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNonNumericSampleBits() {
+        SdrTcpArguments.fromString(TCP + " -b 16bit");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSampleBits() {
+        SdrTcpArguments.fromString(TCP + " -b 12");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecimationNotPowerOfTwo() {
+        SdrTcpArguments.fromString(TCP + " -d 6");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecimationTooLarge() {
+        SdrTcpArguments.fromString(TCP + " -d 512");
+    }
+
+    @Test
+    public void testChannelizerDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).getChannelizerChannels(), equalTo(0));
+    }
+
+    @Test
+    public void testChannelizer() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -C 128").getChannelizerChannels(), equalTo(128));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSingleChannel() {
+        SdrTcpArguments.fromString(TCP + " -C 1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChannelizerNotPowerOfTwo() {
+        SdrTcpArguments.fromString(TCP + " -C 100");
+    }
+
+    @Test
+    public void testSpectrumDefaults() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP);
+        assertThat(arguments.getSpectrumSize(), equalTo(0));
+        assertThat(arguments.getSpectrumOverlapPercent(), equalTo(50));
+        assertThat(arguments.getSpectrumAverages(), equalTo(100));
+        assertThat(arguments.getSpectrumBits(), equalTo(8));
+    }
+
+    @Test
+    public void testSpectrumFlags() {
+        SdrTcpArguments arguments = SdrTcpArguments.fromString(TCP + " -F 1024 -V 75 -A 10 -B 16");
+        assertThat(arguments.getSpectrumSize(), equalTo(1024));
+        assertThat(arguments.getSpectrumOverlapPercent(), equalTo(75));
+        assertThat(arguments.getSpectrumAverages(), equalTo(10));
+        assertThat(arguments.getSpectrumBits(), equalTo(16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSpectrumSizeNotPowerOfTwo() {
+        SdrTcpArguments.fromString(TCP + " -F 1000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSpectrumTooSmall() {
+        SdrTcpArguments.fromString(TCP + " -F 8");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSpectrumOverlapTooLarge() {
+        SdrTcpArguments.fromString(TCP + " -F 1024 -V 96");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSpectrumAverages() {
+        SdrTcpArguments.fromString(TCP + " -F 1024 -A 0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSpectrumBits() {
+        SdrTcpArguments.fromString(TCP + " -F 1024 -B 32");
+    }
+
+    @Test
+    public void testIqCorrectionDefault() {
+        assertThat(SdrTcpArguments.fromString(TCP).isIqCorrection(), equalTo(false));
+    }
+
+    @Test
+    public void testIqCorrection() {
+        assertThat(SdrTcpArguments.fromString(TCP + " -I 1").isIqCorrection(), equalTo(true));
+        assertThat(SdrTcpArguments.fromString(TCP + " -I 0").isIqCorrection(), equalTo(false));
+    }
+}
@@ -72,6 +72,7 @@ public class HackRfTcp {
 
     public void prepareToAcceptConnections() throws IOException {
         String address = sdrTcpArguments.getAddress();
+        if (sdrTcpArguments.isUnixSocket()) throw new IOException("Unix domain sockets are not supported by the HackRF driver: " + address);
         int port = sdrTcpArguments.getPort();
         socket.bind(new InetSocketAddress(address, port));
         socket.setSoTimeout(SOCKET_TIMEOUT_MS);
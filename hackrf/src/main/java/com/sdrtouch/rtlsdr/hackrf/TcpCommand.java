@@ -49,14 +49,17 @@ public enum TcpCommand {
     RSP_TCP_COMMAND_SET_NOTCH(0x24),
     RSP_TCP_COMMAND_SET_BIAST(0x25);
 
-    private final static SparseArray<TcpCommand> COMMAND_MAP = new SparseArray<>(TcpCommand.values().length);
+    // built on first lookup, so that using the constants doesn't need the Android runtime
+    private static class CommandMap {
+        private final static SparseArray<TcpCommand> COMMAND_MAP = new SparseArray<>(TcpCommand.values().length);
 
-    static {
-        for (TcpCommand c : TcpCommand.values()) {
-            if (COMMAND_MAP.indexOfKey(c.code) >= 0) {
-                throw new RuntimeException("Duplicate code for "+c);
+        static {
+            for (TcpCommand c : TcpCommand.values()) {
+                if (COMMAND_MAP.indexOfKey(c.code) >= 0) {
+                    throw new RuntimeException("Duplicate code for "+c);
+                }
+                COMMAND_MAP.put(c.code, c);
             }
-            COMMAND_MAP.put(c.code, c);
         }
     }
 
@@ -67,7 +70,7 @@ public enum TcpCommand {
     }
 
     public static TcpCommand fromCode(int code) {
-        return COMMAND_MAP.get(code);
+        return CommandMap.COMMAND_MAP.get(code);
     }
 
     public int getCode() {
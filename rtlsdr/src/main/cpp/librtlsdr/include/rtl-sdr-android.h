@@ -31,4 +31,35 @@ extern "C" {
 
 RTLSDR_API int rtlsdr_open2(rtlsdr_dev_t **out_dev, int fd, const char * devicePath);
 
+/*!
+ * Called with every filled transfer buffer. If can_keep is set the callback may
+ * return 1 to keep buf, the transfer is then resubmitted with a spare buffer and
+ * buf must be handed back with rtlsdr_return_buffer once it is no longer used.
+ * Returning 0 gives buf straight back to the transfer, like rtlsdr_read_async_cb_t.
+ * When streaming stops the callback is called once with a NULL buf, after which
+ * all lent buffers are expected to come back.
+ */
+typedef int(*rtlsdr_read_async_lend_cb_t)(unsigned char *buf, uint32_t len, int can_keep, void *ctx);
+
+/*!
+ * Same as rtlsdr_read_async but lends the transfer buffers to the callback
+ * instead of requiring it to copy them.
+ *
+ * \param spare_num number of extra buffers that can be swapped in while
+ *		  buffers are lent out, must not be 0
+ */
+RTLSDR_API int rtlsdr_read_async_lend(rtlsdr_dev_t *dev,
+				      rtlsdr_read_async_lend_cb_t cb,
+				      void *ctx,
+				      uint32_t buf_num,
+				      uint32_t buf_len,
+				      uint32_t spare_num);
+
+/*!
+ * Hands a buffer kept by rtlsdr_read_async_lend_cb_t back. Can be called from any thread,
+ * also after streaming stopped or rtlsdr_close returned, a device with buffers still
+ * lent out is only freed once the last of them is back.
+ */
+RTLSDR_API void rtlsdr_return_buffer(rtlsdr_dev_t *dev, unsigned char *buf);
+
 #endif /* __RTL_ANDRO_SDR_H */
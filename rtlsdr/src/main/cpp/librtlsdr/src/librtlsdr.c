@@ -25,6 +25,8 @@
 #include <stdlib.h>
 #ifndef _WIN32
 #include <unistd.h>
+#include <pthread.h>
+#include <time.h>
 #define min(a, b) (((a) < (b)) ? (a) : (b))
 #endif
 
@@ -44,6 +46,7 @@
 #define TWO_POW(n)		((double)(1ULL<<(n)))
 
 #include "rtl-sdr.h"
+#include "rtl-sdr-android.h"
 #include "tuner_e4k.h"
 #include "tuner_fc0012.h"
 #include "tuner_fc0013.h"
@@ -101,6 +104,26 @@ struct rtlsdr_dev {
 	enum rtlsdr_async_status async_status;
 	int async_cancel;
 	int use_zerocopy;
+	/* buffers that can be swapped with lent transfer buffers */
+	rtlsdr_read_async_lend_cb_t lend_cb;
+	uint32_t spare_num;
+	uint32_t spare_count;
+	unsigned char **spare_buf;
+	/* every buffer of the current session, empty once it is torn down */
+	unsigned char **pool_buf;
+	uint32_t pool_num;
+	/* buffers kept by the callback that didn't come back yet, over all
+	 * sessions, briefly negative if one comes back before it is counted */
+	int lent_count;
+	/* set by rtlsdr_close when lent buffers are still out, the last of
+	 * them to come back frees the device */
+	int closed;
+	/* initialised once with the device, a late rtlsdr_return_buffer
+	 * may still hold them when the next session starts */
+	pthread_mutex_t spare_lock;
+	pthread_cond_t spare_cond;
+	/* keeps rtlsdr_cancel_async off the transfers while they are freed */
+	pthread_mutex_t async_lock;
 	/* rtl demod context */
 	uint32_t rate; /* Hz */
 	uint32_t rtl_xtal; /* Hz */
@@ -356,6 +379,7 @@ static rtlsdr_dongle_t known_devices[] = {
 };
 
 #define DEFAULT_BUF_NUMBER	15
+#define LEND_RETURN_TIMEOUT_MS	10000
 #define DEFAULT_BUF_LENGTH	(16 * 32 * 512)
 
 #define DEF_RTL_XTAL_FREQ	28800000
@@ -1463,6 +1487,9 @@ int rtlsdr_open(rtlsdr_dev_t **out_dev, uint32_t index)
 
 	memset(dev, 0, sizeof(rtlsdr_dev_t));
 	memcpy(dev->fir, fir_default, sizeof(fir_default));
+	pthread_mutex_init(&dev->async_lock, NULL);
+	pthread_mutex_init(&dev->spare_lock, NULL);
+	pthread_cond_init(&dev->spare_cond, NULL);
 
 	r = libusb_init(&dev->ctx);
 	if(r < 0){
@@ -1663,8 +1690,18 @@ err:
 	return r;
 }
 
+static void _rtlsdr_free_dev(rtlsdr_dev_t *dev)
+{
+	pthread_mutex_destroy(&dev->async_lock);
+	pthread_mutex_destroy(&dev->spare_lock);
+	pthread_cond_destroy(&dev->spare_cond);
+	free(dev);
+}
+
 int rtlsdr_close(rtlsdr_dev_t *dev)
 {
+	int lent;
+
 	if (!dev)
 		return -1;
 
@@ -1696,7 +1733,15 @@ int rtlsdr_close(rtlsdr_dev_t *dev)
 
 	libusb_exit(dev->ctx);
 
-	free(dev);
+	pthread_mutex_lock(&dev->spare_lock);
+	dev->closed = 1;
+	lent = dev->lent_count > 0;
+	pthread_mutex_unlock(&dev->spare_lock);
+
+	if (lent)
+		fprintf(stderr, "Lent buffers are still out, the last one frees the device\n");
+	else
+		_rtlsdr_free_dev(dev);
 
 	return 0;
 }
@@ -1720,12 +1765,87 @@ int rtlsdr_read_sync(rtlsdr_dev_t *dev, void *buf, int len, int *n_read)
 	return libusb_bulk_transfer(dev->devh, 0x81, buf, len, n_read, BULK_TIMEOUT);
 }
 
+static unsigned char *_rtlsdr_take_spare(rtlsdr_dev_t *dev)
+{
+	unsigned char *buf = NULL;
+
+	pthread_mutex_lock(&dev->spare_lock);
+	if (dev->spare_count > 0)
+		buf = dev->spare_buf[--dev->spare_count];
+	pthread_mutex_unlock(&dev->spare_lock);
+
+	return buf;
+}
+
+static void _rtlsdr_put_spare(rtlsdr_dev_t *dev, unsigned char *buf)
+{
+	pthread_mutex_lock(&dev->spare_lock);
+	if (dev->spare_count < dev->spare_num)
+		dev->spare_buf[dev->spare_count++] = buf;
+	pthread_cond_broadcast(&dev->spare_cond);
+	pthread_mutex_unlock(&dev->spare_lock);
+}
+
+/* a buffer of a session that was torn down before it came back was left
+ * allocated, it is dropped here instead of joining a pool it is not part of */
+void rtlsdr_return_buffer(rtlsdr_dev_t *dev, unsigned char *buf)
+{
+	unsigned int i;
+	int last;
+
+	pthread_mutex_lock(&dev->spare_lock);
+	dev->lent_count--;
+	for (i = 0; i < dev->pool_num; ++i) {
+		if (dev->pool_buf[i] == buf) {
+			if (dev->spare_count < dev->spare_num)
+				dev->spare_buf[dev->spare_count++] = buf;
+			pthread_cond_broadcast(&dev->spare_cond);
+			break;
+		}
+	}
+	last = dev->closed && dev->lent_count == 0;
+	pthread_mutex_unlock(&dev->spare_lock);
+
+	if (last)
+		_rtlsdr_free_dev(dev);
+}
+
+/* waits until every lent buffer is back, returns 0 if some are still missing */
+static int _rtlsdr_wait_for_spares(rtlsdr_dev_t *dev)
+{
+	struct timespec ts;
+	int r = 0;
+
+	clock_gettime(CLOCK_REALTIME, &ts);
+	ts.tv_sec += LEND_RETURN_TIMEOUT_MS / 1000;
+
+	pthread_mutex_lock(&dev->spare_lock);
+	while (dev->spare_count < dev->spare_num && r != ETIMEDOUT)
+		r = pthread_cond_timedwait(&dev->spare_cond, &dev->spare_lock, &ts);
+	r = dev->spare_count == dev->spare_num;
+	pthread_mutex_unlock(&dev->spare_lock);
+
+	return r;
+}
+
 static void LIBUSB_CALL _libusb_callback(struct libusb_transfer *xfer)
 {
 	rtlsdr_dev_t *dev = (rtlsdr_dev_t *)xfer->user_data;
 
 	if (LIBUSB_TRANSFER_COMPLETED == xfer->status) {
-		if (dev->cb)
+		if (dev->lend_cb) {
+			unsigned char *spare = _rtlsdr_take_spare(dev);
+
+			/* if the buffer was kept, the transfer continues with the spare one */
+			if (dev->lend_cb(xfer->buffer, xfer->actual_length, spare != NULL, dev->cb_ctx) && spare) {
+				pthread_mutex_lock(&dev->spare_lock);
+				dev->lent_count++;
+				pthread_mutex_unlock(&dev->spare_lock);
+				xfer->buffer = spare;
+			} else if (spare) {
+				_rtlsdr_put_spare(dev, spare);
+			}
+		} else if (dev->cb)
 			dev->cb(xfer->buffer, xfer->actual_length, dev->cb_ctx);
 
 		libusb_submit_transfer(xfer); /* resubmit transfer */
@@ -1756,6 +1876,8 @@ int rtlsdr_wait_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb, void *ctx)
 static int _rtlsdr_alloc_async_buffers(rtlsdr_dev_t *dev)
 {
 	unsigned int i;
+	/* spare buffers come from the same allocator as the transfer ones */
+	unsigned int buf_total = dev->xfer_buf_num + dev->spare_num;
 
 	if (!dev)
 		return -1;
@@ -1771,14 +1893,14 @@ static int _rtlsdr_alloc_async_buffers(rtlsdr_dev_t *dev)
 	if (dev->xfer_buf)
 		return -2;
 
-	dev->xfer_buf = malloc(dev->xfer_buf_num * sizeof(unsigned char *));
-	memset(dev->xfer_buf, 0, dev->xfer_buf_num * sizeof(unsigned char *));
+	dev->xfer_buf = malloc(buf_total * sizeof(unsigned char *));
+	memset(dev->xfer_buf, 0, buf_total * sizeof(unsigned char *));
 
 #if defined(ENABLE_ZEROCOPY) && defined (__linux__) && LIBUSB_API_VERSION >= 0x01000105
-	fprintf(stderr, "Allocating %d zero-copy buffers\n", dev->xfer_buf_num);
+	fprintf(stderr, "Allocating %d zero-copy buffers\n", buf_total);
 
 	dev->use_zerocopy = 1;
-	for (i = 0; i < dev->xfer_buf_num; ++i) {
+	for (i = 0; i < buf_total; ++i) {
 		dev->xfer_buf[i] = libusb_dev_mem_alloc(dev->devh, dev->xfer_buf_len);
 
 		if (dev->xfer_buf[i]) {
@@ -1809,7 +1931,7 @@ static int _rtlsdr_alloc_async_buffers(rtlsdr_dev_t *dev)
 	/* zero-copy buffer allocation failed (partially or completely)
 	 * we need to free the buffers again if already allocated */
 	if (!dev->use_zerocopy) {
-		for (i = 0; i < dev->xfer_buf_num; ++i) {
+		for (i = 0; i < buf_total; ++i) {
 			if (dev->xfer_buf[i])
 				libusb_dev_mem_free(dev->devh,
 						    dev->xfer_buf[i],
@@ -1820,7 +1942,7 @@ static int _rtlsdr_alloc_async_buffers(rtlsdr_dev_t *dev)
 
 	/* no zero-copy available, allocate buffers in userspace */
 	if (!dev->use_zerocopy) {
-		for (i = 0; i < dev->xfer_buf_num; ++i) {
+		for (i = 0; i < buf_total; ++i) {
 			dev->xfer_buf[i] = malloc(dev->xfer_buf_len);
 
 			if (!dev->xfer_buf[i])
@@ -1828,30 +1950,52 @@ static int _rtlsdr_alloc_async_buffers(rtlsdr_dev_t *dev)
 		}
 	}
 
+	pthread_mutex_lock(&dev->spare_lock);
+	for (i = 0; i < dev->spare_num; ++i)
+		dev->spare_buf[i] = dev->xfer_buf[dev->xfer_buf_num + i];
+	dev->spare_count = dev->spare_num;
+	if (dev->spare_num) {
+		dev->pool_buf = dev->xfer_buf;
+		dev->pool_num = buf_total;
+	}
+	pthread_mutex_unlock(&dev->spare_lock);
+
+	return 0;
+}
+
+/* a buffer is at home if it is attached to a transfer or waiting in the spare pool */
+static int _rtlsdr_buffer_is_home(rtlsdr_dev_t *dev, unsigned char *buf)
+{
+	unsigned int i;
+
+	if (!dev->spare_num)
+		return 1;
+
+	for (i = 0; i < dev->xfer_buf_num; ++i)
+		if (dev->xfer && dev->xfer[i] && dev->xfer[i]->buffer == buf)
+			return 1;
+
+	for (i = 0; i < dev->spare_count; ++i)
+		if (dev->spare_buf[i] == buf)
+			return 1;
+
 	return 0;
 }
 
 static int _rtlsdr_free_async_buffers(rtlsdr_dev_t *dev)
 {
 	unsigned int i;
+	unsigned int buf_total;
 
 	if (!dev)
 		return -1;
 
-	if (dev->xfer) {
-		for(i = 0; i < dev->xfer_buf_num; ++i) {
-			if (dev->xfer[i]) {
-				libusb_free_transfer(dev->xfer[i]);
-			}
-		}
-
-		free(dev->xfer);
-		dev->xfer = NULL;
-	}
+	buf_total = dev->xfer_buf_num + dev->spare_num;
 
+	/* buffers still lent out when giving up waiting for them are leaked rather than freed under their user */
 	if (dev->xfer_buf) {
-		for (i = 0; i < dev->xfer_buf_num; ++i) {
-			if (dev->xfer_buf[i]) {
+		for (i = 0; i < buf_total; ++i) {
+			if (dev->xfer_buf[i] && _rtlsdr_buffer_is_home(dev, dev->xfer_buf[i])) {
 				if (dev->use_zerocopy) {
 #if defined (__linux__) && LIBUSB_API_VERSION >= 0x01000105
 					libusb_dev_mem_free(dev->devh,
@@ -1868,11 +2012,23 @@ static int _rtlsdr_free_async_buffers(rtlsdr_dev_t *dev)
 		dev->xfer_buf = NULL;
 	}
 
+	if (dev->xfer) {
+		for(i = 0; i < dev->xfer_buf_num; ++i) {
+			if (dev->xfer[i]) {
+				libusb_free_transfer(dev->xfer[i]);
+			}
+		}
+
+		free(dev->xfer);
+		dev->xfer = NULL;
+	}
+
 	return 0;
 }
 
-int rtlsdr_read_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb, void *ctx,
-			  uint32_t buf_num, uint32_t buf_len)
+static int _rtlsdr_read_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb,
+			      rtlsdr_read_async_lend_cb_t lend_cb, void *ctx,
+			      uint32_t buf_num, uint32_t buf_len, uint32_t spare_num)
 {
 	unsigned int i;
 	int r = 0;
@@ -1892,6 +2048,12 @@ int rtlsdr_read_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb, void *ctx,
 	dev->cb = cb;
 	dev->cb_ctx = ctx;
 
+	dev->lend_cb = lend_cb;
+	dev->spare_num = lend_cb ? spare_num : 0;
+	dev->spare_count = 0;
+	if (dev->spare_num)
+		dev->spare_buf = malloc(dev->spare_num * sizeof(unsigned char *));
+
 	if (buf_num > 0)
 		dev->xfer_buf_num = buf_num;
 	else
@@ -1976,24 +2138,81 @@ int rtlsdr_read_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb, void *ctx,
 		}
 	}
 
-	_rtlsdr_free_async_buffers(dev);
+	if (dev->spare_num) {
+		int all_returned;
+
+		/* let the borrower know that it has to give the lent buffers back */
+		dev->lend_cb(NULL, 0, 0, dev->cb_ctx);
+		all_returned = _rtlsdr_wait_for_spares(dev);
+		if (!all_returned)
+			fprintf(stderr, "Lent buffers were not returned in time\n");
+
+		/* from here on a late rtlsdr_return_buffer leaves the pool alone */
+		pthread_mutex_lock(&dev->spare_lock);
+		dev->pool_buf = NULL;
+		dev->pool_num = 0;
+		pthread_mutex_unlock(&dev->spare_lock);
+
+		pthread_mutex_lock(&dev->async_lock);
+		_rtlsdr_free_async_buffers(dev);
+		pthread_mutex_unlock(&dev->async_lock);
+
+		free(dev->spare_buf);
+		dev->spare_buf = NULL;
+		dev->spare_num = 0;
+		dev->lend_cb = NULL;
+	} else {
+		pthread_mutex_lock(&dev->async_lock);
+		_rtlsdr_free_async_buffers(dev);
+		pthread_mutex_unlock(&dev->async_lock);
+	}
 
 	dev->async_status = next_status;
 
 	return r;
 }
 
+int rtlsdr_read_async(rtlsdr_dev_t *dev, rtlsdr_read_async_cb_t cb, void *ctx,
+			  uint32_t buf_num, uint32_t buf_len)
+{
+	return _rtlsdr_read_async(dev, cb, NULL, ctx, buf_num, buf_len, 0);
+}
+
+int rtlsdr_read_async_lend(rtlsdr_dev_t *dev, rtlsdr_read_async_lend_cb_t cb, void *ctx,
+			   uint32_t buf_num, uint32_t buf_len, uint32_t spare_num)
+{
+	if (!cb || !spare_num)
+		return -1;
+
+	return _rtlsdr_read_async(dev, NULL, cb, ctx, buf_num, buf_len, spare_num);
+}
+
 int rtlsdr_cancel_async(rtlsdr_dev_t *dev)
 {
+	unsigned int i;
+
 	if (!dev)
 		return -1;
 
 	/* if streaming, try to cancel gracefully */
+	pthread_mutex_lock(&dev->async_lock);
 	if (RTLSDR_RUNNING == dev->async_status) {
 		dev->async_status = RTLSDR_CANCELING;
 		dev->async_cancel = 1;
+
+		/* the event loop only sees the flag once a transfer finishes,
+		 * cancelling one of them finishes it right away instead of
+		 * after a whole buffer or the event timeout */
+		if (dev->xfer) {
+			for (i = 0; i < dev->xfer_buf_num; ++i) {
+				if (dev->xfer[i] && !libusb_cancel_transfer(dev->xfer[i]))
+					break;
+			}
+		}
+		pthread_mutex_unlock(&dev->async_lock);
 		return 0;
 	}
+	pthread_mutex_unlock(&dev->async_lock);
 
 	/* if called while in pending state, change the state forcefully */
 #if 0
@@ -2096,6 +2315,9 @@ int rtlsdr_open2(rtlsdr_dev_t **out_dev, int fd, const char * devicePath) {
 
 	memset(dev, 0, sizeof(rtlsdr_dev_t));
 	memcpy(dev->fir, fir_default, sizeof(fir_default));
+	pthread_mutex_init(&dev->async_lock, NULL);
+	pthread_mutex_init(&dev->spare_lock, NULL);
+	pthread_cond_init(&dev->spare_cond, NULL);
 
 	int status = libusb_init(&dev->ctx);
 	if (status != LIBUSB_SUCCESS)
@@ -0,0 +1,186 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include "channelizer.h"
+#include "kernels.h"
+
+// Kaiser window aiming for about 65 dB of stop band, the 8 bit input doesn't go much lower anyway. It gets less than
+// that with few channels: channelizer_benchmark measures a tone two channels away at about 53 dB down with 8 channels,
+// 60 dB with 16 to 64 and 62 to 66 dB from 128 on.
+#define KAISER_BETA (6.2)
+
+static double bessel_i0(double x) {
+    double sum = 1, term = 1;
+    int k;
+    for (k = 1; k < 50; k++) {
+        term *= (x / (2 * k)) * (x / (2 * k));
+        sum += term;
+    }
+    return sum;
+}
+
+// windowed sinc with the cut off at one channel spacing, so the transition from half a spacing to one and a half
+// ends where it would start to fold onto the flat part at twice the spacing, scaled to a gain of one
+static void design_prototype(channelizer_t * channelizer) {
+    const int taps = channelizer->taps;
+    const double cutoff = 1.0 / channelizer->channels;
+    const double centre = (taps - 1) / 2.0;
+    double sum = 0;
+    int n;
+    for (n = 0; n < taps; n++) {
+        double t = n - centre;
+        double sinc = t == 0 ? 2 * cutoff : sin(2 * M_PI * cutoff * t) / (M_PI * t);
+        double r = t / centre;
+        double window = bessel_i0(KAISER_BETA * sqrt(1 - r * r)) / bessel_i0(KAISER_BETA);
+        channelizer->prototype[taps - 1 - n] = (float) (sinc * window);
+        sum += sinc * window;
+    }
+    for (n = 0; n < taps; n++) {
+        channelizer->prototype[n] = (float) (channelizer->prototype[n] / sum);
+    }
+}
+
+int channelizer_init(channelizer_t * channelizer, int channels) {
+    memset(channelizer, 0, sizeof(*channelizer));
+    if (channels > CHANNELIZER_MAX_CHANNELS || !fft_init(&channelizer->fft, channels)) return 0;
+
+    channelizer->channels = channels;
+    channelizer->step = channels / 2;
+    channelizer->taps = channels * CHANNELIZER_TAPS_PER_CHANNEL;
+    channelizer->prototype = (float *) malloc(sizeof(float) * channelizer->taps);
+    channelizer->rotation = (float *) malloc(sizeof(float) * 2 * channels);
+    channelizer->folded = (float *) malloc(sizeof(float) * 2 * channels);
+    extbuffer_init(&channelizer->input, EXTBUFF_TYPE_FLOAT);
+    extbuffer_init(&channelizer->output, EXTBUFF_TYPE_FLOAT);
+    if (channelizer->prototype == NULL || channelizer->rotation == NULL || channelizer->folded == NULL) {
+        channelizer_free(channelizer);
+        return 0;
+    }
+
+    design_prototype(channelizer);
+    int n;
+    for (n = 0; n < channels; n++) {
+        channelizer->rotation[2 * n] = (float) cos(2 * M_PI * n / channels);
+        channelizer->rotation[2 * n + 1] = (float) -sin(2 * M_PI * n / channels);
+    }
+
+    // the first output looks at the first sample and zeros before it, from then on what is buffered has to stay
+    channelizer->buffered = channelizer->taps - 1;
+    channelizer->phase = 1;
+    extbuffer_preparetohandle(&channelizer->input, 2 * channelizer->buffered);
+    channelizer->input.cleartozero = 0;
+    channelizer->output.cleartozero = 0;
+    if (channelizer->input.floatbuffer == NULL) {
+        channelizer_free(channelizer);
+        return 0;
+    }
+    return 1;
+}
+
+void channelizer_free(channelizer_t * channelizer) {
+    free(channelizer->prototype);
+    free(channelizer->rotation);
+    free(channelizer->folded);
+    channelizer->prototype = NULL;
+    channelizer->rotation = NULL;
+    channelizer->folded = NULL;
+    fft_free(&channelizer->fft);
+    extbuffer_free(&channelizer->input);
+    extbuffer_free(&channelizer->output);
+    channelizer->channels = 0;
+}
+
+// Channel k is the input mixed down by k / channels cycles per sample and low pass filtered. Written out for the output
+// ending at sample p that is e^(-j 2 pi k p / channels) times the sum over n of h[n] x[p - n] e^(j 2 pi k n / channels).
+// The exponential repeats every channels taps, so the filtered input is folded onto one period and a single FFT gives
+// the sum for every channel, the rotation left over depends on p only through the phase.
+static void output_sample(channelizer_t * channelizer, const float * oldest, uint32_t index) {
+    const int channels = channelizer->channels;
+    const float * prototype = channelizer->prototype;
+    float * folded = channelizer->folded;
+    int a, l;
+
+    for (a = 0; a < channels; a++) {
+        folded[2 * a] = prototype[a] * oldest[2 * a];
+        folded[2 * a + 1] = prototype[a] * oldest[2 * a + 1];
+    }
+    for (l = 1; l < CHANNELIZER_TAPS_PER_CHANNEL; l++) {
+        const float * h = prototype + l * channels;
+        const float * x = oldest + 2 * l * channels;
+        for (a = 0; a < channels; a++) {
+            folded[2 * a] += h[a] * x[2 * a];
+            folded[2 * a + 1] += h[a] * x[2 * a + 1];
+        }
+    }
+
+    fft_forward(&channelizer->fft, folded);
+
+    // folding leaves one sample more of rotation than p, which is why the phase counts the newest sample too
+    const int phase = channelizer->phase;
+    float * out = channelizer->output.floatbuffer + 2 * index;
+    const size_t stride = 2 * (size_t) channelizer->outputs;
+    int k;
+    for (k = 0; k < channels; k++) {
+        const float * w = channelizer->rotation + 2 * ((k * phase) & (channels - 1));
+        const float i = folded[2 * k], q = folded[2 * k + 1];
+        out[k * stride] = i * w[0] - q * w[1];
+        out[k * stride + 1] = i * w[1] + q * w[0];
+    }
+}
+
+uint32_t channelizer_process(channelizer_t * channelizer, const uint8_t * iq, uint32_t samples) {
+    const int taps = channelizer->taps;
+    const int step = channelizer->step;
+
+    // the buffers only grow, so once the largest block went through nothing is allocated anymore
+    extbuffer_preparetohandle(&channelizer->input, 2 * (channelizer->buffered + (int) samples));
+    if (channelizer->input.floatbuffer == NULL) return 0;
+    float * input = channelizer->input.floatbuffer;
+    kernels_get()->u8_to_f32(iq, 2 * samples, 1.0f, input + 2 * channelizer->buffered);
+    channelizer->buffered += samples;
+
+    uint32_t outputs = channelizer->buffered >= taps ? (uint32_t) (channelizer->buffered - taps) / step + 1 : 0;
+    channelizer->outputs = outputs;
+    if (outputs == 0) return 0;
+    extbuffer_preparetohandle(&channelizer->output, (int) (2 * outputs * channelizer->channels));
+    if (channelizer->output.floatbuffer == NULL) {
+        channelizer->outputs = 0;
+        return 0;
+    }
+
+    uint32_t i;
+    for (i = 0; i < outputs; i++) {
+        output_sample(channelizer, input + 2 * (size_t) i * step, i);
+        channelizer->phase = (channelizer->phase + step) & (channelizer->channels - 1);
+    }
+
+    // what the next output needs moves to the front
+    int consumed = (int) outputs * step;
+    channelizer->buffered -= consumed;
+    memmove(input, input + 2 * consumed, sizeof(float) * 2 * channelizer->buffered);
+    return outputs;
+}
+
+const float * channelizer_channel(const channelizer_t * channelizer, int channel) {
+    return channelizer->output.floatbuffer + 2 * (size_t) channel * channelizer->outputs;
+}
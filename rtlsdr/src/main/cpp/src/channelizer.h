@@ -0,0 +1,66 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef CHANNELIZER_H_
+#define CHANNELIZER_H_
+
+#include <stdint.h>
+#include "extbuffer.h"
+#include "fft.h"
+
+#define CHANNELIZER_MAX_CHANNELS (1024)
+// length of the prototype filter in channels, more is a steeper roll off at a higher cost per sample
+#define CHANNELIZER_TAPS_PER_CHANNEL (4)
+
+// Splits interleaved 8 bit unsigned IQ into channels equally spaced by the sample rate divided by channels, channel k
+// being centred k times that spacing above the centre frequency and channels - k below it for the upper half.
+// It is a polyphase filter bank, every output takes one weighted sum over the filter and a single FFT for all channels,
+// so the cost per input sample hardly depends on how many channels there are.
+// Every channel comes out at twice the spacing, centred at 0 Hz. It is flat within half the spacing on either side,
+// the neighbours fill the rest of the band and nothing folds onto the flat part, so channels can be used edge to edge.
+// Only one thread may use a channelizer at a time.
+typedef struct channelizer {
+    int channels;
+    int step; // input samples per output sample, half the channels
+    int taps;
+    float * prototype; // low pass filter for a single channel, reversed so it lines up with the oldest sample first
+    float * rotation; // e^(-j 2 pi n / channels), I and Q interleaved
+    float * folded; // the filtered input folded onto one period of channels samples, transformed in place
+    fft_t fft;
+
+    extbuffer_t input; // floats, starting with the oldest sample the next output needs
+    int buffered; // complex samples in input
+    int phase; // input samples since the start modulo channels, at the end of the next output
+
+    extbuffer_t output; // floats, channel after channel
+    uint32_t outputs; // samples per channel in output
+} channelizer_t;
+
+// channels is a power of two from 2 to CHANNELIZER_MAX_CHANNELS, returns 0 if it isn't or if there is no memory
+int channelizer_init(channelizer_t * channelizer, int channels);
+void channelizer_free(channelizer_t * channelizer);
+
+// filters samples IQ pairs, carrying on from the previous call, returns the number of new samples in every channel
+uint32_t channelizer_process(channelizer_t * channelizer, const uint8_t * iq, uint32_t samples);
+
+// the samples the last channelizer_process made for one channel, I and Q interleaved floats on the scale of the input minus 127.5
+const float * channelizer_channel(const channelizer_t * channelizer, int channel);
+
+#endif
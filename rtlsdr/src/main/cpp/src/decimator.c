@@ -0,0 +1,172 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <string.h>
+#include <math.h>
+#include "decimator.h"
+#include "kernels.h"
+
+// input samples before the centre tap
+#define HALF (DECIMATOR_TAPS / 2)
+// complex samples a stage keeps from one call to the next
+#define HISTORY (DECIMATOR_TAPS - 1)
+
+// taps at an odd distance from the centre, the others are zero
+#define POLYPHASE_TAPS (HALF + 1)
+
+// Kaiser windowed (beta 7) half-band, every other tap is zero so only the centre and the odd ones are listed,
+// those from the oldest input sample to the newest
+static const float CENTRE_TAP = 0.499940123f;
+static const float POLYPHASE[POLYPHASE_TAPS] = {
+        -0.000171618f, 0.002421813f, -0.010517505f, 0.031470201f, -0.083021369f, 0.309848418f,
+        0.309848418f, -0.083021369f, 0.031470201f, -0.010517505f, 0.002421813f, -0.000171618f
+};
+
+int decimator_init(decimator_t * decimator, int factor, sample_format_t format) {
+    int stages = 0;
+    while ((1 << stages) < factor) stages++;
+    if (factor < 1 || (1 << stages) != factor || stages > DECIMATOR_MAX_STAGES) return 0;
+    if ((int) format < 0 || format >= SAMPLE_FORMATS) return 0;
+
+    memset(decimator, 0, sizeof(*decimator));
+    decimator->factor = factor;
+    decimator->stages = stages;
+    decimator->format = format;
+    extbuffer_init(&decimator->work[0], EXTBUFF_TYPE_FLOAT);
+    extbuffer_init(&decimator->work[1], EXTBUFF_TYPE_FLOAT);
+    extbuffer_init(&decimator->gathered, EXTBUFF_TYPE_FLOAT);
+    // every sample is written before it is read
+    decimator->work[0].cleartozero = 0;
+    decimator->work[1].cleartozero = 0;
+    decimator->gathered.cleartozero = 0;
+    return 1;
+}
+
+void decimator_free(decimator_t * decimator) {
+    extbuffer_free(&decimator->work[0]);
+    extbuffer_free(&decimator->work[1]);
+    extbuffer_free(&decimator->gathered);
+}
+
+void decimator_set_offset(decimator_t * decimator, double offset) {
+    decimator->mixing = offset != 0;
+    decimator->offset = offset;
+    decimator->phase = 0;
+    int k;
+    for (k = 0; k < DECIMATOR_MIX_CHUNK; k++) {
+        decimator->table[2 * k] = (float) cos(2 * M_PI * offset * k);
+        decimator->table[2 * k + 1] = (float) -sin(2 * M_PI * offset * k);
+    }
+}
+
+size_t decimator_max_output_bytes(decimator_t * decimator, uint32_t samples) {
+    size_t out = (samples + decimator->factor - 1) / decimator->factor;
+    return out * sampleformat_bytes(decimator->format);
+}
+
+// in holds HISTORY samples followed by n new ones, out gets every other filtered sample, returns how many
+// an output is the centre tap times one input sample plus the odd taps times every other sample around it, so those
+// samples are gathered first and the odd taps run over them as one filter
+static uint32_t decimate_stage(decimator_t * decimator, decimator_stage_t * stage, const float * in, uint32_t n, float * out) {
+    const uint32_t first = (uint32_t) stage->odd;
+    const uint32_t produced = n > first ? (n - first + 1) / 2 : 0;
+    stage->odd = (stage->odd + n) & 1;
+    if (produced == 0) return 0;
+
+    float * gathered = decimator->gathered.floatbuffer;
+    const uint32_t count = produced + POLYPHASE_TAPS - 1;
+    uint32_t p;
+    for (p = 0; p < count; p++) {
+        gathered[2 * p] = in[2 * (first + 2 * p)];
+        gathered[2 * p + 1] = in[2 * (first + 2 * p) + 1];
+    }
+    kernels_get()->fir(gathered, produced, POLYPHASE, POLYPHASE_TAPS, out);
+
+    const float * centre = in + 2 * (first + HALF);
+    for (p = 0; p < produced; p++) {
+        out[2 * p] += CENTRE_TAP * centre[4 * p];
+        out[2 * p + 1] += CENTRE_TAP * centre[4 * p + 1];
+    }
+    return produced;
+}
+
+// multiplies by a complex exponential turning the other way than the channel, which moves the channel to 0 Hz
+// the turn within a chunk comes from the table, where the chunk starts is worked out from the phase so that nothing drifts
+static void mix(decimator_t * decimator, float * iq, uint32_t samples) {
+    const kernels_t * kernels = kernels_get();
+    uint32_t n;
+    for (n = 0; n < samples; n += DECIMATOR_MIX_CHUNK) {
+        uint32_t chunk = samples - n < DECIMATOR_MIX_CHUNK ? samples - n : DECIMATOR_MIX_CHUNK;
+        double angle = 2 * M_PI * decimator->phase;
+        kernels->mix(iq + 2 * n, chunk, decimator->table, (float) cos(angle), (float) -sin(angle));
+        decimator->phase += decimator->offset * chunk;
+        decimator->phase -= floor(decimator->phase);
+    }
+}
+
+// where the input goes, after room for the history of the first stage, NULL if there is no memory
+static float * prepare(decimator_t * decimator, uint32_t samples) {
+    // the buffers only grow, so once the largest block went through nothing is allocated anymore
+    int floats = 2 * (HISTORY + samples);
+    extbuffer_preparetohandle(&decimator->work[0], floats);
+    extbuffer_preparetohandle(&decimator->work[1], floats);
+    // the first stage gathers the most, half its input and the samples the last output reaches past that
+    extbuffer_preparetohandle(&decimator->gathered, 2 * ((int) samples / 2 + POLYPHASE_TAPS));
+    if (decimator->work[0].floatbuffer == NULL || decimator->work[1].floatbuffer == NULL || decimator->gathered.floatbuffer == NULL) return NULL;
+    return decimator->work[0].floatbuffer + 2 * HISTORY;
+}
+
+// mixes and filters the input prepare made room for
+static size_t run(decimator_t * decimator, uint32_t samples, uint8_t * out) {
+    float * in = decimator->work[0].floatbuffer;
+    if (decimator->mixing) mix(decimator, in + 2 * HISTORY, samples);
+
+    uint32_t n = samples;
+    int s;
+    for (s = 0; s < decimator->stages; s++) {
+        decimator_stage_t * stage = &decimator->stage[s];
+        float * next = decimator->work[(s + 1) & 1].floatbuffer;
+
+        memcpy(in, stage->history, sizeof(stage->history));
+        uint32_t produced = decimate_stage(decimator, stage, in, n, next + 2 * HISTORY);
+        memcpy(stage->history, in + 2 * n, sizeof(stage->history));
+
+        in = next;
+        n = produced;
+    }
+
+    decimator->output = in + 2 * HISTORY;
+    decimator->outputs = n;
+    return sampleformat_from_float(decimator->format, decimator->output, n, out);
+}
+
+size_t decimator_process(decimator_t * decimator, const uint8_t * iq, uint32_t samples, uint8_t * out) {
+    float * in = prepare(decimator, samples);
+    if (in == NULL) return 0;
+    kernels_get()->u8_to_f32(iq, 2 * samples, 1.0f, in);
+    return run(decimator, samples, out);
+}
+
+size_t decimator_process_float(decimator_t * decimator, const float * iq, uint32_t samples, uint8_t * out) {
+    float * in = prepare(decimator, samples);
+    if (in == NULL) return 0;
+    memcpy(in, iq, sizeof(float) * 2 * samples);
+    return run(decimator, samples, out);
+}
@@ -0,0 +1,87 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef DECIMATOR_H_
+#define DECIMATOR_H_
+
+#include <stdint.h>
+#include <stddef.h>
+#include "extbuffer.h"
+#include "sampleformat.h"
+
+// every stage halves the sample rate
+#define DECIMATOR_MAX_STAGES (8)
+#define DECIMATOR_MAX_FACTOR (1 << DECIMATOR_MAX_STAGES)
+#define DECIMATOR_TAPS (23)
+// samples the oscillator table covers
+#define DECIMATOR_MIX_CHUNK (256)
+
+// Lowers the sample rate of interleaved 8 bit unsigned IQ by a power of two with a cascade of half-band filters.
+// With an offset set the input is first mixed down, so that the channel at that offset ends up in the middle.
+// What comes out is flat within 30% of the output rate on either side of the centre frequency, the outer 20% on
+// both sides are the filters rolling off. The filters take at least 65 dB off everything that folds onto the flat
+// part, but how far down it ends up depends on the output format: decimator_benchmark measures about 61 dB at /16
+// with 16 bit or float output, where the rounding of the 8 bit input is what remains, and about 43 dB with 8 bit
+// output, where the output rounding is.
+// The output is in any of the sample formats, the wider ones keep the resolution that filtering adds.
+// Only one thread may use a decimator at a time.
+typedef struct decimator_stage {
+    float history[2 * (DECIMATOR_TAPS - 1)]; // the last input samples of the previous call, I and Q interleaved
+    int odd; // 1 if the next input sample doesn't line up with an output sample
+} decimator_stage_t;
+
+typedef struct decimator {
+    int factor;
+    int stages;
+    sample_format_t format;
+    decimator_stage_t stage[DECIMATOR_MAX_STAGES];
+    extbuffer_t work[2];
+    extbuffer_t gathered; // the samples the odd taps of a stage run over
+
+    // the oscillator that mixes the input down, the turn for each sample of a chunk comes from the table
+    // and the phase in cycles of where the next chunk starts moves on by offset every sample
+    int mixing;
+    double offset;
+    double phase;
+    float table[2 * DECIMATOR_MIX_CHUNK];
+
+    // the float IQ the last call wrote out, until the next call
+    const float * output;
+    uint32_t outputs;
+} decimator_t;
+
+// factor is a power of two up to DECIMATOR_MAX_FACTOR, 1 only converts
+// returns 0 if the factor or the format is not valid
+int decimator_init(decimator_t * decimator, int factor, sample_format_t format);
+void decimator_free(decimator_t * decimator);
+
+// offset is the centre of the wanted channel in cycles per input sample, from -0.5 to 0.5, 0 doesn't mix
+void decimator_set_offset(decimator_t * decimator, double offset);
+
+// the most bytes decimator_process can write for this many input samples
+size_t decimator_max_output_bytes(decimator_t * decimator, uint32_t samples);
+
+// filters samples IQ pairs, the filters carry on from the previous call, returns the number of bytes written to out
+size_t decimator_process(decimator_t * decimator, const uint8_t * iq, uint32_t samples, uint8_t * out);
+
+// the same for input that already is float IQ on the scale of the 8 bit input minus 127.5
+size_t decimator_process_float(decimator_t * decimator, const float * iq, uint32_t samples, uint8_t * out);
+
+#endif
@@ -21,6 +21,7 @@
 #include <stddef.h>
 #include <assert.h>
 #include <stdlib.h>
+#include <string.h>
 #include <jni.h>
 #include "extbuffer.h"
 
@@ -95,28 +96,21 @@ void extbuffer_preparetohandle(extbuffer_t * container, int size) {
 
 	container->size_valid_elements = size;
 	if (container->cleartozero) {
-		int i;
-
 		switch (container->type) {
 			case EXTBUFF_TYPE_INT:
-				for (i = 0; i < container->size_valid_elements; i++)
-					container->intbuffer[i] = 0;
+				memset(container->intbuffer, 0, sizeof(jint) * container->size_valid_elements);
 				break;
 			case EXTBUFF_TYPE_FLOAT:
-				for (i = 0; i < container->size_valid_elements; i++)
-					container->floatbuffer[i] = 0.0f;
+				memset(container->floatbuffer, 0, sizeof(jfloat) * container->size_valid_elements);
 				break;
 			case EXTBUFF_TYPE_CHAR:
-				for (i = 0; i < container->size_valid_elements; i++)
-					container->charbuffer[i] = 0;
+				memset(container->charbuffer, 0, sizeof(char) * container->size_valid_elements);
 				break;
 			case EXTBUFF_TYPE_SHORT:
-				for (i = 0; i < container->size_valid_elements; i++)
-					container->shortbuffer[i] = 0;
+				memset(container->shortbuffer, 0, sizeof(int16_t) * container->size_valid_elements);
 				break;
 			case EXTBUFF_TYPE_USHORT:
-				for (i = 0; i < container->size_valid_elements; i++)
-					container->ushortbuffer[i] = 0;
+				memset(container->ushortbuffer, 0, sizeof(uint16_t) * container->size_valid_elements);
 				break;
 		}
 
@@ -0,0 +1,99 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <math.h>
+#include "fft.h"
+
+int fft_init(fft_t * fft, int size) {
+    int bits = 0;
+    while ((1 << bits) < size) bits++;
+    fft->size = 0;
+    fft->twiddles = NULL;
+    fft->reversed = NULL;
+    if (size < 2 || size > FFT_MAX_SIZE || (1 << bits) != size) return 0;
+
+    fft->twiddles = (float *) malloc(sizeof(float) * size);
+    fft->reversed = (uint32_t *) malloc(sizeof(uint32_t) * size);
+    if (fft->twiddles == NULL || fft->reversed == NULL) {
+        fft_free(fft);
+        return 0;
+    }
+
+    int k;
+    for (k = 0; k < size / 2; k++) {
+        fft->twiddles[2 * k] = (float) cos(2 * M_PI * k / size);
+        fft->twiddles[2 * k + 1] = (float) -sin(2 * M_PI * k / size);
+    }
+    for (k = 0; k < size; k++) {
+        uint32_t reversed = 0;
+        int b;
+        for (b = 0; b < bits; b++) {
+            if (k & (1 << b)) reversed |= 1u << (bits - 1 - b);
+        }
+        fft->reversed[k] = reversed;
+    }
+    fft->size = size;
+    return 1;
+}
+
+void fft_free(fft_t * fft) {
+    free(fft->twiddles);
+    free(fft->reversed);
+    fft->twiddles = NULL;
+    fft->reversed = NULL;
+    fft->size = 0;
+}
+
+void fft_forward(const fft_t * fft, float * iq) {
+    const int size = fft->size;
+    int k;
+    for (k = 0; k < size; k++) {
+        uint32_t j = fft->reversed[k];
+        if (j > (uint32_t) k) {
+            float i = iq[2 * k], q = iq[2 * k + 1];
+            iq[2 * k] = iq[2 * j];
+            iq[2 * k + 1] = iq[2 * j + 1];
+            iq[2 * j] = i;
+            iq[2 * j + 1] = q;
+        }
+    }
+
+    // every pass combines pairs of transforms of half the length, the twiddles for a length are every stride-th one
+    int half, stride;
+    for (half = 1, stride = size / 2; half < size; half *= 2, stride /= 2) {
+        int start;
+        for (start = 0; start < size; start += 2 * half) {
+            float * a = iq + 2 * start;
+            float * b = a + 2 * half;
+            int n;
+            for (n = 0; n < half; n++) {
+                const float wr = fft->twiddles[2 * n * stride];
+                const float wi = fft->twiddles[2 * n * stride + 1];
+                const float br = b[2 * n] * wr - b[2 * n + 1] * wi;
+                const float bi = b[2 * n] * wi + b[2 * n + 1] * wr;
+                b[2 * n] = a[2 * n] - br;
+                b[2 * n + 1] = a[2 * n + 1] - bi;
+                a[2 * n] += br;
+                a[2 * n + 1] += bi;
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef FFT_H_
+#define FFT_H_
+
+#include <stdint.h>
+
+#define FFT_MAX_SIZE (65536)
+
+// In-place radix-2 FFT of interleaved float IQ, the tables are computed once so a transform doesn't allocate.
+// Forward only, X[k] = sum x[n] e^(-j 2 pi k n / size), without any scaling. Several threads can share one.
+typedef struct fft {
+    int size;
+    float * twiddles; // e^(-j 2 pi k / size) for k below size / 2, I and Q interleaved
+    uint32_t * reversed; // where every input sample goes before the butterflies
+} fft_t;
+
+// size is a power of two from 2 to FFT_MAX_SIZE, returns 0 if it isn't or if there is no memory
+int fft_init(fft_t * fft, int size);
+void fft_free(fft_t * fft);
+
+// transforms size complex samples in place
+void fft_forward(const fft_t * fft, float * iq);
+
+#endif
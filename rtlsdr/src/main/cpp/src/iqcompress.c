@@ -0,0 +1,285 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <string.h>
+#include <stdlib.h>
+#include "iqcompress.h"
+
+#define SYMBOLS (256)
+#define BLOCK_HEADER_BYTES (3)
+#define LENGTHS_BYTES (SYMBOLS / 2)
+#define MAX_LANES (8)
+// the codes are written a word at a time, which can go up to 7 bytes past the end of them
+#define IQCOMPRESS_SLACK_BYTES (7)
+#define PREDICT_CHUNK (1024)
+
+size_t iqcompress_max_bytes(size_t length) {
+    return 1 + length + IQCOMPRESS_SLACK_BYTES;
+}
+
+// Huffman code lengths of the values that occur, the frequencies are halved until the longest code fits
+static void code_lengths(const uint32_t * histogram, uint8_t * lengths) {
+    uint32_t weight[2 * SYMBOLS];
+    int parent[2 * SYMBOLS];
+    int leaves[SYMBOLS];
+    int count = 0;
+    int s;
+    for (s = 0; s < SYMBOLS; s++) {
+        lengths[s] = 0;
+        if (histogram[s] != 0) leaves[count++] = s;
+    }
+    if (count == 0) return;
+    if (count == 1) {
+        lengths[leaves[0]] = 1;
+        return;
+    }
+
+    uint32_t frequency[SYMBOLS];
+    memcpy(frequency, histogram, sizeof(frequency));
+    for (;;) {
+        // leaves sorted by frequency, insertion sort as there are at most 256
+        int i, j;
+        for (i = 1; i < count; i++) {
+            int leaf = leaves[i];
+            for (j = i; j > 0 && frequency[leaves[j - 1]] > frequency[leaf]; j--) leaves[j] = leaves[j - 1];
+            leaves[j] = leaf;
+        }
+        for (i = 0; i < count; i++) weight[i] = frequency[leaves[i]];
+
+        // two queues, the sorted leaves and the joined nodes, which are made in order of weight
+        int next_leaf = 0, next_node = count, nodes = count;
+        while (nodes < 2 * count - 1) {
+            int pick[2], k;
+            for (k = 0; k < 2; k++) {
+                if (next_leaf < count && (next_node >= nodes || weight[next_leaf] <= weight[next_node])) pick[k] = next_leaf++;
+                else pick[k] = next_node++;
+            }
+            weight[nodes] = weight[pick[0]] + weight[pick[1]];
+            parent[pick[0]] = nodes;
+            parent[pick[1]] = nodes;
+            nodes++;
+        }
+
+        // the depth of a node is one more than that of its parent, which comes later
+        int depth[2 * SYMBOLS];
+        int longest = 0;
+        depth[nodes - 1] = 0;
+        for (i = nodes - 2; i >= 0; i--) {
+            depth[i] = depth[parent[i]] + 1;
+            if (i < count && depth[i] > longest) longest = depth[i];
+        }
+        if (longest <= IQCOMPRESS_MAX_CODE_BITS) {
+            for (i = 0; i < count; i++) lengths[leaves[i]] = (uint8_t) depth[i];
+            return;
+        }
+        for (i = 0; i < count; i++) frequency[leaves[i]] = (frequency[leaves[i]] >> 1) | 1;
+    }
+}
+
+// canonical codes from the lengths, returns 0 if the lengths don't make a prefix code
+static int canonical_codes(const uint8_t * lengths, uint16_t * codes) {
+    int per_length[IQCOMPRESS_MAX_CODE_BITS + 1] = {0};
+    int s, l;
+    for (s = 0; s < SYMBOLS; s++) {
+        if (lengths[s] > IQCOMPRESS_MAX_CODE_BITS) return 0;
+        per_length[lengths[s]]++;
+    }
+    per_length[0] = 0;
+
+    uint32_t next[IQCOMPRESS_MAX_CODE_BITS + 1];
+    uint32_t code = 0;
+    for (l = 1; l <= IQCOMPRESS_MAX_CODE_BITS; l++) {
+        code = (code + per_length[l - 1]) << 1;
+        next[l] = code;
+        if (code + per_length[l] > (1u << l)) return 0;
+    }
+    for (s = 0; s < SYMBOLS; s++) {
+        if (lengths[s] != 0) codes[s] = (uint16_t) next[lengths[s]]++;
+    }
+    return 1;
+}
+
+static uint64_t coded_bits(const uint32_t * histogram, const uint8_t * lengths) {
+    uint64_t bits = 0;
+    int s;
+    for (s = 0; s < SYMBOLS; s++) {
+        bits += (uint64_t) histogram[s] * lengths[s];
+    }
+    return bits;
+}
+
+static size_t store(const uint8_t * in, size_t length, uint8_t * out) {
+    out[0] = IQCOMPRESS_STORED;
+    memcpy(out + 1, in, length);
+    return 1 + length;
+}
+
+size_t iqcompress_encode(const uint8_t * in, size_t length, int lanes, uint8_t * out) {
+    if (lanes < 1 || lanes > MAX_LANES) lanes = 1;
+
+    // both predictions are counted in one pass and the one that codes shorter is taken, in four histograms each as
+    // the same few values come up again and again in noise and every count would otherwise wait for the one before
+    uint32_t plain[4][SYMBOLS], delta[4][SYMBOLS];
+    memset(plain, 0, sizeof(plain));
+    memset(delta, 0, sizeof(delta));
+    size_t i;
+    for (i = 0; i < length && i < (size_t) lanes; i++) {
+        plain[0][in[i]]++;
+        delta[0][in[i]]++;
+    }
+    for (; i + 4 <= length; i += 4) {
+        plain[0][in[i]]++;
+        plain[1][in[i + 1]]++;
+        plain[2][in[i + 2]]++;
+        plain[3][in[i + 3]]++;
+        delta[0][(uint8_t) (in[i] - in[i - lanes])]++;
+        delta[1][(uint8_t) (in[i + 1] - in[i + 1 - lanes])]++;
+        delta[2][(uint8_t) (in[i + 2] - in[i + 2 - lanes])]++;
+        delta[3][(uint8_t) (in[i + 3] - in[i + 3 - lanes])]++;
+    }
+    for (; i < length; i++) {
+        plain[0][in[i]]++;
+        delta[0][(uint8_t) (in[i] - in[i - lanes])]++;
+    }
+    int s;
+    for (s = 0; s < SYMBOLS; s++) {
+        plain[0][s] += plain[1][s] + plain[2][s] + plain[3][s];
+        delta[0][s] += delta[1][s] + delta[2][s] + delta[3][s];
+    }
+
+    uint8_t plain_lengths[SYMBOLS], delta_lengths[SYMBOLS];
+    code_lengths(plain[0], plain_lengths);
+    code_lengths(delta[0], delta_lengths);
+    uint64_t plain_bits = coded_bits(plain[0], plain_lengths);
+    uint64_t delta_bits = coded_bits(delta[0], delta_lengths);
+    int predict = delta_bits < plain_bits ? IQCOMPRESS_PREDICT_DELTA : IQCOMPRESS_PREDICT_NONE;
+    const uint8_t * lengths = predict == IQCOMPRESS_PREDICT_DELTA ? delta_lengths : plain_lengths;
+    uint64_t bits = predict == IQCOMPRESS_PREDICT_DELTA ? delta_bits : plain_bits;
+
+    size_t coded = BLOCK_HEADER_BYTES + LENGTHS_BYTES + (size_t) ((bits + 7) / 8);
+    uint16_t codes[SYMBOLS];
+    if (coded >= 1 + length || !canonical_codes(lengths, codes)) return store(in, length, out);
+
+    out[0] = IQCOMPRESS_HUFFMAN;
+    out[1] = (uint8_t) lanes;
+    out[2] = (uint8_t) predict;
+    for (s = 0; s < SYMBOLS; s += 2) {
+        out[BLOCK_HEADER_BYTES + s / 2] = (uint8_t) (lengths[s] << 4 | lengths[s + 1]);
+    }
+
+    // the predicted bytes go through a small buffer so that the loop that writes the codes is the same for both
+    uint8_t * written = out + BLOCK_HEADER_BYTES + LENGTHS_BYTES;
+    uint8_t predicted[PREDICT_CHUNK];
+    uint64_t word = 0;
+    int pending = 0;
+    size_t done;
+    for (done = 0; done < length; done += PREDICT_CHUNK) {
+        size_t chunk = length - done < PREDICT_CHUNK ? length - done : PREDICT_CHUNK;
+        const uint8_t * values = in + done;
+        if (predict == IQCOMPRESS_PREDICT_DELTA) {
+            for (i = 0; i < chunk; i++) {
+                predicted[i] = (uint8_t) (in[done + i] - (done + i >= (size_t) lanes ? in[done + i - lanes] : 0));
+            }
+            values = predicted;
+        }
+
+        // codes are lined up from the top of a word, fewer than 8 bits are pending before four more codes of at most
+        // 12 bits each go in, then the whole word is written and only the complete bytes are kept
+        for (i = 0; i < chunk; i++) {
+            word |= (uint64_t) codes[values[i]] << (64 - pending - lengths[values[i]]);
+            pending += lengths[values[i]];
+            if ((i & 3) == 3 || i == chunk - 1) {
+                written[0] = (uint8_t) (word >> 56);
+                written[1] = (uint8_t) (word >> 48);
+                written[2] = (uint8_t) (word >> 40);
+                written[3] = (uint8_t) (word >> 32);
+                written[4] = (uint8_t) (word >> 24);
+                written[5] = (uint8_t) (word >> 16);
+                written[6] = (uint8_t) (word >> 8);
+                written[7] = (uint8_t) word;
+                written += pending >> 3;
+                word <<= pending & ~7;
+                pending &= 7;
+            }
+        }
+    }
+    if (pending > 0) *written = (uint8_t) (word >> 56);
+    return coded;
+}
+
+int iqcompress_decode(const uint8_t * coded, size_t coded_length, uint8_t * out, size_t length) {
+    if (coded_length < 1) return 0;
+    if (coded[0] == IQCOMPRESS_STORED) {
+        if (coded_length != 1 + length) return 0;
+        memcpy(out, coded + 1, length);
+        return 1;
+    }
+    if (coded[0] != IQCOMPRESS_HUFFMAN || coded_length < BLOCK_HEADER_BYTES + LENGTHS_BYTES) return 0;
+    const int lanes = coded[1];
+    const int predict = coded[2];
+    if (lanes < 1 || lanes > MAX_LANES || (predict != IQCOMPRESS_PREDICT_NONE && predict != IQCOMPRESS_PREDICT_DELTA)) return 0;
+
+    uint8_t lengths[SYMBOLS];
+    uint16_t codes[SYMBOLS];
+    int s;
+    for (s = 0; s < SYMBOLS; s += 2) {
+        lengths[s] = coded[BLOCK_HEADER_BYTES + s / 2] >> 4;
+        lengths[s + 1] = coded[BLOCK_HEADER_BYTES + s / 2] & 0x0f;
+    }
+    if (!canonical_codes(lengths, codes)) return 0;
+
+    // every code fills the entries of all the longest codes that start with it, 0 length marks an unused entry
+    static const int TABLE = 1 << IQCOMPRESS_MAX_CODE_BITS;
+    uint8_t symbol[1 << IQCOMPRESS_MAX_CODE_BITS];
+    uint8_t bits[1 << IQCOMPRESS_MAX_CODE_BITS];
+    memset(bits, 0, sizeof(bits));
+    for (s = 0; s < SYMBOLS; s++) {
+        if (lengths[s] == 0) continue;
+        int shift = IQCOMPRESS_MAX_CODE_BITS - lengths[s];
+        int first = codes[s] << shift, e;
+        for (e = first; e < first + (1 << shift) && e < TABLE; e++) {
+            symbol[e] = (uint8_t) s;
+            bits[e] = lengths[s];
+        }
+    }
+
+    const uint8_t * in = coded + BLOCK_HEADER_BYTES + LENGTHS_BYTES;
+    const uint8_t * end = coded + coded_length;
+    uint64_t word = 0;
+    int available = 0;
+    size_t i;
+    for (i = 0; i < length; i++) {
+        // past the end the padding is zeros, a code that reaches into it is caught by the count of bits used
+        while (available <= 56) {
+            word = word << 8 | (in < end ? *in : 0);
+            in++;
+            available += 8;
+        }
+        int entry = (int) (word >> (available - IQCOMPRESS_MAX_CODE_BITS)) & (TABLE - 1);
+        if (bits[entry] == 0) return 0;
+        available -= bits[entry];
+        uint8_t value = symbol[entry];
+        out[i] = predict == IQCOMPRESS_PREDICT_DELTA ? (uint8_t) (value + (i >= (size_t) lanes ? out[i - lanes] : 0)) : value;
+    }
+    // the bits used have to end within the last byte
+    int64_t used_bits = (int64_t) (in - (coded + BLOCK_HEADER_BYTES + LENGTHS_BYTES)) * 8 - available;
+    return used_bits <= (int64_t) (end - (coded + BLOCK_HEADER_BYTES + LENGTHS_BYTES)) * 8
+           && used_bits > (int64_t) (end - (coded + BLOCK_HEADER_BYTES + LENGTHS_BYTES) - 1) * 8;
+}
@@ -0,0 +1,57 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef IQCOMPRESS_H_
+#define IQCOMPRESS_H_
+
+#include <stdint.h>
+#include <stddef.h>
+
+// the longest code, so that a decoder can look every code up in a table of 1 << IQCOMPRESS_MAX_CODE_BITS entries
+#define IQCOMPRESS_MAX_CODE_BITS (12)
+
+// how a block is coded, the first byte of it
+#define IQCOMPRESS_STORED (0) // the bytes follow as they are
+#define IQCOMPRESS_HUFFMAN (1)
+
+// how a byte is predicted, the third byte of a Huffman coded block
+#define IQCOMPRESS_PREDICT_NONE (0) // what is coded is the byte itself
+#define IQCOMPRESS_PREDICT_DELTA (1) // the difference to the byte lanes bytes earlier, which is the same byte of the sample before
+
+// Lossless coding of blocks of samples in any of the sample formats. Every block is coded on its own, so a client can
+// decode each one as it arrives. A Huffman coded block is
+// - IQCOMPRESS_HUFFMAN, the lanes, that is the bytes of one sample, and the prediction
+// - 128 bytes with the code lengths of the 256 values, 4 bits each, the high half first, 0 for a value that doesn't occur
+// - the codes of the predicted bytes, most significant bit first, the last byte padded with zeros
+// The codes are canonical: shorter codes come first, and codes of the same length are in the order of their values.
+// A prediction is taken modulo 256 and the bytes before the block are 0. A block that wouldn't come out smaller is
+// IQCOMPRESS_STORED followed by the bytes.
+// Nothing is allocated and there is no state, so any number of threads can code at the same time.
+
+// the room iqcompress_encode needs for length bytes, a bit more than what it can return as it writes a word at a time
+size_t iqcompress_max_bytes(size_t length);
+
+// codes length bytes in which a sample takes lanes bytes, 1 to 8, and returns the number of bytes written to out
+size_t iqcompress_encode(const uint8_t * in, size_t length, int lanes, uint8_t * out);
+
+// decodes a block of coded_length bytes into the length bytes it was made of, returns 0 if it is not a valid block
+int iqcompress_decode(const uint8_t * coded, size_t coded_length, uint8_t * out, size_t length);
+
+#endif
@@ -0,0 +1,146 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include "iqcorrect.h"
+
+// samples every loop handles at a time, with a sum of its own for each
+#define LANES (4)
+
+// below this power there is nothing to estimate the imbalance from, such as in a block of silence
+#define MIN_POWER (1e-6)
+
+void iqcorrect_init(iqcorrect_t * corrector) {
+    corrector->primed = 0;
+    corrector->dc[0] = 0;
+    corrector->dc[1] = 0;
+    corrector->ii = 0;
+    corrector->qq = 0;
+    corrector->iq = 0;
+    corrector->cross = 0;
+    corrector->gain = 1;
+}
+
+// how far a single pole filter with this time constant moves towards the input over a whole block
+static double block_weight(uint32_t samples, double time_constant) {
+    return 1 - exp(-(double) samples / time_constant);
+}
+
+static void convert(const uint8_t * iq, uint32_t samples, float * out, double mean[2]) {
+    float sum[2 * LANES] = {0};
+    uint32_t n = 0;
+    int k;
+    for (; n + LANES <= samples; n += LANES) {
+        for (k = 0; k < 2 * LANES; k++) {
+            float value = (float) iq[2 * n + k] - 127.5f;
+            out[2 * n + k] = value;
+            sum[k] += value;
+        }
+    }
+    for (; n < samples; n++) {
+        for (k = 0; k < 2; k++) {
+            float value = (float) iq[2 * n + k] - 127.5f;
+            out[2 * n + k] = value;
+            sum[k] += value;
+        }
+    }
+
+    mean[0] = 0;
+    mean[1] = 0;
+    for (k = 0; k < 2 * LANES; k++) {
+        mean[k & 1] += sum[k];
+    }
+    mean[0] /= samples;
+    mean[1] /= samples;
+}
+
+// takes the DC out, sums up the moments for the next estimate and corrects the imbalance with the current one
+static void correct(iqcorrect_t * corrector, float * out, uint32_t samples, double moments[3]) {
+    const float dc_i = (float) corrector->dc[0];
+    const float dc_q = (float) corrector->dc[1];
+    const float cross = corrector->cross;
+    const float gain = corrector->gain;
+    float ii[LANES] = {0}, qq[LANES] = {0}, iq[LANES] = {0};
+    uint32_t n = 0;
+    int k;
+    for (; n + LANES <= samples; n += LANES) {
+        for (k = 0; k < LANES; k++) {
+            float i = out[2 * (n + k)] - dc_i;
+            float q = out[2 * (n + k) + 1] - dc_q;
+            ii[k] += i * i;
+            qq[k] += q * q;
+            iq[k] += i * q;
+            out[2 * (n + k)] = i;
+            out[2 * (n + k) + 1] = gain * (q - cross * i);
+        }
+    }
+    for (; n < samples; n++) {
+        float i = out[2 * n] - dc_i;
+        float q = out[2 * n + 1] - dc_q;
+        ii[0] += i * i;
+        qq[0] += q * q;
+        iq[0] += i * q;
+        out[2 * n] = i;
+        out[2 * n + 1] = gain * (q - cross * i);
+    }
+
+    moments[0] = moments[1] = moments[2] = 0;
+    for (k = 0; k < LANES; k++) {
+        moments[0] += ii[k];
+        moments[1] += qq[k];
+        moments[2] += iq[k];
+    }
+    moments[0] /= samples;
+    moments[1] /= samples;
+    moments[2] /= samples;
+}
+
+// Gram-Schmidt: Q less its projection onto I is orthogonal to I, and has the power of Q less the part that was correlated
+static void estimate_imbalance(iqcorrect_t * corrector) {
+    corrector->cross = 0;
+    corrector->gain = 1;
+    if (corrector->ii < MIN_POWER) return;
+
+    double cross = corrector->iq / corrector->ii;
+    double orthogonal = corrector->qq - cross * corrector->iq;
+    if (orthogonal < MIN_POWER) return;
+
+    corrector->cross = (float) cross;
+    corrector->gain = (float) sqrt(corrector->ii / orthogonal);
+}
+
+void iqcorrect_process(iqcorrect_t * corrector, const uint8_t * iq, uint32_t samples, float * out) {
+    if (samples == 0) return;
+
+    double mean[2];
+    convert(iq, samples, out, mean);
+    double weight = corrector->primed ? block_weight(samples, IQCORRECT_DC_SAMPLES) : 1;
+    corrector->dc[0] += weight * (mean[0] - corrector->dc[0]);
+    corrector->dc[1] += weight * (mean[1] - corrector->dc[1]);
+
+    double moments[3];
+    correct(corrector, out, samples, moments);
+    weight = corrector->primed ? block_weight(samples, IQCORRECT_IMBALANCE_SAMPLES) : 1;
+    corrector->ii += weight * (moments[0] - corrector->ii);
+    corrector->qq += weight * (moments[1] - corrector->qq);
+    corrector->iq += weight * (moments[2] - corrector->iq);
+    estimate_imbalance(corrector);
+    corrector->primed = 1;
+}
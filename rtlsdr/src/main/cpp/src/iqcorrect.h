@@ -0,0 +1,51 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef IQCORRECT_H_
+#define IQCORRECT_H_
+
+#include <stdint.h>
+
+// time constants of the estimates in samples, the DC follows a retune within a few dozen ms at 2.4 Msps
+// while the imbalance, which only depends on the tuner, is averaged over about half a second
+#define IQCORRECT_DC_SAMPLES (65536)
+#define IQCORRECT_IMBALANCE_SAMPLES (1048576)
+
+// Removes the DC offset and the gain and phase imbalance between I and Q of interleaved 8 bit unsigned IQ.
+// The DC is tracked with a single pole low pass filter that moves once per block by as much as it would have sample
+// by sample. The imbalance is estimated the same way from the powers of I and Q and their correlation, which should
+// be equal and zero respectively, Q is then made orthogonal to I and scaled to the same power.
+// Every loop handles four samples at a time with separate sums so that the compiler can vectorize it, and nothing is
+// allocated. Only one thread may use a corrector at a time.
+typedef struct iqcorrect {
+    int primed; // 0 until the first block set the estimates
+    double dc[2];
+    double ii, qq, iq; // mean of I squared, Q squared and I times Q after the DC is removed
+    float cross; // how much of I is taken out of Q
+    float gain; // what Q is multiplied by then
+} iqcorrect_t;
+
+void iqcorrect_init(iqcorrect_t * corrector);
+
+// corrects samples IQ pairs into out, floats on the scale of the input minus 127.5, and updates the estimates
+// the imbalance found in a block is corrected from the next one on
+void iqcorrect_process(iqcorrect_t * corrector, const uint8_t * iq, uint32_t samples, float * out);
+
+#endif
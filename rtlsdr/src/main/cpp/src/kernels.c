@@ -0,0 +1,109 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <pthread.h>
+#include "kernels.h"
+
+// the most sets a CPU can run, the reference included
+#define MAX_VARIANTS (4)
+
+static void scalar_u8_to_s8(const uint8_t * in, uint32_t count, uint8_t * out) {
+    uint32_t i;
+    for (i = 0; i < count; i++) out[i] = in[i] ^ 0x80;
+}
+
+static void scalar_u8_to_s16(const uint8_t * in, uint32_t count, int16_t * out) {
+    uint32_t i;
+    for (i = 0; i < count; i++) out[i] = (int16_t) (in[i] * 256 - 32640);
+}
+
+static void scalar_u8_to_f32(const uint8_t * in, uint32_t count, float scale, float * out) {
+    uint32_t i;
+    for (i = 0; i < count; i++) out[i] = ((float) in[i] - 127.5f) * scale;
+}
+
+static void scalar_mix(float * iq, uint32_t samples, const float * table, float re, float im) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        const float w_re = table[2 * n] * re - table[2 * n + 1] * im;
+        const float w_im = table[2 * n] * im + table[2 * n + 1] * re;
+        const float i = iq[2 * n], q = iq[2 * n + 1];
+        iq[2 * n] = i * w_re - q * w_im;
+        iq[2 * n + 1] = i * w_im + q * w_re;
+    }
+}
+
+static void scalar_fir(const float * iq, uint32_t outputs, const float * taps, int count, float * out) {
+    uint32_t n;
+    for (n = 0; n < outputs; n++) {
+        const float * x = iq + 2 * n;
+        float i = 0, q = 0;
+        int k;
+        for (k = 0; k < count; k++) {
+            i += taps[k] * x[2 * k];
+            q += taps[k] * x[2 * k + 1];
+        }
+        out[2 * n] = i;
+        out[2 * n + 1] = q;
+    }
+}
+
+static void scalar_magnitude_squared_add(const float * iq, uint32_t samples, float * power) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) power[n] += iq[2 * n] * iq[2 * n] + iq[2 * n + 1] * iq[2 * n + 1];
+}
+
+static const kernels_t SCALAR = {
+        "scalar",
+        scalar_u8_to_s8,
+        scalar_u8_to_s16,
+        scalar_u8_to_f32,
+        scalar_mix,
+        scalar_fir,
+        scalar_magnitude_squared_add
+};
+
+static pthread_once_t probed = PTHREAD_ONCE_INIT;
+static const kernels_t * variants[MAX_VARIANTS + 1];
+
+// the wider sets come later, so the last one found is the fastest
+static void probe(void) {
+    const kernels_t * candidates[MAX_VARIANTS] = { &SCALAR, kernels_sse2(), kernels_avx2(), kernels_neon() };
+    int found = 0;
+    int i;
+    for (i = 0; i < MAX_VARIANTS; i++) {
+        if (candidates[i] != NULL) variants[found++] = candidates[i];
+    }
+    variants[found] = NULL;
+}
+
+const kernels_t * kernels_variant(int index) {
+    pthread_once(&probed, probe);
+    int i;
+    for (i = 0; i < index && variants[i] != NULL; i++);
+    return index < 0 ? NULL : variants[i];
+}
+
+const kernels_t * kernels_get(void) {
+    pthread_once(&probed, probe);
+    int i;
+    for (i = 0; variants[i + 1] != NULL; i++);
+    return variants[i];
+}
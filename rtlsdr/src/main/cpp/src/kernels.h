@@ -0,0 +1,61 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef KERNELS_H_
+#define KERNELS_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+// The loops every sample goes through, written once in plain C as the reference and again with the vector instructions
+// of each CPU family. kernels_get picks the widest set the CPU runs, so the same library is fast on any device of an ABI.
+// Complex samples are float I and Q interleaved, counts are in samples, nothing has to be aligned, input and output
+// must not overlap unless a kernel works in place. Every set gives the same results as the reference apart from the
+// order floats are added in.
+typedef struct kernels {
+    const char * name;
+
+    // out[i] = in[i] - 128 as a signed byte, for count bytes
+    void (* u8_to_s8)(const uint8_t * in, uint32_t count, uint8_t * out);
+    // out[i] = (in[i] - 127.5) * 256, for count bytes, which is exact
+    void (* u8_to_s16)(const uint8_t * in, uint32_t count, int16_t * out);
+    // out[i] = (in[i] - 127.5) * scale, for count bytes
+    void (* u8_to_f32)(const uint8_t * in, uint32_t count, float scale, float * out);
+
+    // iq[n] *= table[n] * (re + j im) in place, for samples complex samples, the table holds as many
+    void (* mix)(float * iq, uint32_t samples, const float * table, float re, float im);
+    // out[n] = the sum over k of taps[k] * iq[n + k] for outputs complex samples, iq holds outputs + count - 1 samples
+    void (* fir)(const float * iq, uint32_t outputs, const float * taps, int count, float * out);
+    // power[n] += |iq[n]|^2, for samples complex samples
+    void (* magnitude_squared_add)(const float * iq, uint32_t samples, float * power);
+} kernels_t;
+
+// the fastest set this CPU runs, found out on the first call
+const kernels_t * kernels_get(void);
+
+// every set this CPU runs, index 0 is the plain C reference, NULL past the last one
+const kernels_t * kernels_variant(int index);
+
+// the sets for each CPU family, in kernels_x86.c and kernels_neon.c, NULL if the CPU doesn't run them
+const kernels_t * kernels_sse2(void);
+const kernels_t * kernels_avx2(void);
+const kernels_t * kernels_neon(void);
+
+#endif
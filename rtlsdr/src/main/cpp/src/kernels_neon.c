@@ -0,0 +1,161 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "kernels.h"
+
+// 64 bit ARM always has NEON, 32 bit ARM builds use it when the compiler is allowed to and the CPU says it has it
+#if defined(__aarch64__) || (defined(__arm__) && defined(__ARM_NEON))
+
+#include <arm_neon.h>
+#if defined(__arm__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+
+static void neon_u8_to_s8(const uint8_t * in, uint32_t count, uint8_t * out) {
+    const uint8x16_t flip = vdupq_n_u8(0x80);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) vst1q_u8(out + i, veorq_u8(vld1q_u8(in + i), flip));
+    for (; i < count; i++) out[i] = in[i] ^ 0x80;
+}
+
+static void neon_u8_to_s16(const uint8_t * in, uint32_t count, int16_t * out) {
+    const int16x8_t offset = vdupq_n_s16(32640);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const uint8x16_t bytes = vld1q_u8(in + i);
+        // widening by 8 bits multiplies by 256 on the way
+        vst1q_s16(out + i, vsubq_s16(vreinterpretq_s16_u16(vshll_n_u8(vget_low_u8(bytes), 8)), offset));
+        vst1q_s16(out + i + 8, vsubq_s16(vreinterpretq_s16_u16(vshll_n_u8(vget_high_u8(bytes), 8)), offset));
+    }
+    for (; i < count; i++) out[i] = (int16_t) (in[i] * 256 - 32640);
+}
+
+static void neon_u8_to_f32(const uint8_t * in, uint32_t count, float scale, float * out) {
+    const float32x4_t bias = vdupq_n_f32(127.5f);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const uint8x16_t bytes = vld1q_u8(in + i);
+        const uint16x8_t low = vmovl_u8(vget_low_u8(bytes));
+        const uint16x8_t high = vmovl_u8(vget_high_u8(bytes));
+        const uint32x4_t words[4] = {
+                vmovl_u16(vget_low_u16(low)), vmovl_u16(vget_high_u16(low)),
+                vmovl_u16(vget_low_u16(high)), vmovl_u16(vget_high_u16(high))
+        };
+        int k;
+        for (k = 0; k < 4; k++) {
+            vst1q_f32(out + i + 4 * k, vmulq_n_f32(vsubq_f32(vcvtq_f32_u32(words[k]), bias), scale));
+        }
+    }
+    for (; i < count; i++) out[i] = ((float) in[i] - 127.5f) * scale;
+}
+
+// the interleaving loads and stores split I and Q apart, so the complex products are plain vector arithmetic
+static void neon_mix(float * iq, uint32_t samples, const float * table, float re, float im) {
+    uint32_t n = 0;
+    for (; n + 4 <= samples; n += 4) {
+        const float32x4x2_t t = vld2q_f32(table + 2 * n);
+        const float32x4_t w_re = vmlsq_n_f32(vmulq_n_f32(t.val[0], re), t.val[1], im);
+        const float32x4_t w_im = vmlaq_n_f32(vmulq_n_f32(t.val[1], re), t.val[0], im);
+        const float32x4x2_t x = vld2q_f32(iq + 2 * n);
+        float32x4x2_t y;
+        y.val[0] = vmlsq_f32(vmulq_f32(x.val[0], w_re), x.val[1], w_im);
+        y.val[1] = vmlaq_f32(vmulq_f32(x.val[0], w_im), x.val[1], w_re);
+        vst2q_f32(iq + 2 * n, y);
+    }
+    for (; n < samples; n++) {
+        const float w_re = table[2 * n] * re - table[2 * n + 1] * im;
+        const float w_im = table[2 * n] * im + table[2 * n + 1] * re;
+        const float i = iq[2 * n], q = iq[2 * n + 1];
+        iq[2 * n] = i * w_re - q * w_im;
+        iq[2 * n + 1] = i * w_im + q * w_re;
+    }
+}
+
+// the taps are real, so I and Q of neighbouring outputs are filtered together, a vector holds two outputs
+static void neon_fir(const float * iq, uint32_t outputs, const float * taps, int count, float * out) {
+    uint32_t n = 0;
+    int k;
+    for (; n + 8 <= outputs; n += 8) {
+        const float * x = iq + 2 * n;
+        float32x4_t a0 = vdupq_n_f32(0), a1 = vdupq_n_f32(0), a2 = vdupq_n_f32(0), a3 = vdupq_n_f32(0);
+        for (k = 0; k < count; k++) {
+            const float tap = taps[k];
+            const float * xk = x + 2 * k;
+            a0 = vmlaq_n_f32(a0, vld1q_f32(xk), tap);
+            a1 = vmlaq_n_f32(a1, vld1q_f32(xk + 4), tap);
+            a2 = vmlaq_n_f32(a2, vld1q_f32(xk + 8), tap);
+            a3 = vmlaq_n_f32(a3, vld1q_f32(xk + 12), tap);
+        }
+        vst1q_f32(out + 2 * n, a0);
+        vst1q_f32(out + 2 * n + 4, a1);
+        vst1q_f32(out + 2 * n + 8, a2);
+        vst1q_f32(out + 2 * n + 12, a3);
+    }
+    for (; n + 2 <= outputs; n += 2) {
+        float32x4_t a = vdupq_n_f32(0);
+        for (k = 0; k < count; k++) a = vmlaq_n_f32(a, vld1q_f32(iq + 2 * (n + k)), taps[k]);
+        vst1q_f32(out + 2 * n, a);
+    }
+    for (; n < outputs; n++) {
+        float i = 0, q = 0;
+        for (k = 0; k < count; k++) {
+            i += taps[k] * iq[2 * (n + k)];
+            q += taps[k] * iq[2 * (n + k) + 1];
+        }
+        out[2 * n] = i;
+        out[2 * n + 1] = q;
+    }
+}
+
+static void neon_magnitude_squared_add(const float * iq, uint32_t samples, float * power) {
+    uint32_t n = 0;
+    for (; n + 4 <= samples; n += 4) {
+        const float32x4x2_t x = vld2q_f32(iq + 2 * n);
+        const float32x4_t magnitude = vmlaq_f32(vmulq_f32(x.val[0], x.val[0]), x.val[1], x.val[1]);
+        vst1q_f32(power + n, vaddq_f32(vld1q_f32(power + n), magnitude));
+    }
+    for (; n < samples; n++) power[n] += iq[2 * n] * iq[2 * n] + iq[2 * n + 1] * iq[2 * n + 1];
+}
+
+static const kernels_t NEON_KERNELS = {
+        "neon",
+        neon_u8_to_s8,
+        neon_u8_to_s16,
+        neon_u8_to_f32,
+        neon_mix,
+        neon_fir,
+        neon_magnitude_squared_add
+};
+
+const kernels_t * kernels_neon(void) {
+#if defined(__arm__)
+    if ((getauxval(AT_HWCAP) & HWCAP_NEON) == 0) return NULL;
+#endif
+    return &NEON_KERNELS;
+}
+
+#else
+
+const kernels_t * kernels_neon(void) {
+    return NULL;
+}
+
+#endif
@@ -0,0 +1,284 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "kernels.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+
+#include <cpuid.h>
+#include <immintrin.h>
+
+// every function is compiled for the instructions it uses, the rest of the library keeps running on any x86 CPU
+#define SSE2 __attribute__((target("sse2")))
+#define AVX2 __attribute__((target("avx2")))
+
+SSE2 static void sse2_u8_to_s8(const uint8_t * in, uint32_t count, uint8_t * out) {
+    const __m128i flip = _mm_set1_epi8((char) 0x80);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        _mm_storeu_si128((__m128i *) (out + i), _mm_xor_si128(_mm_loadu_si128((const __m128i *) (in + i)), flip));
+    }
+    for (; i < count; i++) out[i] = in[i] ^ 0x80;
+}
+
+SSE2 static void sse2_u8_to_s16(const uint8_t * in, uint32_t count, int16_t * out) {
+    const __m128i zero = _mm_setzero_si128();
+    const __m128i offset = _mm_set1_epi16(32640);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const __m128i bytes = _mm_loadu_si128((const __m128i *) (in + i));
+        // a byte in the upper half of a 16 bit lane is already multiplied by 256
+        _mm_storeu_si128((__m128i *) (out + i), _mm_sub_epi16(_mm_unpacklo_epi8(zero, bytes), offset));
+        _mm_storeu_si128((__m128i *) (out + i + 8), _mm_sub_epi16(_mm_unpackhi_epi8(zero, bytes), offset));
+    }
+    for (; i < count; i++) out[i] = (int16_t) (in[i] * 256 - 32640);
+}
+
+SSE2 static void sse2_u8_to_f32(const uint8_t * in, uint32_t count, float scale, float * out) {
+    const __m128i zero = _mm_setzero_si128();
+    const __m128 bias = _mm_set1_ps(127.5f);
+    const __m128 factor = _mm_set1_ps(scale);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const __m128i bytes = _mm_loadu_si128((const __m128i *) (in + i));
+        const __m128i low = _mm_unpacklo_epi8(bytes, zero);
+        const __m128i high = _mm_unpackhi_epi8(bytes, zero);
+        const __m128i words[4] = {
+                _mm_unpacklo_epi16(low, zero), _mm_unpackhi_epi16(low, zero),
+                _mm_unpacklo_epi16(high, zero), _mm_unpackhi_epi16(high, zero)
+        };
+        int k;
+        for (k = 0; k < 4; k++) {
+            _mm_storeu_ps(out + i + 4 * k, _mm_mul_ps(_mm_sub_ps(_mm_cvtepi32_ps(words[k]), bias), factor));
+        }
+    }
+    for (; i < count; i++) out[i] = ((float) in[i] - 127.5f) * scale;
+}
+
+// a times b for the two complex numbers in each, b_re and b_im hold the parts of b in both places of a number
+// sign flips the real places, SSE2 has no instruction that subtracts there and adds in the imaginary places
+SSE2 static inline __m128 sse2_complex_multiply(__m128 a, __m128 b_re, __m128 b_im, __m128 sign) {
+    const __m128 a_swapped = _mm_shuffle_ps(a, a, _MM_SHUFFLE(2, 3, 0, 1));
+    return _mm_add_ps(_mm_mul_ps(a, b_re), _mm_xor_ps(_mm_mul_ps(a_swapped, b_im), sign));
+}
+
+SSE2 static void sse2_mix(float * iq, uint32_t samples, const float * table, float re, float im) {
+    const __m128 sign = _mm_castsi128_ps(_mm_set_epi32(0, (int) 0x80000000, 0, (int) 0x80000000));
+    const __m128 p_re = _mm_set1_ps(re);
+    const __m128 p_im = _mm_set1_ps(im);
+    uint32_t n = 0;
+    for (; n + 2 <= samples; n += 2) {
+        const __m128 w = sse2_complex_multiply(_mm_loadu_ps(table + 2 * n), p_re, p_im, sign);
+        const __m128 w_re = _mm_shuffle_ps(w, w, _MM_SHUFFLE(2, 2, 0, 0));
+        const __m128 w_im = _mm_shuffle_ps(w, w, _MM_SHUFFLE(3, 3, 1, 1));
+        _mm_storeu_ps(iq + 2 * n, sse2_complex_multiply(_mm_loadu_ps(iq + 2 * n), w_re, w_im, sign));
+    }
+    for (; n < samples; n++) {
+        const float w_re = table[2 * n] * re - table[2 * n + 1] * im;
+        const float w_im = table[2 * n] * im + table[2 * n + 1] * re;
+        const float i = iq[2 * n], q = iq[2 * n + 1];
+        iq[2 * n] = i * w_re - q * w_im;
+        iq[2 * n + 1] = i * w_im + q * w_re;
+    }
+}
+
+// the taps are real, so I and Q of neighbouring outputs are filtered together, a vector holds two outputs
+SSE2 static void sse2_fir(const float * iq, uint32_t outputs, const float * taps, int count, float * out) {
+    uint32_t n = 0;
+    int k;
+    for (; n + 8 <= outputs; n += 8) {
+        const float * x = iq + 2 * n;
+        __m128 a0 = _mm_setzero_ps(), a1 = _mm_setzero_ps(), a2 = _mm_setzero_ps(), a3 = _mm_setzero_ps();
+        for (k = 0; k < count; k++) {
+            const __m128 tap = _mm_set1_ps(taps[k]);
+            const float * xk = x + 2 * k;
+            a0 = _mm_add_ps(a0, _mm_mul_ps(tap, _mm_loadu_ps(xk)));
+            a1 = _mm_add_ps(a1, _mm_mul_ps(tap, _mm_loadu_ps(xk + 4)));
+            a2 = _mm_add_ps(a2, _mm_mul_ps(tap, _mm_loadu_ps(xk + 8)));
+            a3 = _mm_add_ps(a3, _mm_mul_ps(tap, _mm_loadu_ps(xk + 12)));
+        }
+        _mm_storeu_ps(out + 2 * n, a0);
+        _mm_storeu_ps(out + 2 * n + 4, a1);
+        _mm_storeu_ps(out + 2 * n + 8, a2);
+        _mm_storeu_ps(out + 2 * n + 12, a3);
+    }
+    for (; n + 2 <= outputs; n += 2) {
+        __m128 a = _mm_setzero_ps();
+        for (k = 0; k < count; k++) a = _mm_add_ps(a, _mm_mul_ps(_mm_set1_ps(taps[k]), _mm_loadu_ps(iq + 2 * (n + k))));
+        _mm_storeu_ps(out + 2 * n, a);
+    }
+    for (; n < outputs; n++) {
+        float i = 0, q = 0;
+        for (k = 0; k < count; k++) {
+            i += taps[k] * iq[2 * (n + k)];
+            q += taps[k] * iq[2 * (n + k) + 1];
+        }
+        out[2 * n] = i;
+        out[2 * n + 1] = q;
+    }
+}
+
+SSE2 static void sse2_magnitude_squared_add(const float * iq, uint32_t samples, float * power) {
+    uint32_t n = 0;
+    for (; n + 4 <= samples; n += 4) {
+        const __m128 a = _mm_loadu_ps(iq + 2 * n);
+        const __m128 b = _mm_loadu_ps(iq + 2 * n + 4);
+        const __m128 a2 = _mm_mul_ps(a, a);
+        const __m128 b2 = _mm_mul_ps(b, b);
+        const __m128 re2 = _mm_shuffle_ps(a2, b2, _MM_SHUFFLE(2, 0, 2, 0));
+        const __m128 im2 = _mm_shuffle_ps(a2, b2, _MM_SHUFFLE(3, 1, 3, 1));
+        _mm_storeu_ps(power + n, _mm_add_ps(_mm_loadu_ps(power + n), _mm_add_ps(re2, im2)));
+    }
+    for (; n < samples; n++) power[n] += iq[2 * n] * iq[2 * n] + iq[2 * n + 1] * iq[2 * n + 1];
+}
+
+// the AVX2 versions leave what doesn't fill a whole vector to the SSE2 ones, every CPU with AVX2 has SSE2
+
+AVX2 static void avx2_u8_to_s8(const uint8_t * in, uint32_t count, uint8_t * out) {
+    const __m256i flip = _mm256_set1_epi8((char) 0x80);
+    uint32_t i = 0;
+    for (; i + 32 <= count; i += 32) {
+        _mm256_storeu_si256((__m256i *) (out + i), _mm256_xor_si256(_mm256_loadu_si256((const __m256i *) (in + i)), flip));
+    }
+    sse2_u8_to_s8(in + i, count - i, out + i);
+}
+
+AVX2 static void avx2_u8_to_s16(const uint8_t * in, uint32_t count, int16_t * out) {
+    const __m256i offset = _mm256_set1_epi16(32640);
+    uint32_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const __m256i words = _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i *) (in + i)));
+        _mm256_storeu_si256((__m256i *) (out + i), _mm256_sub_epi16(_mm256_slli_epi16(words, 8), offset));
+    }
+    sse2_u8_to_s16(in + i, count - i, out + i);
+}
+
+AVX2 static void avx2_u8_to_f32(const uint8_t * in, uint32_t count, float scale, float * out) {
+    const __m256 bias = _mm256_set1_ps(127.5f);
+    const __m256 factor = _mm256_set1_ps(scale);
+    uint32_t i = 0;
+    for (; i + 8 <= count; i += 8) {
+        const __m256i words = _mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i *) (in + i)));
+        _mm256_storeu_ps(out + i, _mm256_mul_ps(_mm256_sub_ps(_mm256_cvtepi32_ps(words), bias), factor));
+    }
+    sse2_u8_to_f32(in + i, count - i, scale, out + i);
+}
+
+// addsub subtracts in the real places and adds in the imaginary ones, which is just what a complex product needs
+AVX2 static inline __m256 avx2_complex_multiply(__m256 a, __m256 b_re, __m256 b_im) {
+    const __m256 a_swapped = _mm256_permute_ps(a, _MM_SHUFFLE(2, 3, 0, 1));
+    return _mm256_addsub_ps(_mm256_mul_ps(a, b_re), _mm256_mul_ps(a_swapped, b_im));
+}
+
+AVX2 static void avx2_mix(float * iq, uint32_t samples, const float * table, float re, float im) {
+    const __m256 p_re = _mm256_set1_ps(re);
+    const __m256 p_im = _mm256_set1_ps(im);
+    uint32_t n = 0;
+    for (; n + 4 <= samples; n += 4) {
+        const __m256 w = avx2_complex_multiply(_mm256_loadu_ps(table + 2 * n), p_re, p_im);
+        _mm256_storeu_ps(iq + 2 * n, avx2_complex_multiply(_mm256_loadu_ps(iq + 2 * n), _mm256_moveldup_ps(w), _mm256_movehdup_ps(w)));
+    }
+    sse2_mix(iq + 2 * n, samples - n, table + 2 * n, re, im);
+}
+
+AVX2 static void avx2_fir(const float * iq, uint32_t outputs, const float * taps, int count, float * out) {
+    uint32_t n = 0;
+    int k;
+    for (; n + 16 <= outputs; n += 16) {
+        const float * x = iq + 2 * n;
+        __m256 a0 = _mm256_setzero_ps(), a1 = _mm256_setzero_ps(), a2 = _mm256_setzero_ps(), a3 = _mm256_setzero_ps();
+        for (k = 0; k < count; k++) {
+            const __m256 tap = _mm256_set1_ps(taps[k]);
+            const float * xk = x + 2 * k;
+            a0 = _mm256_add_ps(a0, _mm256_mul_ps(tap, _mm256_loadu_ps(xk)));
+            a1 = _mm256_add_ps(a1, _mm256_mul_ps(tap, _mm256_loadu_ps(xk + 8)));
+            a2 = _mm256_add_ps(a2, _mm256_mul_ps(tap, _mm256_loadu_ps(xk + 16)));
+            a3 = _mm256_add_ps(a3, _mm256_mul_ps(tap, _mm256_loadu_ps(xk + 24)));
+        }
+        _mm256_storeu_ps(out + 2 * n, a0);
+        _mm256_storeu_ps(out + 2 * n + 8, a1);
+        _mm256_storeu_ps(out + 2 * n + 16, a2);
+        _mm256_storeu_ps(out + 2 * n + 24, a3);
+    }
+    sse2_fir(iq + 2 * n, outputs - n, taps, count, out + 2 * n);
+}
+
+AVX2 static void avx2_magnitude_squared_add(const float * iq, uint32_t samples, float * power) {
+    uint32_t n = 0;
+    for (; n + 8 <= samples; n += 8) {
+        const __m256 a = _mm256_loadu_ps(iq + 2 * n);
+        const __m256 b = _mm256_loadu_ps(iq + 2 * n + 8);
+        // hadd works within each 128 bit half, which leaves the pairs of samples 0 1, 4 5, 2 3, 6 7
+        const __m256 pairs = _mm256_hadd_ps(_mm256_mul_ps(a, a), _mm256_mul_ps(b, b));
+        const __m256 sums = _mm256_castpd_ps(_mm256_permute4x64_pd(_mm256_castps_pd(pairs), _MM_SHUFFLE(3, 1, 2, 0)));
+        _mm256_storeu_ps(power + n, _mm256_add_ps(_mm256_loadu_ps(power + n), sums));
+    }
+    sse2_magnitude_squared_add(iq + 2 * n, samples - n, power + n);
+}
+
+static const kernels_t SSE2_KERNELS = {
+        "sse2",
+        sse2_u8_to_s8,
+        sse2_u8_to_s16,
+        sse2_u8_to_f32,
+        sse2_mix,
+        sse2_fir,
+        sse2_magnitude_squared_add
+};
+
+static const kernels_t AVX2_KERNELS = {
+        "avx2",
+        avx2_u8_to_s8,
+        avx2_u8_to_s16,
+        avx2_u8_to_f32,
+        avx2_mix,
+        avx2_fir,
+        avx2_magnitude_squared_add
+};
+
+const kernels_t * kernels_sse2(void) {
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx) || (edx & bit_SSE2) == 0) return NULL;
+    return &SSE2_KERNELS;
+}
+
+const kernels_t * kernels_avx2(void) {
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx) || (ecx & bit_OSXSAVE) == 0 || (ecx & bit_AVX) == 0) return NULL;
+    // the system also has to save the upper halves of the registers when it switches threads
+    uint32_t xcr0_low, xcr0_high;
+    __asm__ volatile ("xgetbv" : "=a" (xcr0_low), "=d" (xcr0_high) : "c" (0));
+    if ((xcr0_low & 6) != 6) return NULL;
+    if (__get_cpuid_max(0, NULL) < 7) return NULL;
+    __cpuid_count(7, 0, eax, ebx, ecx, edx);
+    return (ebx & bit_AVX2) != 0 ? &AVX2_KERNELS : NULL;
+}
+
+#else
+
+const kernels_t * kernels_sse2(void) {
+    return NULL;
+}
+
+const kernels_t * kernels_avx2(void) {
+    return NULL;
+}
+
+#endif
@@ -37,6 +37,9 @@
 
 #define RUN_OR_GOTO(command, label) RUN_OR(command, goto label);
 
+// USB transfer buffers that can be swapped in while others are lent to the tcp clients
+#define LEND_SPARE_BUFFERS (8)
+
 typedef struct rtlsdr_android {
     sdrtcp_t tcpserv;
     rtlsdr_dev_t * rtl_dev;
@@ -100,7 +103,17 @@ static jint SUPPORTED_COMMANDS[] = {
         TCP_SET_TUNER_XTAL,
         TCP_SET_TUNER_GAIN_BY_ID,
         TCP_ANDROID_EXIT,
-        TCP_ANDROID_GAIN_BY_PERCENTAGE
+        TCP_ANDROID_GAIN_BY_PERCENTAGE,
+        TCP_ANDROID_ENABLE_16_BIT_SIGNED,
+        TCP_ANDROID_SET_CHANNEL_OFFSET,
+        TCP_ANDROID_SET_CHANNEL_DECIMATION,
+        TCP_ANDROID_SELECT_CHANNELIZER_CHANNEL,
+        TCP_ANDROID_CHANNELIZER_ALL,
+        TCP_ANDROID_SPECTRUM,
+        TCP_ANDROID_SQUELCH_THRESHOLD,
+        TCP_ANDROID_SQUELCH_HOLD,
+        TCP_ANDROID_SQUELCH_PREROLL,
+        TCP_ANDROID_COMPRESSION
 };
 
 void tcpCommandCallback(sdrtcp_t * tcpserv, void * pointer, sdr_tcp_command_t * cmd) {
@@ -113,7 +126,9 @@ void tcpCommandCallback(sdrtcp_t * tcpserv, void * pointer, sdr_tcp_command_t *
             break;
         case TCP_SET_SAMPLE_RATE:
             LOGI("set sample rate %ld", cmd->parameter);
-            rtlsdr_set_sample_rate(dev->rtl_dev, cmd->parameter);
+            if (rtlsdr_set_sample_rate(dev->rtl_dev, cmd->parameter) == 0) {
+                sdrtcp_set_sample_rate(tcpserv, rtlsdr_get_sample_rate(dev->rtl_dev));
+            }
             break;
         case TCP_SET_GAIN_MODE:
             LOGI("set gain mode %ld", cmd->parameter);
@@ -184,6 +199,23 @@ void rtlsdr_callback(unsigned char *buf, uint32_t len, void *pointer) {
     sdrtcp_feed(&dev->tcpserv, buf, len / 2);
 }
 
+static void rtlsdr_lent_buffer_release(unsigned char *buf, void *device) {
+    rtlsdr_return_buffer((rtlsdr_dev_t *) device, buf);
+}
+
+int rtlsdr_lend_callback(unsigned char *buf, uint32_t len, int can_keep, void *pointer) {
+    WITH_DEV(dev);
+    if (buf == NULL) {
+        // streaming is over, the clients have to let go of the lent buffers
+        sdrtcp_stop_serving_client(&dev->tcpserv);
+        return 0;
+    }
+    if (dev->rtl_dev == NULL) return 0;
+    if (can_keep && sdrtcp_feed_lent(&dev->tcpserv, buf, len / 2, rtlsdr_lent_buffer_release, (void *) dev->rtl_dev)) return 1;
+    sdrtcp_feed(&dev->tcpserv, buf, len / 2);
+    return 0;
+}
+
 JNIEXPORT jboolean JNICALL
 Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_openAsync(
         JNIEnv *env, jobject instance, jlong pointer, jint fd, jint gain, jlong samplingrate,
@@ -247,6 +279,7 @@ Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_openAsync(
     if (!sdrtcp_open_socket(&dev->tcpserv, address, port, "RTL0", rtlsdr_get_tuner_type(device), (uint32_t) rtlsdr_get_tuner_gains(device, NULL))) {
         RUN_OR(EXIT_WRONG_ARGS, goto err);
     }
+    sdrtcp_set_sample_rate(&dev->tcpserv, rtlsdr_get_sample_rate(device));
 
     dev->rtl_dev = device;
     sdrtcp_serve_client_async(&dev->tcpserv, (void *) dev, tcpCommandCallback, tcpClosedCallback);
@@ -254,7 +287,11 @@ Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_openAsync(
     int succesful = 1;
     EXCEPT_DO((*env)->CallVoidMethod(env, instance, announceOnOpen), succesful  = 0);
 
-    int read_result = rtlsdr_read_async(device, rtlsdr_callback, (void *) dev, 0, 0);
+    // 0 keeps the default USB buffer size, the server asks for smaller ones when latency matters
+    uint32_t buf_len = sdrtcp_preferred_feed_bytes(&dev->tcpserv, rtlsdr_get_sample_rate(device));
+    int read_result = dev->tcpserv.zero_copy ?
+            rtlsdr_read_async_lend(device, rtlsdr_lend_callback, (void *) dev, 0, buf_len, LEND_SPARE_BUFFERS) :
+            rtlsdr_read_async(device, rtlsdr_callback, (void *) dev, 0, buf_len);
     if (read_result) {
         LOGI("rtlsdr_read_async failed: %d", read_result);
         succesful = 0;
@@ -306,6 +343,32 @@ Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_close__J(JNIEnv *env, jobject insta
     sdrtcp_stop_serving_client(&dev->tcpserv);
 }
 
+JNIEXPORT jboolean JNICALL
+Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_setServerOption(JNIEnv *env, jobject instance, jlong pointer,
+                                                             jint option, jlong value) {
+    WITH_DEV(dev);
+    return sdrtcp_set_option(&dev->tcpserv, option, value) ? ((jboolean) JNI_TRUE) : ((jboolean) JNI_FALSE);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_setUdpOutput(JNIEnv *env, jobject instance, jlong pointer,
+                                                          jstring address_, jint port) {
+    WITH_DEV(dev);
+    if (address_ == NULL) return sdrtcp_set_udp_output(&dev->tcpserv, NULL, 0) ? ((jboolean) JNI_TRUE) : ((jboolean) JNI_FALSE);
+
+    const char *address = (*env)->GetStringUTFChars(env, address_, 0);
+    int result = sdrtcp_set_udp_output(&dev->tcpserv, address, port);
+    (*env)->ReleaseStringUTFChars(env, address_, address);
+    return result ? ((jboolean) JNI_TRUE) : ((jboolean) JNI_FALSE);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_getServerMetric(JNIEnv *env, jobject instance, jlong pointer,
+                                                             jint metric) {
+    WITH_DEV(dev);
+    return (jlong) sdrtcp_get_metric(&dev->tcpserv, metric);
+}
+
 JNIEXPORT jobjectArray JNICALL Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_getSupportedCommands(JNIEnv *env, jobject instance) {
     jint * commands = (jint *) SUPPORTED_COMMANDS;
     int n_commands = sizeof(SUPPORTED_COMMANDS) / sizeof(SUPPORTED_COMMANDS[0]);
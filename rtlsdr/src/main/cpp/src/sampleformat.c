@@ -0,0 +1,88 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <string.h>
+#include "sampleformat.h"
+#include "kernels.h"
+
+int sampleformat_bytes(sample_format_t format) {
+    switch (format) {
+        case SAMPLE_FORMAT_S16: return 2 * sizeof(int16_t);
+        case SAMPLE_FORMAT_F32: return 2 * sizeof(float);
+        default: return 2 * sizeof(uint8_t);
+    }
+}
+
+const char * sampleformat_name(sample_format_t format) {
+    switch (format) {
+        case SAMPLE_FORMAT_S16: return "s16";
+        case SAMPLE_FORMAT_F32: return "f32";
+        case SAMPLE_FORMAT_S8: return "s8";
+        default: return "u8";
+    }
+}
+
+size_t sampleformat_from_u8(sample_format_t format, const uint8_t * iq, uint32_t samples, uint8_t * out) {
+    const kernels_t * kernels = kernels_get();
+    switch (format) {
+        case SAMPLE_FORMAT_S16:
+            kernels->u8_to_s16(iq, 2 * samples, (int16_t *) out);
+            break;
+        case SAMPLE_FORMAT_F32:
+            kernels->u8_to_f32(iq, 2 * samples, 1.0f / 128.0f, (float *) out);
+            break;
+        case SAMPLE_FORMAT_S8:
+            kernels->u8_to_s8(iq, 2 * samples, out);
+            break;
+        default:
+            memcpy(out, iq, 2 * samples);
+            break;
+    }
+    return (size_t) samples * sampleformat_bytes(format);
+}
+
+size_t sampleformat_from_float(sample_format_t format, const float * iq, uint32_t samples, uint8_t * out) {
+    uint32_t i;
+    switch (format) {
+        case SAMPLE_FORMAT_S16: {
+            int16_t * out16 = (int16_t *) out;
+            for (i = 0; i < 2 * samples; i++) {
+                float value = iq[i] * 256.0f;
+                out16[i] = value <= -32767.0f ? -32767 : value >= 32767.0f ? 32767 : (int16_t) (value + (value < 0 ? -0.5f : 0.5f));
+            }
+            break;
+        }
+        case SAMPLE_FORMAT_F32: {
+            float * out32 = (float *) out;
+            for (i = 0; i < 2 * samples; i++) out32[i] = iq[i] * (1.0f / 128.0f);
+            break;
+        }
+        default: {
+            // the signed bytes are the unsigned ones with the top bit flipped
+            const uint8_t flip = format == SAMPLE_FORMAT_S8 ? 0x80 : 0;
+            for (i = 0; i < 2 * samples; i++) {
+                float value = iq[i] + 128.0f;
+                out[i] = (uint8_t) ((value <= 0.0f ? 0 : value >= 255.0f ? 255 : (uint8_t) value) ^ flip);
+            }
+            break;
+        }
+    }
+    return (size_t) samples * sampleformat_bytes(format);
+}
@@ -0,0 +1,51 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SAMPLEFORMAT_H_
+#define SAMPLEFORMAT_H_
+
+#include <stdint.h>
+#include <stddef.h>
+
+// What IQ samples go out as, the values are what a client sends with TCP_ANDROID_ENABLE_16_BIT_SIGNED.
+// Float IQ inside the server is on the scale of the 8 bit input minus 127.5, every format keeps that scale so
+// that a client can switch without its levels jumping. All of them are in host byte order.
+typedef enum sample_format {
+    SAMPLE_FORMAT_U8 = 0, // unsigned bytes centred on 127.5, what rtl_tcp always sent
+    SAMPLE_FORMAT_S16 = 1, // signed 16 bit, 256 steps for every step of the 8 bit input
+    SAMPLE_FORMAT_F32 = 2, // 32 bit float, the 8 bit input divided by 128, so its full scale is just under 1
+    SAMPLE_FORMAT_S8 = 3, // signed bytes, the unsigned ones minus 128
+} sample_format_t;
+
+#define SAMPLE_FORMATS (4)
+
+// bytes of one IQ pair
+int sampleformat_bytes(sample_format_t format);
+
+const char * sampleformat_name(sample_format_t format);
+
+// converts samples IQ pairs of 8 bit unsigned IQ, returns the number of bytes written to out
+// every format holds the input exactly, so this is the same as going through float first, only faster
+size_t sampleformat_from_u8(sample_format_t format, const uint8_t * iq, uint32_t samples, uint8_t * out);
+
+// converts samples IQ pairs of float IQ, the 8 bit formats truncate and clip, s16 rounds and clips
+size_t sampleformat_from_float(sample_format_t format, const float * iq, uint32_t samples, uint8_t * out);
+
+#endif
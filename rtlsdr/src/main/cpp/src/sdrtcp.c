@@ -20,217 +20,1290 @@
 
 #include <pthread.h>
 #include <unistd.h>
+#include <fcntl.h>
+#include <time.h>
 #include <arpa/inet.h>
 #include <string.h>
+#include <stdlib.h>
 #include <errno.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/uio.h>
+#include <sys/un.h>
+#include <sys/stat.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <limits.h>
+#include <stddef.h>
+#include <endian.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <linux/errqueue.h>
+#include <linux/futex.h>
 
 
 #include "sdrtcp.h"
 #include "common.h"
 #include "extbuffer.h"
-
-#define FEED_SLEEP_IF_NOT_READY_MILLIS (500)
-
-#define POOL_MAX_ELEMENTS (5)
+#include "tcp_commands.h"
+#include "iqcompress.h"
+
+// how many buffers can wait for a single client before the sample rate is known
+#define CLIENT_MAX_QUEUED (4)
+#define CLIENT_QUEUE_TIMEOUT_MS (1000)
+// a client that doesn't take any data for this long is disconnected
+#define CLIENT_SEND_TIMEOUT_MS (5000)
+
+// the event loop wakes up at least this often to drop stalled clients and notice state changes
+#define LOOP_TIMEOUT_MS (1000)
+// epoll tokens besides the client indices
+#define EVENT_LISTEN (SDRTCP_MAX_CLIENTS)
+#define EVENT_WAKE (SDRTCP_MAX_CLIENTS + 1)
+
+// address form of unix domain sockets, unix:/path or unix:@abstract
+#define UNIX_ADDRESS_PREFIX "unix:"
+
+// datagrams handed to the kernel with a single sendmmsg
+#define UDP_BURST (16)
+// the UDP output is paced this much faster than data comes in, so that a backlog drains
+#define UDP_PACING_HEADROOM (1.1)
+// while the UDP output waits for pacing the loop wakes up this often
+#define UDP_PACING_TICK_MS (1)
+// multicast stays on the local network
+#define UDP_MULTICAST_TTL (1)
+
+// older headers don't know about MSG_ZEROCOPY or TCP_NOTSENT_LOWAT yet, the values are part of the kernel ABI
+#ifndef SO_ZEROCOPY
+#define SO_ZEROCOPY (60)
+#endif
+#ifndef MSG_ZEROCOPY
+#define MSG_ZEROCOPY (0x4000000)
+#endif
+#ifndef SO_EE_ORIGIN_ZEROCOPY
+#define SO_EE_ORIGIN_ZEROCOPY (5)
+#endif
+#ifndef SO_EE_CODE_ZEROCOPY_COPIED
+#define SO_EE_CODE_ZEROCOPY_COPIED (1)
+#endif
+#ifndef TCP_NOTSENT_LOWAT
+#define TCP_NOTSENT_LOWAT (25)
+#endif
+
+// memfd and its seals, older libc headers don't have them either
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC (0x0001U)
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING (0x0002U)
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS (1033)
+#endif
+#ifndef F_SEAL_SEAL
+#define F_SEAL_SEAL (0x0001)
+#endif
+#ifndef F_SEAL_SHRINK
+#define F_SEAL_SHRINK (0x0002)
+#endif
+#ifndef F_SEAL_GROW
+#define F_SEAL_GROW (0x0004)
+#endif
+#ifndef F_SEAL_FUTURE_WRITE
+#define F_SEAL_FUTURE_WRITE (0x0010)
+#endif
 
 #define STAGE_UNINITIALIZED (0)
 #define STAGE_INITIALIZED (1)
 #define STAGE_SOCKET_OPEN (2)
-#define STAGE_CLIENT_OPEN (3)
 #define STAGE_CLIENT_OPEN_STARTED_ASYNC (4)
 #define STAGE_CLIENT_SERVING (5)
 #define STAGE_NEEDS_STOPPING (6)
 
+#define CLIENT_FREE (0)
+#define CLIENT_SERVING (1)
+#define CLIENT_NEEDS_STOPPING (2)
+
 #define RETURN_FAILURE { sdrtcp_cleanup(obj); return 0; }
 #define RETURN_SUCCESS { return 1; }
 #define RETURN_AND_CLOSE { sdrtcp_cleanup(obj); return; }
 
-typedef struct {
-    char magic[4];
-    uint32_t dongleType;
-    uint32_t gainsCount;
-} dongle_info_t;
+static void shared_ring_close(sdrtcp_t * obj);
 
 static void sdrtcp_cleanup(sdrtcp_t * obj) {
     pthread_mutex_lock(&obj->state_locker);
     if (obj->state != STAGE_UNINITIALIZED) {
-        obj->state = STAGE_UNINITIALIZED;
-
         LOGI("SdrTcp: Closing from state %d", obj->state);
 
-        pool_free(&obj->workpool);
         if (obj->state != STAGE_INITIALIZED && obj->listen_socket != -1) {
             close(obj->listen_socket);
         }
+        if (obj->udp.socket != -1) {
+            close(obj->udp.socket);
+            obj->udp.socket = -1;
+        }
+        if (obj->unix_path[0] != 0) {
+            unlink(obj->unix_path);
+            obj->unix_path[0] = 0;
+        }
+        shared_ring_close(obj);
+        obj->state = STAGE_UNINITIALIZED;
+
+        if (obj->buffers != NULL) {
+            int i;
+            for (i = 0; i < obj->buffers_count; i++) {
+                extbuffer_free(&obj->buffers[i].data);
+            }
+            free(obj->buffers);
+            obj->buffers = NULL;
+            obj->buffers_count = 0;
+        }
 
-        obj->client_socket = -1;
         obj->listen_socket = -1;
     }
     pthread_mutex_unlock(&obj->state_locker);
 }
 
-static void commandListener(void *arg) {
-    sdrtcp_t * obj = (sdrtcp_t *) arg;
+static int64_t monotonic_us(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000L;
+}
 
-    size_t left = 0;
-    fd_set readfds;
-    sdr_tcp_command_t cmd={0, 0};
-    struct timeval tv= {1, 0};
-
-    while(obj->state == STAGE_CLIENT_SERVING) {
-        left = sizeof(cmd);
-        while (left > 0 && obj->state == STAGE_CLIENT_SERVING) {
-            FD_ZERO(&readfds);
-            FD_SET(obj->client_socket, &readfds);
-            tv.tv_sec = 1;
-            tv.tv_usec = 0;
-            int r = 0;
-
-            if (obj->state == STAGE_CLIENT_SERVING) r = select(obj->client_socket + 1, &readfds, NULL, NULL, &tv);
-
-            if (obj->state == STAGE_CLIENT_SERVING && r) {
-                ssize_t received = recv(obj->client_socket, (char *) &cmd + (sizeof(cmd) - left), left, 0);
-                left -= received;
-
-                if (received == -1) {
-                    LOGI("SdrTcp: commandListener failed to receive command");
-                    obj->state = STAGE_NEEDS_STOPPING;
-                    break;
-                }
-            }
+static int64_t monotonic_ms(void) {
+    return monotonic_us() / 1000;
+}
+
+// the wall clock time of a moment on the monotonic clock, in microseconds since 1970
+static int64_t realtime_us(int64_t monotonic) {
+    struct timespec ts;
+    clock_gettime(CLOCK_REALTIME, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000L - (monotonic_us() - monotonic);
+}
+
+static void metric_add(sdrtcp_t * obj, sdrtcp_metric_t metric, int64_t value) {
+    atomic_fetch_add_explicit(&obj->metrics[metric], value, memory_order_relaxed);
+}
+
+static void metric_max(sdrtcp_t * obj, sdrtcp_metric_t metric, int64_t value) {
+    long long current = atomic_load_explicit(&obj->metrics[metric], memory_order_relaxed);
+    while (value > current && !atomic_compare_exchange_weak_explicit(&obj->metrics[metric], &current, value, memory_order_relaxed, memory_order_relaxed));
+}
+
+// called by the feeding thread only, the clock is read only when going in and out of idle
+static void idle_enter(sdrtcp_t * obj) {
+    if (atomic_load_explicit(&obj->idle_since_ms, memory_order_relaxed) == 0) {
+        atomic_store_explicit(&obj->idle_since_ms, monotonic_ms(), memory_order_relaxed);
+    }
+}
+
+static void idle_leave(sdrtcp_t * obj) {
+    int64_t since = atomic_load_explicit(&obj->idle_since_ms, memory_order_relaxed);
+    if (since != 0) {
+        metric_add(obj, SDRTCP_METRIC_IDLE_MILLIS, monotonic_ms() - since);
+        atomic_store_explicit(&obj->idle_since_ms, 0, memory_order_relaxed);
+    }
+}
+
+// The feeding thread and the compression thread take buffers out of the pool, a buffer is claimed by whichever
+// of them takes its references from zero to one
+static sdrtcp_buffer_t * buffer_acquire(sdrtcp_t * obj) {
+    int i;
+    for (i = 0; i < obj->buffers_count; i++) {
+        sdrtcp_buffer_t * buffer = &obj->buffers[i];
+        int free = 0;
+        if (atomic_load_explicit(&buffer->references, memory_order_relaxed) == 0
+            && atomic_compare_exchange_strong_explicit(&buffer->references, &free, 1, memory_order_acquire, memory_order_relaxed)) {
+            buffer->lent = NULL;
+            return buffer;
+        }
+    }
+    return NULL;
+}
+
+static void buffer_release(sdrtcp_buffer_t * buffer) {
+    // once the count hits zero the slot can be refilled, so the lent memory has to be read before that
+    unsigned char * lent = buffer->lent;
+    sdrtcp_release_callback release = buffer->release;
+    void * release_ctx = buffer->release_ctx;
+
+    if (atomic_fetch_sub_explicit(&buffer->references, 1, memory_order_acq_rel) == 1 && lent != NULL) {
+        release(lent, release_ctx);
+    }
+}
+
+static void client_stop(sdrtcp_client_t * client) {
+    if (client->state == CLIENT_SERVING) client->state = CLIENT_NEEDS_STOPPING;
+    spscring_close(&client->queue);
+}
+
+// bytes of I and Q of a single sample as it is sent
+static int sample_bytes(sdrtcp_t * obj) {
+    return sampleformat_bytes(obj->sample_format);
+}
+
+// how many bytes are sent in ms milliseconds when the device runs at rate
+static int64_t stream_bytes(sdrtcp_t * obj, uint32_t rate, int ms) {
+    return (int64_t) rate / obj->decimation * sample_bytes(obj) * ms / 1000;
+}
+
+static void client_lost(sdrtcp_client_t * client, int64_t samples) {
+    client->dropped_samples += samples;
+    metric_add(client->server, SDRTCP_METRIC_DROPPED_SAMPLES, samples);
+}
+
+static void client_dropped(sdrtcp_client_t * client, sdrtcp_buffer_t * buffer) {
+    client_lost(client, buffer->samples);
+}
+
+// the UDP output always keeps the most recent data, a late datagram is no use to anybody
+static int udp_enqueue(sdrtcp_t * obj, sdrtcp_buffer_t * buffer) {
+    sdrtcp_buffer_t * evicted = (sdrtcp_buffer_t *) spscring_push_evict(&obj->udp.queue, buffer);
+    if (evicted != NULL) {
+        metric_add(obj, SDRTCP_METRIC_DROPPED_SAMPLES, evicted->samples);
+        buffer_release(evicted);
+    }
+    return 1;
+}
+
+static void udp_drain(sdrtcp_udp_t * udp) {
+    sdrtcp_buffer_t * buffer;
+    while ((buffer = (sdrtcp_buffer_t *) spscring_pop(&udp->queue)) != NULL) {
+        buffer_release(buffer);
+    }
+    if (udp->sending != NULL) {
+        buffer_release(udp->sending);
+        udp->sending = NULL;
+    }
+}
+
+static int udp_open(sdrtcp_t * obj) {
+    sdrtcp_udp_t * udp = &obj->udp;
+
+    memset(&udp->destination, 0, sizeof(udp->destination));
+    udp->destination.sin_family = AF_INET;
+    udp->destination.sin_port = htons(obj->udp_port);
+    udp->destination.sin_addr.s_addr = inet_addr(obj->udp_address);
+
+    udp->socket = socket(AF_INET, SOCK_DGRAM | SOCK_NONBLOCK | SOCK_CLOEXEC, IPPROTO_UDP);
+    if (udp->socket == -1) {
+        LOGI("SdrTcp: Cannot open UDP socket. Code %d, exception %s", errno, strerror(errno));
+        return 0;
+    }
+
+    int multicast = IN_MULTICAST(ntohl(udp->destination.sin_addr.s_addr));
+    if (multicast) {
+        unsigned char ttl = UDP_MULTICAST_TTL;
+        unsigned char loop = 1;
+        setsockopt(udp->socket, IPPROTO_IP, IP_MULTICAST_TTL, &ttl, sizeof(ttl));
+        setsockopt(udp->socket, IPPROTO_IP, IP_MULTICAST_LOOP, &loop, sizeof(loop));
+    }
+
+    udp->sending = NULL;
+    udp->sent_offset = 0;
+    udp->sequence = 0;
+    udp->last_us = 0;
+    udp->last_fed_us = 0;
+    udp->rate = 0;
+    udp->tokens = 0;
+
+    LOGI("SdrTcp: Sending samples to %s %s:%d", multicast ? "multicast group" : "", obj->udp_address, obj->udp_port);
+    return 1;
+}
+
+// follows how fast data is fed, that is how fast it has to go out
+static void udp_measure_rate(sdrtcp_udp_t * udp, sdrtcp_buffer_t * buffer) {
+    if (udp->last_fed_us != 0 && buffer->fed_us > udp->last_fed_us) {
+        double rate = buffer->length / (double) (buffer->fed_us - udp->last_fed_us);
+        udp->rate = udp->rate == 0 ? rate : udp->rate * 0.9 + rate * 0.1;
+    }
+    udp->last_fed_us = buffer->fed_us;
+}
+
+// sends as many datagrams as pacing allows, returns 1 if there is data waiting for its turn
+static int udp_flush(sdrtcp_t * obj) {
+    sdrtcp_udp_t * udp = &obj->udp;
+    sdrtcp_udp_header_t headers[UDP_BURST];
+    struct iovec iov[UDP_BURST][2];
+    struct mmsghdr messages[UDP_BURST];
+    const size_t datagram = sizeof(sdrtcp_udp_header_t) + SDRTCP_UDP_PAYLOAD;
+
+    int64_t now = monotonic_us();
+    if (udp->rate > 0 && udp->last_us != 0) {
+        // a burst is at most what comes in between two ticks, or a few datagrams at low rates
+        double max_tokens = udp->rate * UDP_PACING_HEADROOM * 2000 * UDP_PACING_TICK_MS;
+        if (max_tokens < 4 * datagram) max_tokens = 4 * datagram;
+
+        udp->tokens += (now - udp->last_us) * udp->rate * UDP_PACING_HEADROOM;
+        if (udp->tokens > max_tokens) udp->tokens = max_tokens;
+    }
+    udp->last_us = now;
+
+    for (;;) {
+        if (udp->sending == NULL) {
+            udp->sending = (sdrtcp_buffer_t *) spscring_pop(&udp->queue);
+            if (udp->sending == NULL) return 0;
+            udp->sent_offset = 0;
+            udp_measure_rate(udp, udp->sending);
         }
 
-        if (obj->state == STAGE_CLIENT_SERVING && left == 0) {
-            cmd.parameter = ntohl(cmd.parameter);
-            obj->commandcb(obj, obj->ctx, &cmd);
-            cmd.command = 0xff;
+        sdrtcp_buffer_t * buffer = udp->sending;
+        double budget = udp->tokens;
+        size_t offset = udp->sent_offset;
+        int count = 0;
+        while (count < UDP_BURST && offset < buffer->length && (udp->rate == 0 || budget >= datagram)) {
+            size_t payload = buffer->length - offset;
+            if (payload > SDRTCP_UDP_PAYLOAD) payload = SDRTCP_UDP_PAYLOAD;
+
+            headers[count].sequence = htonl(udp->sequence + count);
+            headers[count].sample = htobe64((uint64_t) (buffer->first_sample + offset / sample_bytes(obj)));
+            iov[count][0].iov_base = &headers[count];
+            iov[count][0].iov_len = sizeof(headers[count]);
+            iov[count][1].iov_base = (void *) (buffer->bytes + offset);
+            iov[count][1].iov_len = payload;
+
+            memset(&messages[count], 0, sizeof(messages[count]));
+            messages[count].msg_hdr.msg_name = &udp->destination;
+            messages[count].msg_hdr.msg_namelen = sizeof(udp->destination);
+            messages[count].msg_hdr.msg_iov = iov[count];
+            messages[count].msg_hdr.msg_iovlen = 2;
+
+            budget -= datagram;
+            offset += payload;
+            count++;
+        }
+        if (count == 0) return 1;
+
+        int sent = sendmmsg(udp->socket, messages, count, MSG_DONTWAIT);
+        if (sent < 0) {
+            if (errno == EINTR) continue;
+            if (errno == EAGAIN || errno == EWOULDBLOCK || errno == ENOBUFS) return 1;
+
+            // nobody would get this buffer, better to go on with the next one
+            LOGI("SdrTcp: Cannot send datagram. Code %d, exception %s", errno, strerror(errno));
+            metric_add(obj, SDRTCP_METRIC_DROPPED_SAMPLES, (buffer->length - udp->sent_offset) / sample_bytes(obj));
+            buffer_release(buffer);
+            udp->sending = NULL;
+            continue;
         }
+
+        int i;
+        for (i = 0; i < sent; i++) {
+            udp->sent_offset += iov[i][1].iov_len;
+            udp->tokens -= datagram;
+            metric_add(obj, SDRTCP_METRIC_SENT_BYTES, messages[i].msg_len);
+        }
+        udp->sequence += sent;
+        metric_add(obj, SDRTCP_METRIC_UDP_DATAGRAMS, sent);
+        if (udp->rate == 0) udp->tokens = 0;
+
+        if (udp->sent_offset >= buffer->length) {
+            buffer_release(buffer);
+            udp->sending = NULL;
+        }
+        if (sent < count) return 1;
     }
+}
 
-    LOGI("SdrTcp: Command listener thread exiting");
-    pthread_exit(NULL);
+// readers can't tell the server that they are sleeping, so every write wakes them, that is one syscall per fed buffer
+static void shared_ring_wake(sdrtcp_shared_ring_t * ring) {
+    atomic_fetch_add_explicit(&ring->futex, 1, memory_order_release);
+    syscall(SYS_futex, &ring->futex, FUTEX_WAKE, INT_MAX, NULL, NULL, 0);
 }
 
-static void serveClient(sdrtcp_t * obj) {
-    LOGI("SdrTcp: Client has connected.");
+// creates the memfd that unix socket clients map read only, returns 0 on failure
+static int shared_ring_open(sdrtcp_t * obj) {
+    uint64_t capacity = SDRTCP_SHARED_RING_MIN_BYTES;
+    while (capacity < obj->shared_ring_bytes) capacity <<= 1;
+    size_t mapped = SDRTCP_SHARED_RING_DATA_OFFSET + (size_t) capacity;
 
-    struct timeval tv= {1,0};
-    fd_set writefds;
+    int fd = (int) syscall(SYS_memfd_create, "sdrtcp_ring", MFD_CLOEXEC | MFD_ALLOW_SEALING);
+    if (fd == -1) {
+        LOGI("SdrTcp: Cannot create the shared ring. Code %d, exception %s", errno, strerror(errno));
+        return 0;
+    }
 
-    while (obj->state == STAGE_CLIENT_SERVING) {
-        extbuffer_t * buff;
-        if (obj->state == STAGE_CLIENT_SERVING) {
-            if ((buff = pool_get_wait_lock(&obj->workpool, 1, 1)) == NULL) {
-                continue;
+    void * ring = MAP_FAILED;
+    if (ftruncate(fd, (off_t) mapped) == 0) ring = mmap(NULL, mapped, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if (ring == MAP_FAILED) {
+        LOGI("SdrTcp: Cannot map %zu bytes of shared ring. Code %d, exception %s", mapped, errno, strerror(errno));
+        close(fd);
+        return 0;
+    }
+
+    // clients can't resize the ring, and on kernels that know F_SEAL_FUTURE_WRITE they can't map it writable either
+    if (fcntl(fd, F_ADD_SEALS, F_SEAL_FUTURE_WRITE) != 0) {
+        LOGI("SdrTcp: Clients can map the shared ring writable. Code %d, exception %s", errno, strerror(errno));
+    }
+    fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_SEAL);
+
+    obj->shared_ring = (sdrtcp_shared_ring_t *) ring;
+    obj->shared_ring_fd = fd;
+    obj->shared_ring_mapped = mapped;
+    memcpy(obj->shared_ring->magic, SDRTCP_SHARED_RING_MAGIC, sizeof(obj->shared_ring->magic));
+    obj->shared_ring->data_offset = SDRTCP_SHARED_RING_DATA_OFFSET;
+    obj->shared_ring->capacity = capacity;
+    atomic_init(&obj->shared_ring->written, 0);
+    atomic_init(&obj->shared_ring->claimed, 0);
+    atomic_init(&obj->shared_ring->futex, 0);
+    atomic_init(&obj->shared_ring->closed, 0);
+
+    LOGI("SdrTcp: Shared ring of %llu bytes", (unsigned long long) capacity);
+    return 1;
+}
+
+// clients keep their own mapping, they just stop getting data
+static void shared_ring_close(sdrtcp_t * obj) {
+    if (obj->shared_ring == NULL) return;
+
+    atomic_store(&obj->shared_ring->closed, 1);
+    shared_ring_wake(obj->shared_ring);
+    munmap(obj->shared_ring, obj->shared_ring_mapped);
+    close(obj->shared_ring_fd);
+    obj->shared_ring = NULL;
+    obj->shared_ring_fd = -1;
+}
+
+// the only copy samples get on their way to a shared ring client, the oldest data is overwritten
+static void shared_ring_write(sdrtcp_t * obj, const uint8_t * bytes, size_t length) {
+    sdrtcp_shared_ring_t * ring = obj->shared_ring;
+    uint8_t * data = (uint8_t *) ring + ring->data_offset;
+    uint64_t written = atomic_load_explicit(&ring->written, memory_order_relaxed);
+    metric_add(obj, SDRTCP_METRIC_SHARED_RING_BYTES, (int64_t) length);
+
+    if (length > ring->capacity) {
+        // only the end of a write bigger than the ring would survive anyway
+        written += length - ring->capacity;
+        bytes += length - ring->capacity;
+        length = (size_t) ring->capacity;
+    }
+
+    // readers check claimed after copying, so it has to be visible before any byte is overwritten
+    atomic_store(&ring->claimed, written + length);
+    atomic_thread_fence(memory_order_seq_cst);
+
+    size_t offset = (size_t) (written & (ring->capacity - 1));
+    size_t first = (size_t) ring->capacity - offset;
+    if (first > length) first = length;
+    memcpy(data + offset, bytes, first);
+    memcpy(data, bytes + first, length - first);
+
+    atomic_store_explicit(&ring->written, written + length, memory_order_release);
+    shared_ring_wake(ring);
+}
+
+// what the pool has to hold when every client has depth buffers queued
+static int buffers_needed(sdrtcp_t * obj, int depth) {
+    // every client can hold its queue plus a batch being sent and the buffers awaiting zero-copy completion
+    int held_by_client = depth + SDRTCP_MAX_WRITE_BATCH;
+    if (obj->send_zerocopy) held_by_client += SDRTCP_MAX_ZEROCOPY_AWAITING;
+    // the feeder holds one more, another while it fills a buffer for a client with its own channel
+    // and one more while it frames that for a squelched client
+    int needed = obj->max_clients * held_by_client + 3;
+    // the blocks on their way to the compression thread and the frame it codes one into
+    needed += SDRTCP_COMPRESS_QUEUED + 1;
+    // and the block in every other format, the frame of all channelizer channels in every format or the spectra
+    // while it hands them out
+    needed += SAMPLE_FORMATS - 1;
+    if (obj->channelizer_channels != 0) needed += SAMPLE_FORMATS;
+    if (obj->spectrum_size != 0) needed++;
+    if (obj->udp_port != 0) needed += (int) spscring_capacity(&obj->udp.queue) + 1;
+    return needed;
+}
+
+// sizes the client queues to hold queue_ms of samples, as far as the memory cap allows
+static void queue_resize(sdrtcp_t * obj, uint32_t rate, size_t length) {
+    obj->sized_rate = rate;
+    obj->sized_length = length;
+
+    int depth = CLIENT_MAX_QUEUED;
+    if (rate != 0 && length != 0) {
+        int queue_ms = obj->low_latency && obj->queue_ms > SDRTCP_LOW_LATENCY_QUEUE_MS ? SDRTCP_LOW_LATENCY_QUEUE_MS : obj->queue_ms;
+        int64_t queued_bytes = stream_bytes(obj, rate, queue_ms);
+        int64_t affordable = obj->queue_memory_bytes / ((int64_t) length * obj->max_clients) - SDRTCP_MAX_WRITE_BATCH;
+        int64_t buffers = (queued_bytes + (int64_t) length - 1) / (int64_t) length;
+        if (buffers > affordable) buffers = affordable;
+        if (buffers > SDRTCP_MAX_QUEUE_DEPTH) buffers = SDRTCP_MAX_QUEUE_DEPTH;
+        if (buffers < SDRTCP_MIN_QUEUE_DEPTH) buffers = SDRTCP_MIN_QUEUE_DEPTH;
+        depth = (int) buffers;
+    }
+    if (depth == obj->queue_depth) return;
+
+    LOGI("SdrTcp: Queueing up to %d buffers of %zu bytes per client at %u samples/s", depth, length, rate);
+    obj->queue_depth = depth;
+    atomic_store_explicit(&obj->metrics[SDRTCP_METRIC_QUEUE_DEPTH], depth, memory_order_relaxed);
+    int i;
+    for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+        spscring_set_limit(&obj->clients[i].queue, (unsigned int) depth);
+    }
+
+    // buffer_acquire always takes the first free buffer, so the ones past what is needed now are not going to be used,
+    // they are claimed while their memory goes as the compression thread could be looking for a buffer at the same time
+    for (i = buffers_needed(obj, depth); i < obj->buffers_count; i++) {
+        sdrtcp_buffer_t * buffer = &obj->buffers[i];
+        int free = 0;
+        if (buffer->data.valid && atomic_compare_exchange_strong_explicit(&buffer->references, &free, 1, memory_order_acquire, memory_order_relaxed)) {
+            extbuffer_free(&buffer->data);
+            extbuffer_init(&buffer->data, EXTBUFF_TYPE_USHORT);
+            atomic_store_explicit(&buffer->references, 0, memory_order_release);
+        }
+    }
+}
+
+// returns 1 if the client took a reference to the buffer
+static int client_enqueue(sdrtcp_client_t * client, sdrtcp_buffer_t * buffer, int policy) {
+    if (client->state != CLIENT_SERVING) return 0;
+
+    switch (policy) {
+        case SDRTCP_POLICY_BLOCK:
+            if (spscring_push(&client->queue, buffer)) return 1;
+            // clients_locker is held here, the buffer is kept aside until sdrtcp_fan_out has let go of it
+            if (client->blocked == NULL) {
+                client->blocked = buffer;
+                return 1;
             }
-        } else {
             break;
+        case SDRTCP_POLICY_DROP_OLDEST: {
+            sdrtcp_buffer_t * evicted = (sdrtcp_buffer_t *) spscring_push_evict(&client->queue, buffer);
+            if (evicted != NULL) {
+                client_dropped(client, evicted);
+                buffer_release(evicted);
+            }
+            return 1;
         }
+        default:
+            if (spscring_push(&client->queue, buffer)) return 1;
+            break;
+    }
 
-        size_t index = 0;
-        ssize_t bytessent = -1;
-        size_t bytesleft = sizeof(uint16_t) * buff->size_valid_elements;
-        uint8_t * data_to_send = (uint8_t *) buff->ushortbuffer;
-
-        while(bytesleft > 0 && obj->state == STAGE_CLIENT_SERVING) {
-            FD_ZERO(&writefds);
-            FD_SET(obj->client_socket, &writefds);
-            tv.tv_sec = 5;
-            tv.tv_usec = 0;
-
-            int r = 0;
-            if (obj->state == STAGE_CLIENT_SERVING) {
-                r = select(obj->client_socket + 1, NULL, &writefds, NULL, &tv);
-                if (r == -1) {
-                    int err = errno;
-                    char *str_error = strerror(errno);
-                    LOGI("SdrTcp: serveClient cannot select. Code %d, exception %s", err,
-                         str_error);
-                    obj->state = STAGE_NEEDS_STOPPING;
-                }
-                if (r && obj->state == STAGE_CLIENT_SERVING) {
-                    bytessent = send(obj->client_socket, data_to_send + index, bytesleft, 0);
-                    bytesleft -= bytessent;
-                    index += bytessent;
-
-                    if (bytessent == -1 && obj->state == STAGE_CLIENT_SERVING) {
-                        int err = errno;
-                        char *str_error = strerror(errno);
-                        LOGI("SdrTcp: serveClient cannot send to client. Code %d, exception %s",
-                             err, str_error);
-                        obj->state = STAGE_NEEDS_STOPPING;
-                    }
+    client_dropped(client, buffer);
+    return 0;
+}
+
+// queues a buffer for a client, through the compression thread once the client asked for compression, lanes are the
+// bytes of one sample in it, returns 0 if the buffer was not taken and the caller still holds the reference
+static int client_queue(sdrtcp_t * obj, sdrtcp_client_t * client, sdrtcp_buffer_t * buffer, int lanes, int policy) {
+    if (!client->compress_routed) return client_enqueue(client, buffer, policy);
+    if (client->state != CLIENT_SERVING) return 0;
+
+    sdrtcp_compress_job_t * job = &obj->compress_jobs[obj->compress_next % SDRTCP_COMPRESS_QUEUED];
+    job->client = client;
+    job->connection = client->connection;
+    job->buffer = buffer;
+    job->lanes = lanes;
+    job->compress = atomic_load_explicit(&client->compression, memory_order_relaxed);
+    job->policy = policy;
+    // this never waits, a compressing client that falls behind loses the newest blocks like with SDRTCP_POLICY_DROP_NEWEST
+    if (!spscring_push(&obj->compress_queue, job)) {
+        client_dropped(client, buffer);
+        return 0;
+    }
+    obj->compress_next++;
+    return 1;
+}
+
+// only safe once nothing is feeding the client
+static void client_drain(sdrtcp_client_t * client) {
+    sdrtcp_buffer_t * buffer;
+    while ((buffer = (sdrtcp_buffer_t *) spscring_pop(&client->queue)) != NULL) {
+        buffer_release(buffer);
+    }
+    if (client->blocked != NULL) {
+        buffer_release(client->blocked);
+        client->blocked = NULL;
+    }
+    int i;
+    for (i = 0; i < client->sending_count; i++) {
+        buffer_release(client->sending[i]);
+    }
+    client->sending_count = 0;
+    client->sent_offset = 0;
+    client->header_left = 0;
+
+    // the socket is closed by now, whatever the kernel still holds is not going to reach a client anymore
+    for (i = 0; i < client->awaiting_count; i++) {
+        buffer_release(client->awaiting[i]);
+    }
+    client->awaiting_count = 0;
+
+    // the copies stay allocated for the next client
+    client->squelch_active = 0;
+    client->preroll_first = 0;
+    client->preroll_count = 0;
+
+    // blocks still on their way to the compression thread are dropped there
+    client->compress_routed = 0;
+    client->connection++;
+}
+
+// wakes up the event loop, writes to the eventfd at most once per loop iteration
+static void server_wake(sdrtcp_t * obj) {
+    if (!atomic_exchange(&obj->wake_pending, 1)) {
+        uint64_t one = 1;
+        if (write(obj->wake_fd, &one, sizeof(one)) != sizeof(one)) {
+            LOGI("SdrTcp: Cannot wake up the event loop. Code %d, exception %s", errno, strerror(errno));
+        }
+    }
+}
+
+static int server_watch(sdrtcp_t * obj, int fd, uint32_t events, uint32_t token) {
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = events;
+    event.data.u32 = token;
+    return epoll_ctl(obj->epoll_fd, EPOLL_CTL_ADD, fd, &event) == 0;
+}
+
+// the channel is a property of the connection rather than of the device, so these never reach the callback
+static int client_channel_command(sdrtcp_client_t * client, sdr_tcp_command_t * cmd) {
+    switch (cmd->command) {
+        case TCP_ANDROID_SET_CHANNEL_OFFSET:
+            atomic_store_explicit(&client->channel_offset_hz, (int32_t) cmd->parameter, memory_order_relaxed);
+            break;
+        case TCP_ANDROID_SET_CHANNEL_DECIMATION: {
+            int factor = cmd->parameter == 0 ? 1 : (int) cmd->parameter;
+            decimator_t probe;
+            if (cmd->parameter > DECIMATOR_MAX_FACTOR || !decimator_init(&probe, factor, SAMPLE_FORMAT_U8)) {
+                LOGI("SdrTcp: Ignoring channel decimation %u, it has to be a power of two up to %d", cmd->parameter, DECIMATOR_MAX_FACTOR);
+                return 1;
+            }
+            decimator_free(&probe);
+            atomic_store_explicit(&client->channel_decimation, factor, memory_order_relaxed);
+            break;
+        }
+        case TCP_ANDROID_ENABLE_16_BIT_SIGNED:
+            if (cmd->parameter >= SAMPLE_FORMATS) {
+                LOGI("SdrTcp: Ignoring sample format %u, there are %d", cmd->parameter, SAMPLE_FORMATS);
+                return 1;
+            }
+            // the feeder picks it up with the next block, a channel of the client starts over in the new format
+            atomic_store_explicit(&client->sample_format, (int) cmd->parameter, memory_order_relaxed);
+            LOGI("SdrTcp: Client asked for %s samples", sampleformat_name((sample_format_t) cmd->parameter));
+            break;
+        case TCP_ANDROID_SELECT_CHANNELIZER_CHANNEL: {
+            int channels = client->server->channelizer_channels;
+            int32_t channel = (int32_t) cmd->parameter;
+            if (channels == 0 || channel < -channels / 2 || channel >= channels / 2) {
+                LOGI("SdrTcp: Ignoring channelizer channel %d, there are %d", channel, channels);
+                return 1;
+            }
+            atomic_store_explicit(&client->channelizer_channel, channel & (channels - 1), memory_order_relaxed);
+            return 1;
+        }
+        case TCP_ANDROID_CHANNELIZER_ALL:
+            if (client->server->channelizer_channels == 0) {
+                LOGI("SdrTcp: Ignoring request for all channels, there is no channelizer");
+                return 1;
+            }
+            atomic_store_explicit(&client->channelizer_channel, cmd->parameter ? SDRTCP_CHANNELIZER_ALL : SDRTCP_CHANNELIZER_NONE, memory_order_relaxed);
+            return 1;
+        case TCP_ANDROID_SPECTRUM:
+            if (client->server->spectrum_size == 0) {
+                LOGI("SdrTcp: Ignoring request for spectra, there is no spectrum mode");
+                return 1;
+            }
+            atomic_store_explicit(&client->spectrum, cmd->parameter != 0, memory_order_relaxed);
+            return 1;
+        case TCP_ANDROID_SQUELCH_THRESHOLD: {
+            int threshold = cmd->parameter > INT_MAX ? INT_MAX : (int) cmd->parameter;
+            atomic_store_explicit(&client->squelch_threshold, threshold, memory_order_relaxed);
+            if (threshold == 0) LOGI("SdrTcp: Client squelch off"); else LOGI("SdrTcp: Client squelch at %.1f dB", -threshold / 10.0);
+            return 1;
+        }
+        case TCP_ANDROID_SQUELCH_HOLD:
+            atomic_store_explicit(&client->squelch_hold_ms, cmd->parameter > INT_MAX ? INT_MAX : (int) cmd->parameter, memory_order_relaxed);
+            return 1;
+        case TCP_ANDROID_SQUELCH_PREROLL:
+            atomic_store_explicit(&client->squelch_preroll_ms, cmd->parameter > INT_MAX ? INT_MAX : (int) cmd->parameter, memory_order_relaxed);
+            return 1;
+        case TCP_ANDROID_COMPRESSION:
+            atomic_store_explicit(&client->compression, cmd->parameter != 0, memory_order_relaxed);
+            LOGI("SdrTcp: Client compression %s", cmd->parameter != 0 ? "on" : "off");
+            return 1;
+        default:
+            return 0;
+    }
+    atomic_fetch_add_explicit(&client->channel_changes, 1, memory_order_release);
+    return 1;
+}
+
+// hands every complete command to the callback in the order they were sent, and keeps an incomplete one for later
+static void client_dispatch_commands(sdrtcp_client_t * client) {
+    sdrtcp_t * obj = client->server;
+    size_t offset = 0;
+
+    // a command can stop the client or the server, whatever follows it is not wanted anymore
+    while (client->commands_length - offset >= sizeof(sdr_tcp_command_t) && client->state == CLIENT_SERVING && obj->state == STAGE_CLIENT_SERVING) {
+        sdr_tcp_command_t cmd;
+        memcpy(&cmd, client->commands + offset, sizeof(cmd));
+        cmd.parameter = ntohl(cmd.parameter);
+        offset += sizeof(cmd);
+        if (!client_channel_command(client, &cmd)) obj->commandcb(obj, obj->ctx, &cmd);
+    }
+
+    if (client->commands_length - offset >= sizeof(sdr_tcp_command_t)) offset = client->commands_length;
+    memmove(client->commands, client->commands + offset, client->commands_length - offset);
+    client->commands_length -= offset;
+}
+
+// reads whatever commands the client has sent, the socket is edge triggered so it is read until it is known to be empty
+// a short read means it is, unless the client also hung up, which only another read tells
+static void client_read_commands(sdrtcp_client_t * client, uint32_t events) {
+    while (client->state == CLIENT_SERVING) {
+        size_t room = sizeof(client->commands) - client->commands_length;
+        ssize_t received = recv(client->socket, client->commands + client->commands_length, room, MSG_DONTWAIT);
+
+        if (received < 0) {
+            if (errno == EINTR) continue;
+            if (errno == EAGAIN || errno == EWOULDBLOCK) return;
+        }
+        if (received <= 0) {
+            LOGI("SdrTcp: Client closed the connection");
+            client_stop(client);
+            return;
+        }
+
+        client->commands_length += received;
+        client_dispatch_commands(client);
+        if ((size_t) received < room && !(events & (EPOLLRDHUP | EPOLLHUP | EPOLLERR))) return;
+    }
+}
+
+// takes queued buffers into the batch until the byte limit, returns the number of bytes ready to be written
+static size_t client_fill_batch(sdrtcp_client_t * client) {
+    size_t batch_bytes = client->header_left;
+    int i;
+    for (i = 0; i < client->sending_count; i++) {
+        batch_bytes += client->sending[i]->length;
+    }
+    batch_bytes -= client->sent_offset;
+
+    // buffers in the batch can't be dropped anymore, with low latency they stay in the queue until the socket takes them
+    size_t limit = client->server->low_latency ? 0 : client->server->write_batch_bytes;
+    while (client->sending_count < SDRTCP_MAX_WRITE_BATCH
+           && (client->sending_count == 0 || batch_bytes < limit)) {
+        sdrtcp_buffer_t * buffer = (sdrtcp_buffer_t *) spscring_pop(&client->queue);
+        if (buffer == NULL) break;
+
+        client->sending_zerocopy_id[client->sending_count] = -1;
+        client->sending[client->sending_count++] = buffer;
+        batch_bytes += buffer->length;
+    }
+
+    return batch_bytes;
+}
+
+// a completely written buffer goes back to the pool, unless the kernel may still be reading it
+static void client_written(sdrtcp_client_t * client, sdrtcp_buffer_t * buffer, int64_t zerocopy_id) {
+    // how long the samples waited in the server, the kernel only adds what is unsent plus one round trip
+    int64_t age = monotonic_us() - buffer->fed_us;
+    metric_add(client->server, SDRTCP_METRIC_BUFFERS_WRITTEN, 1);
+    metric_add(client->server, SDRTCP_METRIC_BUFFER_AGE_MICROS, age);
+    metric_max(client->server, SDRTCP_METRIC_BUFFER_AGE_MAX_MICROS, age);
+
+    if (zerocopy_id < 0) {
+        buffer_release(buffer);
+        return;
+    }
+    client->awaiting[client->awaiting_count] = buffer;
+    client->awaiting_id[client->awaiting_count] = (uint32_t) zerocopy_id;
+    client->awaiting_count++;
+}
+
+// forgets about the bytes the socket has taken and releases the buffers that are completely written
+// zerocopy_id is the id of the MSG_ZEROCOPY send that took them or -1
+static void client_consume(sdrtcp_client_t * client, size_t sent, int64_t zerocopy_id) {
+    size_t header = sent < client->header_left ? sent : client->header_left;
+    client->header_left -= header;
+    sent -= header;
+
+    while (sent > 0) {
+        if (zerocopy_id >= 0) client->sending_zerocopy_id[0] = zerocopy_id;
+
+        size_t remaining = client->sending[0]->length - client->sent_offset;
+        if (sent < remaining) {
+            client->sent_offset += sent;
+            return;
+        }
+
+        sent -= remaining;
+        client_written(client, client->sending[0], client->sending_zerocopy_id[0]);
+        client->sending_count--;
+        memmove(&client->sending[0], &client->sending[1], sizeof(client->sending[0]) * client->sending_count);
+        memmove(&client->sending_zerocopy_id[0], &client->sending_zerocopy_id[1], sizeof(client->sending_zerocopy_id[0]) * client->sending_count);
+        client->sent_offset = 0;
+    }
+}
+
+// releases the buffers of every MSG_ZEROCOPY send up to and including id
+static void client_zerocopy_done(sdrtcp_client_t * client, uint32_t id) {
+    int done = 0;
+    while (done < client->awaiting_count && (int32_t) (client->awaiting_id[done] - id) <= 0) {
+        buffer_release(client->awaiting[done]);
+        done++;
+    }
+    client->awaiting_count -= done;
+    memmove(&client->awaiting[0], &client->awaiting[done], sizeof(client->awaiting[0]) * client->awaiting_count);
+    memmove(&client->awaiting_id[0], &client->awaiting_id[done], sizeof(client->awaiting_id[0]) * client->awaiting_count);
+}
+
+// reads the MSG_ZEROCOPY completions from the error queue of the socket
+static void client_read_completions(sdrtcp_client_t * client) {
+    sdrtcp_t * obj = client->server;
+    char control[128];
+    struct msghdr msg;
+
+    for (;;) {
+        memset(&msg, 0, sizeof(msg));
+        msg.msg_control = control;
+        msg.msg_controllen = sizeof(control);
+        if (recvmsg(client->socket, &msg, MSG_ERRQUEUE | MSG_DONTWAIT) < 0) {
+            if (errno == EINTR) continue;
+            return;
+        }
+
+        struct cmsghdr * cmsg;
+        for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+            if (!(cmsg->cmsg_level == SOL_IP && cmsg->cmsg_type == IP_RECVERR)
+                && !(cmsg->cmsg_level == SOL_IPV6 && cmsg->cmsg_type == IPV6_RECVERR)) continue;
+
+            struct sock_extended_err * err = (struct sock_extended_err *) CMSG_DATA(cmsg);
+            if (err->ee_errno != 0 || err->ee_origin != SO_EE_ORIGIN_ZEROCOPY) continue;
+
+            if (err->ee_code & SO_EE_CODE_ZEROCOPY_COPIED) {
+                metric_add(obj, SDRTCP_METRIC_ZEROCOPY_COPIED, 1);
+                if (client->zerocopy) {
+                    // pinning pages for a copy costs more than copying right away
+                    LOGI("SdrTcp: Kernel copies zero-copy sends to this client, sending normally");
+                    client->zerocopy = 0;
                 }
             }
+            // ee_info to ee_data is the range of completed sends, they complete in order
+            client_zerocopy_done(client, err->ee_data);
         }
+    }
+}
 
-        pool_get_unlock(&obj->workpool, 1, buff);
+// sends as much of the queue as the socket takes without blocking, every buffer that is already queued goes out in one sendmsg
+static void client_flush(sdrtcp_client_t * client) {
+    sdrtcp_t * obj = client->server;
+    struct iovec iov[SDRTCP_MAX_WRITE_BATCH + 1];
+    struct msghdr msg;
+    union {
+        struct cmsghdr header;
+        char space[CMSG_SPACE(sizeof(int))];
+    } control;
+
+    while (client->state == CLIENT_SERVING) {
+        if (client_fill_batch(client) == 0) return;
+
+        int iovcnt = 0;
+        if (client->header_left > 0) {
+            iov[iovcnt].iov_base = (uint8_t *) &obj->dongle_info + sizeof(obj->dongle_info) - client->header_left;
+            iov[iovcnt].iov_len = client->header_left;
+            iovcnt++;
+        }
+        int i;
+        for (i = 0; i < client->sending_count; i++) {
+            size_t offset = i == 0 ? client->sent_offset : 0;
+            iov[iovcnt].iov_base = (void *) (client->sending[i]->bytes + offset);
+            iov[iovcnt].iov_len = client->sending[i]->length - offset;
+            iovcnt++;
+        }
+
+        // every buffer of the batch may end up waiting for its completion
+        int zerocopy = client->zerocopy && client->awaiting_count + client->sending_count <= SDRTCP_MAX_ZEROCOPY_AWAITING;
+
+        memset(&msg, 0, sizeof(msg));
+        msg.msg_iov = iov;
+        msg.msg_iovlen = iovcnt;
+        if (obj->shared_ring != NULL && client->header_left == sizeof(obj->dongle_info)) {
+            // the memfd of the shared ring arrives together with the first byte of the dongle info
+            memset(&control, 0, sizeof(control));
+            msg.msg_control = control.space;
+            msg.msg_controllen = sizeof(control.space);
+            struct cmsghdr * cmsg = CMSG_FIRSTHDR(&msg);
+            cmsg->cmsg_level = SOL_SOCKET;
+            cmsg->cmsg_type = SCM_RIGHTS;
+            cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+            memcpy(CMSG_DATA(cmsg), &obj->shared_ring_fd, sizeof(int));
+        }
+        ssize_t sent = sendmsg(client->socket, &msg, MSG_NOSIGNAL | MSG_DONTWAIT | (zerocopy ? MSG_ZEROCOPY : 0));
+
+        if (sent < 0 && zerocopy && errno == ENOBUFS) {
+            // out of memory to pin pages, this one goes out as a copy
+            sent = sendmsg(client->socket, &msg, MSG_NOSIGNAL | MSG_DONTWAIT);
+            zerocopy = 0;
+        }
+
+        if (sent < 0) {
+            if (errno == EINTR) continue;
+            if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                // EPOLLOUT will tell when there is room again
+                if (client->stalled_since_ms == 0) client->stalled_since_ms = monotonic_ms();
+                return;
+            }
+            LOGI("SdrTcp: Cannot send to client. Code %d, exception %s", errno, strerror(errno));
+            client_stop(client);
+            return;
+        }
+
+        client->stalled_since_ms = 0;
+        metric_add(obj, SDRTCP_METRIC_SENT_BYTES, sent);
+        int64_t zerocopy_id = -1;
+        if (zerocopy && sent > 0) {
+            metric_add(obj, SDRTCP_METRIC_ZEROCOPY_SENT_BYTES, sent);
+            zerocopy_id = client->zerocopy_next_id++;
+        }
+        client_consume(client, (size_t) sent, zerocopy_id);
     }
 }
 
-static void sdrtcp_wait_for_client(sdrtcp_t * obj) {
-    if (obj->state != STAGE_CLIENT_OPEN_STARTED_ASYNC) return;
+// keeps data from piling up in the kernel, where it can't be dropped anymore once it is late
+static void client_limit_buffering(sdrtcp_client_t * client) {
+    sdrtcp_t * obj = client->server;
+    int one = 1;
+    int notsent = SDRTCP_LOW_LATENCY_NOTSENT_BYTES;
+    setsockopt(client->socket, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+    if (setsockopt(client->socket, IPPROTO_TCP, TCP_NOTSENT_LOWAT, &notsent, sizeof(notsent)) != 0) {
+        LOGI("SdrTcp: Cannot limit unsent data. Code %d, exception %s", errno, strerror(errno));
+    }
 
-    struct timeval tv = {1,0};
-    fd_set readfds;
-    struct sockaddr_in remote;
+    // only data in flight needs room once unsent data is limited, and without the rate the kernel knows best
+    uint32_t rate = atomic_load_explicit(&obj->sample_rate, memory_order_relaxed);
+    if (rate == 0) return;
+    int sndbuf = (int) stream_bytes(obj, rate, SDRTCP_LOW_LATENCY_SNDBUF_MS);
+    if (sndbuf < 4 * SDRTCP_LOW_LATENCY_NOTSENT_BYTES) sndbuf = 4 * SDRTCP_LOW_LATENCY_NOTSENT_BYTES;
+    if (setsockopt(client->socket, SOL_SOCKET, SO_SNDBUF, &sndbuf, sizeof(sndbuf)) != 0) {
+        LOGI("SdrTcp: Cannot set send buffer. Code %d, exception %s", errno, strerror(errno));
+    }
+}
 
-    obj->client_socket = -1;
-    while(obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) {
+static void sdrtcp_add_client(sdrtcp_t * obj, int socket) {
+    sdrtcp_client_t * client = NULL;
 
-        int failure = 0;
-        FD_ZERO(&readfds);
-        FD_SET(obj->listen_socket, &readfds);
-        tv.tv_sec = 1;
-        tv.tv_usec = 0;
+    pthread_mutex_lock(&obj->clients_locker);
+    int i;
+    for (i = 0; i < obj->max_clients; i++) {
+        if (obj->clients[i].state == CLIENT_FREE) {
+            client = &obj->clients[i];
+            break;
+        }
+    }
+    pthread_mutex_unlock(&obj->clients_locker);
+
+    if (client == NULL) {
+        LOGI("SdrTcp: Rejecting client, already serving %d clients", obj->clients_count);
+        close(socket);
+        return;
+    }
 
-        int r = 0;
-        if (obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) {
-            r = select(obj->listen_socket + 1, &readfds, NULL, NULL, &tv);
+    int flags = fcntl(socket, F_GETFL, 0);
+    fcntl(socket, F_SETFL, flags | O_NONBLOCK);
+    if (!server_watch(obj, socket, EPOLLIN | EPOLLOUT | EPOLLRDHUP | EPOLLET, (uint32_t) i)) {
+        LOGI("SdrTcp: Cannot watch client socket. Code %d, exception %s", errno, strerror(errno));
+        close(socket);
+        return;
+    }
+
+    // the dongle info goes out as the first thing
+    client->server = obj;
+    client->socket = socket;
+    client->sending_count = 0;
+    client->sent_offset = 0;
+    client->header_left = sizeof(obj->dongle_info);
+    client->zerocopy = 0;
+    client->zerocopy_next_id = 0;
+    client->awaiting_count = 0;
+    if (obj->send_zerocopy) {
+        int one = 1;
+        if (setsockopt(socket, SOL_SOCKET, SO_ZEROCOPY, &one, sizeof(one)) == 0) {
+            client->zerocopy = 1;
+        } else {
+            LOGI("SdrTcp: Zero-copy send not supported, sending normally. Code %d, exception %s", errno, strerror(errno));
         }
+    }
+    if (obj->low_latency && !obj->unix_socket) client_limit_buffering(client);
+    client->commands_length = 0;
+    client->stalled_since_ms = 0;
+    client->dropped_samples = 0;
+    atomic_store_explicit(&client->channel_offset_hz, 0, memory_order_relaxed);
+    atomic_store_explicit(&client->channel_decimation, 1, memory_order_relaxed);
+    atomic_fetch_add_explicit(&client->channel_changes, 1, memory_order_release);
+    atomic_store_explicit(&client->channelizer_channel, SDRTCP_CHANNELIZER_NONE, memory_order_relaxed);
+    atomic_store_explicit(&client->spectrum, 0, memory_order_relaxed);
+    atomic_store_explicit(&client->sample_format, obj->sample_format, memory_order_relaxed);
+    atomic_store_explicit(&client->squelch_threshold, 0, memory_order_relaxed);
+    atomic_store_explicit(&client->squelch_hold_ms, SDRTCP_DEFAULT_SQUELCH_HOLD_MS, memory_order_relaxed);
+    atomic_store_explicit(&client->squelch_preroll_ms, SDRTCP_DEFAULT_SQUELCH_PREROLL_MS, memory_order_relaxed);
+    atomic_store_explicit(&client->compression, 0, memory_order_relaxed);
+    spscring_open(&client->queue);
+
+    pthread_mutex_lock(&obj->clients_locker);
+    client->state = CLIENT_SERVING;
+    obj->clients_count++;
+    pthread_mutex_unlock(&obj->clients_locker);
 
-        if (r && obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) {
-            socklen_t rlen = sizeof(remote);
-            obj->client_socket = accept(obj->listen_socket, (struct sockaddr *) &remote, &rlen);
-            if (obj->client_socket != -1) {
-                obj->state = STAGE_CLIENT_OPEN;
-            } else {
-                LOGI("SdrTcp: Failed to talk to client");
-                failure = 1;
+    pthread_mutex_lock(&obj->state_locker);
+    if (obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) obj->state = STAGE_CLIENT_SERVING;
+    pthread_mutex_unlock(&obj->state_locker);
+
+    LOGI("SdrTcp: Serving %d client(s)", obj->clients_count);
+    client_flush(client);
+}
+
+// accepts every waiting connection, returns 0 if the listen socket is broken
+static int sdrtcp_accept_clients(sdrtcp_t * obj, int * served_clients) {
+    struct sockaddr_storage remote;
+
+    while (obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC || obj->state == STAGE_CLIENT_SERVING) {
+        socklen_t rlen = sizeof(remote);
+        int client_socket = accept(obj->listen_socket, (struct sockaddr *) &remote, &rlen);
+        if (client_socket == -1) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR || errno == ECONNABORTED) return 1;
+            LOGI("SdrTcp: Failed to talk to client");
+            return 0;
+        }
+
+        if (!*served_clients) LOGI("SdrTcp: TCP server succesfully started and listening for clients!");
+        *served_clients = 1;
+        sdrtcp_add_client(obj, client_socket);
+    }
+    return 1;
+}
+
+// drops the clients that have stopped or have not taken any data for too long, or all clients if stop_all is set
+static void sdrtcp_reap_clients(sdrtcp_t * obj, int stop_all) {
+    int64_t now = 0;
+    int i;
+    for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+        sdrtcp_client_t * client = &obj->clients[i];
+        if (client->state == CLIENT_FREE) continue;
+
+        if (client->state == CLIENT_SERVING && client->stalled_since_ms != 0) {
+            if (now == 0) now = monotonic_ms();
+            if (now - client->stalled_since_ms > CLIENT_SEND_TIMEOUT_MS) {
+                LOGI("SdrTcp: Client has not taken any data for %d ms", CLIENT_SEND_TIMEOUT_MS);
+                metric_add(obj, SDRTCP_METRIC_SLOW_CLIENTS_DISCONNECTED, 1);
+                client_stop(client);
             }
         }
+        if (client->state == CLIENT_SERVING && obj->slow_client_policy == SDRTCP_POLICY_DISCONNECT && client->sending_count > 0) {
+            if (now == 0) now = monotonic_ms();
+            if (now - client->sending[0]->fed_us / 1000 > obj->latency_budget_ms) {
+                LOGI("SdrTcp: Client is more than %d ms behind", obj->latency_budget_ms);
+                metric_add(obj, SDRTCP_METRIC_SLOW_CLIENTS_DISCONNECTED, 1);
+                client_stop(client);
+            }
+        }
+        if (client->state == CLIENT_SERVING && !stop_all) continue;
+
+        client_stop(client);
+        epoll_ctl(obj->epoll_fd, EPOLL_CTL_DEL, client->socket, NULL);
+        close(client->socket);
 
-        if (failure) return;
+        // sdrtcp_feed must not be holding the client when it becomes free
+        pthread_mutex_lock(&obj->clients_locker);
+        client_drain(client);
+        client->socket = -1;
+        client->state = CLIENT_FREE;
+        obj->clients_count--;
+        pthread_mutex_unlock(&obj->clients_locker);
+
+        LOGI("SdrTcp: Client disconnected after dropping %lld samples, %d client(s) left", (long long) client->dropped_samples, obj->clients_count);
+    }
+}
+
+static int64_t thread_cpu_us(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000L;
+}
+
+// codes a block into a frame for a client that asked for compression, NULL if there is no memory
+static sdrtcp_buffer_t * compress_frame(sdrtcp_t * obj, const sdrtcp_buffer_t * block, int lanes) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    extbuffer_preparetohandle(&buffer->data, (int) ((sizeof(sdrtcp_compressed_header_t) + iqcompress_max_bytes(block->length) + 1) / 2));
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+
+    uint8_t * bytes = (uint8_t *) buffer->data.ushortbuffer;
+    size_t coded = iqcompress_encode(block->bytes, block->length, lanes, bytes + sizeof(sdrtcp_compressed_header_t));
+
+    sdrtcp_compressed_header_t header;
+    memcpy(header.magic, SDRTCP_COMPRESSED_MAGIC, sizeof(header.magic));
+    header.length = htonl((uint32_t) block->length);
+    header.coded = htonl((uint32_t) coded);
+    memcpy(bytes, &header, sizeof(header));
+
+    buffer->bytes = bytes;
+    buffer->length = sizeof(header) + coded;
+    buffer->fed_us = block->fed_us;
+    buffer->first_sample = block->first_sample;
+    buffer->samples = block->samples;
+    return buffer;
+}
+
+// codes the block of a job if the client still wants that and queues it, unless the client has gone since
+static void compress_run(sdrtcp_t * obj, sdrtcp_compress_job_t * job) {
+    sdrtcp_buffer_t * out = job->buffer;
+    if (job->compress) {
+        int64_t started = thread_cpu_us();
+        out = compress_frame(obj, job->buffer, job->lanes);
+        if (out != NULL) {
+            metric_add(obj, SDRTCP_METRIC_COMPRESSED_INPUT_BYTES, (int64_t) job->buffer->length);
+            metric_add(obj, SDRTCP_METRIC_COMPRESSED_OUTPUT_BYTES, (int64_t) out->length);
+            metric_add(obj, SDRTCP_METRIC_COMPRESSION_CPU_MICROS, thread_cpu_us() - started);
+        }
+    }
+
+    // the feeding thread doesn't touch the queue of a compressing client, this is its only producer
+    // clients_locker keeps the client from being reaped meanwhile, so this must not wait for room while holding it,
+    // the feeding thread and the event loop would wait along with it, a slow client loses the newest frame instead
+    int policy = job->policy == SDRTCP_POLICY_BLOCK ? SDRTCP_POLICY_DROP_NEWEST : job->policy;
+    int queued = 0;
+    pthread_mutex_lock(&obj->clients_locker);
+    sdrtcp_client_t * client = job->client;
+    if (client->state == CLIENT_SERVING && client->connection == job->connection) {
+        if (out != NULL) queued = client_enqueue(client, out, policy); else client_dropped(client, job->buffer);
+    }
+    pthread_mutex_unlock(&obj->clients_locker);
+
+    if (out != NULL && !queued) buffer_release(out);
+    if (out != job->buffer) buffer_release(job->buffer);
+    if (queued) server_wake(obj);
+}
+
+// Codes the blocks of the clients that asked for compression, so that the feeding thread never waits for it
+static void * compress_server(void * arg) {
+    sdrtcp_t * obj = (sdrtcp_t *) arg;
+    while (atomic_load_explicit(&obj->compress_running, memory_order_acquire)) {
+        sdrtcp_compress_job_t * job = (sdrtcp_compress_job_t *) spscring_pop_wait(&obj->compress_queue, LOOP_TIMEOUT_MS);
+        if (job != NULL) compress_run(obj, job);
+    }
+    return NULL;
+}
+
+static void compress_start(sdrtcp_t * obj) {
+    spscring_open(&obj->compress_queue);
+    atomic_store_explicit(&obj->compress_running, 1, memory_order_release);
+    int error = pthread_create(&obj->compress_thread, NULL, compress_server, obj);
+    if (error != 0) {
+        LOGI("SdrTcp: Cannot start the compression thread, clients get plain bytes. Code %d, exception %s", error, strerror(error));
+        atomic_store_explicit(&obj->compress_running, 0, memory_order_release);
+    }
+}
+
+// a block that is handed over after this stays in the ring until compress_drain
+static void compress_stop(sdrtcp_t * obj) {
+    if (!atomic_exchange(&obj->compress_running, 0)) return;
+    spscring_close(&obj->compress_queue);
+    pthread_join(obj->compress_thread, NULL);
+}
+
+// only safe once nothing is feeding a compressing client
+static void compress_drain(sdrtcp_t * obj) {
+    sdrtcp_compress_job_t * job;
+    while ((job = (sdrtcp_compress_job_t *) spscring_pop(&obj->compress_queue)) != NULL) {
+        buffer_release(job->buffer);
     }
 }
 
+// Single thread event loop serving the listen socket, commands and samples of all clients
 static void tcp_server(void *arg) {
     sdrtcp_t * obj = (sdrtcp_t *) arg;
 
-    LOGI("SdrTcp: Waiting for client...");
-    sdrtcp_wait_for_client(obj);
+    struct epoll_event events[SDRTCP_MAX_CLIENTS + 2];
+    int served_clients = 0;
+    int running = 1;
+    int udp_waiting = 0;
+
+    obj->epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+    if (obj->epoll_fd == -1
+        || !server_watch(obj, obj->listen_socket, EPOLLIN, EVENT_LISTEN)
+        || !server_watch(obj, obj->wake_fd, EPOLLIN, EVENT_WAKE)) {
+        LOGI("SdrTcp: Cannot start event loop. Code %d, exception %s", errno, strerror(errno));
+        running = 0;
+    }
 
-    if (obj->state == STAGE_CLIENT_OPEN) {
-        LOGI("SdrTcp: TCP server succesfully started and listening for clients!");
-        pthread_t commandThread;
+    if (running) compress_start(obj);
 
-        pthread_attr_t attrs;
-        pthread_attr_init(&attrs);
-        pthread_attr_setdetachstate(&attrs, PTHREAD_CREATE_JOINABLE);
-        pthread_create(&commandThread, &attrs, (void *) commandListener, (void *) obj);
+    LOGI("SdrTcp: Waiting for client...");
+    while (running && (obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC || obj->state == STAGE_CLIENT_SERVING)) {
+        sdrtcp_reap_clients(obj, 0);
+
+        if (served_clients && obj->clients_count == 0) {
+            LOGI("SdrTcp: All clients have disconnected");
+            if (!obj->persistent) break;
+
+            // the device keeps streaming and the feed goes back to discarding until somebody connects
+            // unless it goes out over UDP, which doesn't depend on anybody being connected
+            pthread_mutex_lock(&obj->state_locker);
+            if (obj->state == STAGE_CLIENT_SERVING && obj->udp.socket == -1) obj->state = STAGE_CLIENT_OPEN_STARTED_ASYNC;
+            pthread_mutex_unlock(&obj->state_locker);
+            served_clients = 0;
+            LOGI("SdrTcp: Waiting for client...");
+        }
 
-        pthread_mutex_lock(&obj->state_locker);
-        obj->state = STAGE_CLIENT_SERVING;
-        pthread_mutex_unlock(&obj->state_locker);
+        int n = epoll_wait(obj->epoll_fd, events, SDRTCP_MAX_CLIENTS + 2, udp_waiting ? UDP_PACING_TICK_MS : LOOP_TIMEOUT_MS);
+        if (n == -1) {
+            if (errno == EINTR) continue;
+            LOGI("SdrTcp: Cannot wait for events. Code %d, exception %s", errno, strerror(errno));
+            break;
+        }
 
-        serveClient(obj);
+        int flush_all = 0;
+        int i;
+        for (i = 0; i < n; i++) {
+            uint32_t token = events[i].data.u32;
+            if (token == EVENT_LISTEN) {
+                running = sdrtcp_accept_clients(obj, &served_clients);
+            } else if (token == EVENT_WAKE) {
+                uint64_t value;
+                if (read(obj->wake_fd, &value, sizeof(value)) < 0 && errno != EAGAIN) {
+                    LOGI("SdrTcp: Cannot read wakeups. Code %d, exception %s", errno, strerror(errno));
+                }
+                // anything fed after this point raises a new wakeup
+                atomic_store(&obj->wake_pending, 0);
+                flush_all = 1;
+            } else if (token < SDRTCP_MAX_CLIENTS) {
+                sdrtcp_client_t * client = &obj->clients[token];
+                if (client->state != CLIENT_SERVING) continue;
+                if ((events[i].events & EPOLLERR) && client->awaiting_count > 0) client_read_completions(client);
+                if (events[i].events & (EPOLLIN | EPOLLRDHUP | EPOLLHUP | EPOLLERR)) client_read_commands(client, events[i].events);
+                if (events[i].events & EPOLLOUT) client_flush(client);
+            }
+        }
 
-        LOGI("SdrTcp: Waiting for command thread to die");
-        void *status;
-        pthread_join(commandThread, &status);
+        if (flush_all) {
+            for (i = 0; i < obj->max_clients; i++) {
+                if (obj->clients[i].state == CLIENT_SERVING) client_flush(&obj->clients[i]);
+            }
+        }
+        if (obj->udp.socket != -1) udp_waiting = udp_flush(obj);
     }
 
+    LOGI("SdrTcp: Disconnecting clients");
+    compress_stop(obj);
+    sdrtcp_reap_clients(obj, 1);
+    compress_drain(obj);
+    udp_drain(&obj->udp);
+    if (obj->epoll_fd != -1) close(obj->epoll_fd);
+    obj->epoll_fd = -1;
+
     LOGI("SdrTcp: TCP server shutting down.");
+    LOGI("SdrTcp: Idle for %lld ms, discarded %lld bytes",
+         (long long) sdrtcp_get_metric(obj, SDRTCP_METRIC_IDLE_MILLIS),
+         (long long) sdrtcp_get_metric(obj, SDRTCP_METRIC_DISCARDED_BYTES));
+    if (sdrtcp_get_metric(obj, SDRTCP_METRIC_COMPRESSED_INPUT_BYTES) != 0) {
+        LOGI("SdrTcp: Compressed %lld bytes to %lld, %lld us of CPU per MB",
+             (long long) sdrtcp_get_metric(obj, SDRTCP_METRIC_COMPRESSED_INPUT_BYTES),
+             (long long) sdrtcp_get_metric(obj, SDRTCP_METRIC_COMPRESSED_OUTPUT_BYTES),
+             (long long) sdrtcp_get_metric(obj, SDRTCP_METRIC_COMPRESSION_MICROS_PER_MB));
+    }
     pthread_mutex_lock(&obj->state_locker);
     if (obj->state != STAGE_UNINITIALIZED) {
         pthread_mutex_unlock(&obj->state_locker);
@@ -246,43 +1319,259 @@ static void tcp_server(void *arg) {
     pthread_exit(NULL);
 }
 
+int sdrtcp_set_option(sdrtcp_t * obj, int option, int64_t value) {
+    if (obj->state != STAGE_UNINITIALIZED) {
+        LOGI("SdrTcp: Cannot set option %d while running", option);
+        return 0;
+    }
+
+    switch (option) {
+        case SDRTCP_OPTION_MAX_CLIENTS:
+            if (value < 1 || value > SDRTCP_MAX_CLIENTS) return 0;
+            obj->max_clients = (int) value;
+            return 1;
+        case SDRTCP_OPTION_PERSISTENT:
+            obj->persistent = value != 0;
+            return 1;
+        case SDRTCP_OPTION_ZERO_COPY:
+            obj->zero_copy = value != 0;
+            return 1;
+        case SDRTCP_OPTION_WRITE_BATCH_BYTES:
+            if (value < 0 || value > INT32_MAX) return 0;
+            obj->write_batch_bytes = (size_t) value;
+            return 1;
+        case SDRTCP_OPTION_SEND_ZEROCOPY:
+            obj->send_zerocopy = value != 0;
+            return 1;
+        case SDRTCP_OPTION_SLOW_CLIENT_POLICY:
+            if (value < SDRTCP_POLICY_AUTO || value > SDRTCP_POLICY_DISCONNECT) return 0;
+            obj->slow_client_policy = (int) value;
+            return 1;
+        case SDRTCP_OPTION_LATENCY_BUDGET_MS:
+            if (value < 1 || value > INT32_MAX) return 0;
+            obj->latency_budget_ms = (int) value;
+            return 1;
+        case SDRTCP_OPTION_QUEUE_MS:
+            if (value < 1 || value > INT32_MAX) return 0;
+            obj->queue_ms = (int) value;
+            return 1;
+        case SDRTCP_OPTION_QUEUE_MEMORY_BYTES:
+            if (value < 0) return 0;
+            obj->queue_memory_bytes = value;
+            return 1;
+        case SDRTCP_OPTION_LOW_LATENCY:
+            obj->low_latency = value != 0;
+            return 1;
+        case SDRTCP_OPTION_DECIMATION:
+            if (value < 1 || value > DECIMATOR_MAX_FACTOR || (value & (value - 1)) != 0) return 0;
+            obj->decimation = (int) value;
+            return 1;
+        case SDRTCP_OPTION_SAMPLE_BITS:
+            if (value != 8 && value != 16) return 0;
+            obj->sample_format = value == 16 ? SAMPLE_FORMAT_S16 : SAMPLE_FORMAT_U8;
+            return 1;
+        case SDRTCP_OPTION_CHANNELIZER_CHANNELS:
+            if (value != 0 && (value < 2 || value > CHANNELIZER_MAX_CHANNELS || (value & (value - 1)) != 0)) return 0;
+            obj->channelizer_channels = (int) value;
+            return 1;
+        case SDRTCP_OPTION_SPECTRUM_SIZE:
+            if (value != 0 && (value < SPECTRUM_MIN_SIZE || value > SPECTRUM_MAX_SIZE || (value & (value - 1)) != 0)) return 0;
+            obj->spectrum_size = (int) value;
+            return 1;
+        case SDRTCP_OPTION_SPECTRUM_OVERLAP_PERCENT:
+            if (value < 0 || value > SPECTRUM_MAX_OVERLAP_PERCENT) return 0;
+            obj->spectrum_overlap_percent = (int) value;
+            return 1;
+        case SDRTCP_OPTION_SPECTRUM_AVERAGES:
+            if (value < 1 || value > SPECTRUM_MAX_AVERAGES) return 0;
+            obj->spectrum_averages = (int) value;
+            return 1;
+        case SDRTCP_OPTION_SPECTRUM_BITS:
+            if (value != 8 && value != 16) return 0;
+            obj->spectrum_bits = (int) value;
+            return 1;
+        case SDRTCP_OPTION_IQ_CORRECTION:
+            obj->iq_correction = value != 0;
+            return 1;
+        case SDRTCP_OPTION_SHARED_RING_BYTES:
+            if (value < 0 || value > (1 << 30)) return 0;
+            obj->shared_ring_bytes = (size_t) value;
+            return 1;
+        default:
+            LOGI("SdrTcp: Unknown option %d", option);
+            return 0;
+    }
+}
+
+int sdrtcp_set_udp_output(sdrtcp_t * obj, const char * address, int port) {
+    if (obj->state != STAGE_UNINITIALIZED) {
+        LOGI("SdrTcp: Cannot change UDP output while running");
+        return 0;
+    }
+
+    if (address == NULL || address[0] == 0 || port == 0) {
+        obj->udp_port = 0;
+        return 1;
+    }
+
+    struct in_addr parsed;
+    if (port < 0 || port > 65535 || strlen(address) >= sizeof(obj->udp_address) || inet_aton(address, &parsed) == 0) {
+        LOGI("SdrTcp: Invalid UDP output %s:%d", address, port);
+        return 0;
+    }
+
+    strcpy(obj->udp_address, address);
+    obj->udp_port = port;
+    return 1;
+}
+
+void sdrtcp_set_sample_rate(sdrtcp_t * obj, uint32_t rate) {
+    atomic_store_explicit(&obj->sample_rate, rate, memory_order_relaxed);
+}
+
+uint32_t sdrtcp_preferred_feed_bytes(sdrtcp_t * obj, uint32_t rate) {
+    if (!obj->low_latency || rate == 0) return 0;
+
+    // USB transfers are a multiple of 512 bytes
+    uint32_t bytes = (uint32_t) ((uint64_t) rate * sizeof(uint16_t) * SDRTCP_LOW_LATENCY_FEED_MS / 1000);
+    return (bytes + 511) / 512 * 512;
+}
+
+int64_t sdrtcp_get_metric(sdrtcp_t * obj, int metric) {
+    if (metric < 0 || metric >= SDRTCP_METRICS_COUNT) return -1;
+
+    int64_t value = atomic_load_explicit(&obj->metrics[metric], memory_order_relaxed);
+    if (metric == SDRTCP_METRIC_IDLE_MILLIS) {
+        int64_t since = atomic_load_explicit(&obj->idle_since_ms, memory_order_relaxed);
+        if (since != 0) value += monotonic_ms() - since;
+    }
+    if (metric == SDRTCP_METRIC_COMPRESSION_RATIO_PERCENT || metric == SDRTCP_METRIC_COMPRESSION_MICROS_PER_MB) {
+        int64_t input = atomic_load_explicit(&obj->metrics[SDRTCP_METRIC_COMPRESSED_INPUT_BYTES], memory_order_relaxed);
+        int64_t output = atomic_load_explicit(&obj->metrics[SDRTCP_METRIC_COMPRESSED_OUTPUT_BYTES], memory_order_relaxed);
+        int64_t cpu_us = atomic_load_explicit(&obj->metrics[SDRTCP_METRIC_COMPRESSION_CPU_MICROS], memory_order_relaxed);
+        if (metric == SDRTCP_METRIC_COMPRESSION_RATIO_PERCENT) value = output == 0 ? 0 : input * 100 / output;
+        else value = input == 0 ? 0 : (int64_t) (cpu_us * 1e6 / input);
+    }
+    return value;
+}
+
+// fills in local from a unix:/path or unix:@abstract address, returns the length of the address or 0 if it is not valid
+static socklen_t unix_address(const char * address, struct sockaddr_un * local) {
+    const char * path = address + strlen(UNIX_ADDRESS_PREFIX);
+    size_t length = strlen(path);
+
+    memset(local, 0, sizeof(*local));
+    local->sun_family = AF_UNIX;
+    if (length < 2 || length >= sizeof(local->sun_path)) return 0;
+
+    if (path[0] == '@') {
+        // abstract sockets start with a zero byte and are not zero terminated
+        memcpy(local->sun_path + 1, path + 1, length - 1);
+        return (socklen_t) (offsetof(struct sockaddr_un, sun_path) + length);
+    }
+
+    memcpy(local->sun_path, path, length);
+    return (socklen_t) (offsetof(struct sockaddr_un, sun_path) + length + 1);
+}
+
 int sdrtcp_open_socket(sdrtcp_t * obj, const char * address, int port, const char * dongleMagic, uint32_t dongleType, uint32_t gainsCount) {
     if (obj->state != STAGE_UNINITIALIZED) {
         LOGI("SdrTcp: Called sdrtcp_open_socket with unexpected state %d", obj->state);
         RETURN_FAILURE;
     }
 
+    if (obj->wake_fd == -1) {
+        LOGI("SdrTcp: No eventfd to wake up the event loop");
+        return 0;
+    }
+
+    // the channelizer starts over too, it is set up first as there is nothing to undo yet if that fails
+    channelizer_free(&obj->channelizer);
+    if (obj->channelizer_channels != 0 && !channelizer_init(&obj->channelizer, obj->channelizer_channels)) {
+        LOGI("SdrTcp: Cannot set up a channelizer with %d channels", obj->channelizer_channels);
+        return 0;
+    }
+    spectrum_free(&obj->spectrum);
+    if (obj->spectrum_size != 0 && !spectrum_init(&obj->spectrum, obj->spectrum_size, obj->spectrum_overlap_percent, obj->spectrum_averages)) {
+        LOGI("SdrTcp: Cannot set up spectra of %d bins", obj->spectrum_size);
+        return 0;
+    }
+
     obj->listen_socket = -1;
 
     pthread_mutex_lock(&obj->state_locker);
-    pool_init(&obj->workpool, POOL_MAX_ELEMENTS, EXTBUFF_TYPE_USHORT);
-    pool_set_threads(&obj->workpool, 2);
 
-    dongle_info_t dongle_info;
-    memset(&dongle_info, 0, sizeof(dongle_info));
-    memcpy(&dongle_info.magic, dongleMagic, 4);
-    dongle_info.dongleType = htonl(dongleType);
-    dongle_info.gainsCount = htonl(gainsCount);
+    // room for the deepest queues, the memory behind a buffer is only allocated once it is used
+    obj->buffers_count = buffers_needed(obj, SDRTCP_MAX_QUEUE_DEPTH);
+    void * buffers = NULL;
+    if (posix_memalign(&buffers, SPSCRING_CACHE_LINE, sizeof(sdrtcp_buffer_t) * obj->buffers_count) != 0) {
+        obj->buffers_count = 0;
+        pthread_mutex_unlock(&obj->state_locker);
+        LOGI("SdrTcp: Cannot allocate buffers");
+        return 0;
+    }
+    obj->buffers = (sdrtcp_buffer_t *) buffers;
+    int i;
+    for (i = 0; i < obj->buffers_count; i++) {
+        extbuffer_init(&obj->buffers[i].data, EXTBUFF_TYPE_USHORT);
+        atomic_init(&obj->buffers[i].references, 0);
+    }
 
-    // Send the dongle info as the first thing
-    extbuffer_t * buff = NULL;
-    if ((buff = pool_get_wait_lock(&obj->workpool, 0, 1)) != NULL) {
-        extbuffer_preparetohandle(buff, sizeof(dongle_info) / sizeof(uint16_t));
-        memcpy((void *) buff->ushortbuffer, (void *) &dongle_info, sizeof(dongle_info));
-        pool_get_unlock(&obj->workpool, 0, buff);
+    for (i = 0; i < SDRTCP_METRICS_COUNT; i++) {
+        atomic_store(&obj->metrics[i], 0);
     }
+    atomic_store(&obj->idle_since_ms, 0);
+    obj->samples_fed = 0;
+
+    // the filters start over, nothing of a previous run leaks into this one
+    decimator_free(&obj->decimator);
+    decimator_init(&obj->decimator, obj->decimation, obj->sample_format);
+    iqcorrect_init(&obj->corrector);
+    obj->channelizer_samples = 0;
+
+    // sized again once the first buffer is fed
+    obj->sized_rate = 0;
+    obj->sized_length = 0;
+    obj->queue_depth = CLIENT_MAX_QUEUED;
+    atomic_store(&obj->metrics[SDRTCP_METRIC_QUEUE_DEPTH], CLIENT_MAX_QUEUED);
+    for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+        spscring_set_limit(&obj->clients[i].queue, CLIENT_MAX_QUEUED);
+    }
+
+    // forget wakeups left over from a previous run
+    uint64_t wakeups;
+    while (read(obj->wake_fd, &wakeups, sizeof(wakeups)) > 0);
+    atomic_store(&obj->wake_pending, 0);
+
+    memset(&obj->dongle_info, 0, sizeof(obj->dongle_info));
+    memcpy(&obj->dongle_info.magic, dongleMagic, 4);
+    obj->dongle_info.dongleType = htonl(dongleType);
+    obj->dongle_info.gainsCount = htonl(gainsCount);
 
     obj->state = STAGE_INITIALIZED;
     pthread_mutex_unlock(&obj->state_locker);
 
-    struct sockaddr_in local;
+    struct sockaddr_storage local;
+    socklen_t local_length;
+    int unix_socket = strncmp(address, UNIX_ADDRESS_PREFIX, strlen(UNIX_ADDRESS_PREFIX)) == 0;
+    obj->unix_socket = unix_socket;
     memset(&local,0,sizeof(local));
 
-    local.sin_family = AF_INET;
-    local.sin_port = htons(port);
-    local.sin_addr.s_addr = inet_addr(address);
+    if (unix_socket) {
+        local_length = unix_address(address, (struct sockaddr_un *) &local);
+        if (local_length == 0) {
+            LOGI("SdrTcp: Invalid unix socket address %s", address);
+            RETURN_FAILURE;
+        }
+    } else {
+        struct sockaddr_in * local_in = (struct sockaddr_in *) &local;
+        local_in->sin_family = AF_INET;
+        local_in->sin_port = htons(port);
+        local_in->sin_addr.s_addr = inet_addr(address);
+        local_length = sizeof(*local_in);
+    }
 
-    if (obj->state == STAGE_INITIALIZED) obj->listen_socket = socket(AF_INET, SOCK_STREAM, IPPROTO_TCP);
+    if (obj->state == STAGE_INITIALIZED) obj->listen_socket = unix_socket ? socket(AF_UNIX, SOCK_STREAM, 0) : socket(AF_INET, SOCK_STREAM, IPPROTO_TCP);
 
     pthread_mutex_lock(&obj->state_locker);
     if (obj->listen_socket != -1) obj->state = STAGE_SOCKET_OPEN;
@@ -292,20 +1581,43 @@ int sdrtcp_open_socket(sdrtcp_t * obj, const char * address, int port, const cha
     int success = 0;
 
     if (obj->state == STAGE_SOCKET_OPEN) {
+        struct sockaddr_un * local_un = (struct sockaddr_un *) &local;
+        if (unix_socket && local_un->sun_path[0] != 0) {
+            // a socket file left behind by a previous run would make bind fail
+            struct stat existing;
+            if (stat(local_un->sun_path, &existing) == 0 && S_ISSOCK(existing.st_mode)) unlink(local_un->sun_path);
+        }
+
         setsockopt(obj->listen_socket, SOL_SOCKET, SO_REUSEADDR, (char *) &r, sizeof(int));
         struct linger ling = {1, 0};
         setsockopt(obj->listen_socket, SOL_SOCKET, SO_LINGER, (char *) &ling, sizeof(ling));
-        if (bind(obj->listen_socket, (struct sockaddr *) &local, sizeof(local)) == 0)  {
+        if (bind(obj->listen_socket, (struct sockaddr *) &local, local_length) == 0)  {
+            if (unix_socket && local_un->sun_path[0] != 0) strcpy(obj->unix_path, local_un->sun_path);
+
             r = fcntl(obj->listen_socket, F_GETFL, 0);
             r = fcntl(obj->listen_socket, F_SETFL, r | O_NONBLOCK);
 
-            if (listen(obj->listen_socket, 1) == 0) {
-                LOGI("SdrTcp: Listening on %s:%d", address, port);
+            if (listen(obj->listen_socket, obj->max_clients) == 0) {
+                if (unix_socket) {
+                    LOGI("SdrTcp: Listening on %s for up to %d client(s)", address, obj->max_clients);
+                } else {
+                    LOGI("SdrTcp: Listening on %s:%d for up to %d client(s)", address, port, obj->max_clients);
+                }
                 success = 1;
             }
         }
     }
 
+    if (obj->state == STAGE_SOCKET_OPEN && success && obj->udp_port != 0) success = udp_open(obj);
+    if (obj->state == STAGE_SOCKET_OPEN && success && obj->shared_ring_bytes != 0) {
+        if (unix_socket) {
+            success = shared_ring_open(obj);
+        } else {
+            LOGI("SdrTcp: The shared ring needs a unix domain socket to pass it to clients");
+            success = 0;
+        }
+    }
+
     if (obj->state == STAGE_SOCKET_OPEN && success) RETURN_SUCCESS else {
         LOGI("SdrTcp: Closing sdrtcp due to sdrtcp_open_socket seeing state %d and success %d", obj->state, success);
         RETURN_FAILURE;
@@ -319,8 +1631,8 @@ void sdrtcp_serve_client_async(sdrtcp_t * obj, void * ctx, sdrtcp_command_callba
         RETURN_AND_CLOSE;
     }
 
-    // async start is imminent
-    obj->state = STAGE_CLIENT_OPEN_STARTED_ASYNC;
+    // async start is imminent, UDP output starts right away without waiting for a client
+    obj->state = obj->udp.socket != -1 ? STAGE_CLIENT_SERVING : STAGE_CLIENT_OPEN_STARTED_ASYNC;
 
     pthread_t worker_thread;
 
@@ -347,44 +1659,714 @@ void sdrtcp_stop_serving_client(sdrtcp_t * obj) {
     } else {
         LOGI("SdrTcp: Requested sdrtcp stop asynchroneously");
         obj->state = STAGE_NEEDS_STOPPING;
+        // a feeder waiting for room in a client queue holds the state lock, so it is let go before the
+        // event loop gets to disconnecting anybody, the eventfd then takes the event loop out of epoll_wait
+        int i;
+        for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+            spscring_close(&obj->clients[i].queue);
+        }
+        server_wake(obj);
+    }
+}
+
+// brings the channel of a client up to date with what it asked for, and with the rate of the device
+static void channel_update(sdrtcp_t * obj, sdrtcp_client_t * client, uint32_t rate) {
+    unsigned int changes = atomic_load_explicit(&client->channel_changes, memory_order_acquire);
+    if (changes == client->channel_applied && rate == client->channel_rate) return;
+
+    int offset_hz = atomic_load_explicit(&client->channel_offset_hz, memory_order_relaxed);
+    int factor = atomic_load_explicit(&client->channel_decimation, memory_order_relaxed);
+    sample_format_t format = (sample_format_t) atomic_load_explicit(&client->sample_format, memory_order_relaxed);
+    client->channel_applied = changes;
+    client->channel_rate = rate;
+    client->channel_active = factor != 1 || offset_hz != 0;
+    if (!client->channel_active) return;
+
+    // the filters start over, the few samples they held are not worth keeping across a retune
+    decimator_free(&client->channel);
+    decimator_init(&client->channel, factor, format);
+    // the offset can only be turned into a frequency once the rate is known, until then the channel is centred
+    decimator_set_offset(&client->channel, rate == 0 ? 0 : (double) offset_hz / rate);
+    LOGI("SdrTcp: Client channel at %d Hz, sample rate divided by %d", offset_hz, factor);
+}
+
+// a buffer with the channel of the client cut out of the raw samples, NULL if there is nothing to send yet
+static sdrtcp_buffer_t * channel_fill(sdrtcp_t * obj, sdrtcp_client_t * client, sdrtcp_buffer_t * source, const uint8_t * raw, uint32_t samples) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    extbuffer_preparetohandle(&buffer->data, (int) (decimator_max_output_bytes(&client->channel, samples) + 1) / 2);
+    buffer->bytes = (const uint8_t *) buffer->data.ushortbuffer;
+    buffer->length = buffer->data.valid ? decimator_process(&client->channel, raw, samples, (uint8_t *) buffer->data.ushortbuffer) : 0;
+    if (buffer->length == 0) {
+        buffer_release(buffer);
+        return NULL;
+    }
+    buffer->fed_us = source->fed_us;
+    buffer->first_sample = source->first_sample;
+    buffer->samples = buffer->length / sampleformat_bytes(client->channel.format);
+    return buffer;
+}
+
+// a buffer with one channel of what channelizer_process made, NULL if there is no memory
+static sdrtcp_buffer_t * channelizer_fill(sdrtcp_t * obj, int channel, sample_format_t format, sdrtcp_buffer_t * source, uint32_t outputs) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    extbuffer_preparetohandle(&buffer->data, (int) (outputs * sampleformat_bytes(format) + 1) / 2);
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+    buffer->bytes = (const uint8_t *) buffer->data.ushortbuffer;
+    buffer->length = sampleformat_from_float(format, channelizer_channel(&obj->channelizer, channel), outputs, (uint8_t *) buffer->data.ushortbuffer);
+    buffer->fed_us = source->fed_us;
+    buffer->first_sample = obj->channelizer_samples;
+    buffer->samples = outputs;
+    return buffer;
+}
+
+// a frame with every channel of what channelizer_process made, NULL if there is no memory
+static sdrtcp_buffer_t * channelizer_frame(sdrtcp_t * obj, sample_format_t format, sdrtcp_buffer_t * source, uint32_t outputs) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    const int channels = obj->channelizer_channels;
+    size_t channel_bytes = (size_t) outputs * sampleformat_bytes(format);
+    extbuffer_preparetohandle(&buffer->data, (int) (sizeof(sdrtcp_channels_header_t) + channels * channel_bytes + 1) / 2);
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+
+    uint8_t * bytes = (uint8_t *) buffer->data.ushortbuffer;
+    sdrtcp_channels_header_t header;
+    memcpy(header.magic, SDRTCP_CHANNELS_MAGIC, sizeof(header.magic));
+    header.channels = htonl((uint32_t) channels);
+    header.samples = htonl(outputs);
+    header.sample = htobe64((uint64_t) obj->channelizer_samples);
+    memcpy(bytes, &header, sizeof(header));
+
+    // the upper half of the channels is below the centre frequency, so it goes first
+    uint8_t * out = bytes + sizeof(header);
+    int k;
+    for (k = 0; k < channels; k++) {
+        int channel = (k + channels / 2) & (channels - 1);
+        out += sampleformat_from_float(format, channelizer_channel(&obj->channelizer, channel), outputs, out);
+    }
+
+    buffer->bytes = bytes;
+    buffer->length = (size_t) (out - bytes);
+    buffer->fed_us = source->fed_us;
+    buffer->first_sample = obj->channelizer_samples;
+    buffer->samples = outputs;
+    return buffer;
+}
+
+// the block in another format, for the clients that asked for one, NULL if there is no memory
+// it is converted from the float IQ it was made of, so that a wider format keeps what decimation or correction added
+static sdrtcp_buffer_t * stream_convert(sdrtcp_t * obj, sample_format_t format, sdrtcp_buffer_t * source, const uint8_t * raw) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    uint32_t samples = (uint32_t) (source->length / sample_bytes(obj));
+    extbuffer_preparetohandle(&buffer->data, (int) (samples * sampleformat_bytes(format) + 1) / 2);
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+    uint8_t * out = (uint8_t *) buffer->data.ushortbuffer;
+    buffer->bytes = out;
+    buffer->length = obj->stream_iq != NULL ? sampleformat_from_float(format, obj->stream_iq, samples, out) : sampleformat_from_u8(format, raw, samples, out);
+    buffer->fed_us = source->fed_us;
+    buffer->first_sample = source->first_sample;
+    buffer->samples = samples;
+    return buffer;
+}
+
+// a buffer with every spectrum that spectrum_process completed, each with its header, NULL if there is no memory
+static sdrtcp_buffer_t * spectrum_frames(sdrtcp_t * obj, sdrtcp_buffer_t * source, uint32_t spectra, uint32_t rate) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    const spectrum_t * spectrum = &obj->spectrum;
+    size_t frame_bytes = sizeof(sdrtcp_spectrum_header_t) + (size_t) spectrum->size * (obj->spectrum_bits / 8);
+    extbuffer_preparetohandle(&buffer->data, (int) (spectra * frame_bytes + 1) / 2);
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+
+    uint8_t * bytes = (uint8_t *) buffer->data.ushortbuffer;
+    uint8_t * out = bytes;
+    sdrtcp_spectrum_header_t header;
+    memcpy(header.magic, SDRTCP_SPECTRUM_MAGIC, sizeof(header.magic));
+    header.bins = htonl((uint32_t) spectrum->size);
+    header.bits = htonl((uint32_t) obj->spectrum_bits);
+    header.millidb_per_step = htonl(obj->spectrum_bits == 16 ? SPECTRUM_16BIT_MILLIDB_PER_STEP : SPECTRUM_8BIT_MILLIDB_PER_STEP);
+    header.averages = htonl((uint32_t) spectrum->averages);
+    header.sample_rate = htonl(rate);
+    uint32_t s;
+    for (s = 0; s < spectra; s++) {
+        // the spectra of a block follow each other without a gap
+        header.sample = htobe64((uint64_t) (spectrum->first_start + (int64_t) s * spectrum->averages * spectrum->hop));
+        memcpy(out, &header, sizeof(header));
+        out += sizeof(header);
+        out += spectrum_quantize(spectrum_bins(spectrum, s), spectrum->size, obj->spectrum_bits, out);
+    }
+
+    buffer->bytes = bytes;
+    buffer->length = (size_t) (out - bytes);
+    buffer->fed_us = source->fed_us;
+    buffer->first_sample = spectrum->first_start;
+    buffer->samples = (int64_t) spectra * spectrum->averages * spectrum->hop;
+    return buffer;
+}
+
+// a frame of a burst for a squelched client, the pre-roll in front of the block, NULL if there is no memory
+// without a block it is the frame that ends the burst at sample, the pre-roll is empty then
+static sdrtcp_buffer_t * squelch_frame(sdrtcp_t * obj, sdrtcp_client_t * client, const sdrtcp_buffer_t * block, sample_format_t format, int64_t sample, int64_t fed_us) {
+    sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+    if (buffer == NULL) return NULL;
+
+    // a switch of format leaves the older part of the pre-roll in the old one, which can't go into the frame
+    size_t length = block != NULL ? block->length : 0;
+    int k;
+    for (k = 0; k < client->preroll_count; k++) {
+        const sdrtcp_preroll_t * kept = &client->preroll[(client->preroll_first + k) % SDRTCP_SQUELCH_PREROLL_BLOCKS];
+        if (kept->format == format) length += kept->length;
+    }
+    extbuffer_preparetohandle(&buffer->data, (int) (sizeof(sdrtcp_squelch_header_t) + length + 1) / 2);
+    if (!buffer->data.valid) {
+        buffer_release(buffer);
+        return NULL;
+    }
+
+    uint8_t * bytes = (uint8_t *) buffer->data.ushortbuffer;
+    uint8_t * out = bytes + sizeof(sdrtcp_squelch_header_t);
+    int64_t first_sample = sample;
+    int64_t first_fed_us = fed_us;
+    for (k = 0; k < client->preroll_count; k++) {
+        const sdrtcp_preroll_t * kept = &client->preroll[(client->preroll_first + k) % SDRTCP_SQUELCH_PREROLL_BLOCKS];
+        if (kept->format != format) continue;
+        if (out == bytes + sizeof(sdrtcp_squelch_header_t)) {
+            first_sample = kept->sample;
+            first_fed_us = kept->fed_us;
+        }
+        memcpy(out, kept->data.charbuffer, kept->length);
+        out += kept->length;
+    }
+    client->preroll_first = 0;
+    client->preroll_count = 0;
+    if (block != NULL) {
+        memcpy(out, block->bytes, block->length);
+        out += block->length;
+    }
+
+    sdrtcp_squelch_header_t header;
+    memcpy(header.magic, SDRTCP_SQUELCH_MAGIC, sizeof(header.magic));
+    header.burst = htonl(client->squelch_burst);
+    header.samples = htonl((uint32_t) (length / sampleformat_bytes(format)));
+    header.sample = htobe64((uint64_t) first_sample);
+    header.time_us = htobe64((uint64_t) realtime_us(first_fed_us));
+    memcpy(bytes, &header, sizeof(header));
+
+    buffer->bytes = bytes;
+    buffer->length = (size_t) (out - bytes);
+    buffer->fed_us = fed_us;
+    buffer->first_sample = first_sample;
+    buffer->samples = (int64_t) (length / sampleformat_bytes(format));
+    return buffer;
+}
+
+// copies a block the squelch held back, dropping what is older than the pre-roll the client wants
+static void preroll_keep(sdrtcp_client_t * client, const sdrtcp_buffer_t * block, sample_format_t format, int64_t sample) {
+    int64_t preroll_us = atomic_load_explicit(&client->squelch_preroll_ms, memory_order_relaxed) * 1000LL;
+    while (client->preroll_count > 0 && client->preroll[client->preroll_first].fed_us < block->fed_us - preroll_us) {
+        client->preroll_first = (client->preroll_first + 1) % SDRTCP_SQUELCH_PREROLL_BLOCKS;
+        client->preroll_count--;
+    }
+    if (preroll_us == 0) return;
+    if (client->preroll_count == SDRTCP_SQUELCH_PREROLL_BLOCKS) {
+        client->preroll_first = (client->preroll_first + 1) % SDRTCP_SQUELCH_PREROLL_BLOCKS;
+        client->preroll_count--;
+    }
+
+    sdrtcp_preroll_t * kept = &client->preroll[(client->preroll_first + client->preroll_count) % SDRTCP_SQUELCH_PREROLL_BLOCKS];
+    extbuffer_preparetohandle(&kept->data, (int) block->length);
+    if (!kept->data.valid) return;
+    memcpy(kept->data.charbuffer, block->bytes, block->length);
+    kept->length = block->length;
+    kept->format = format;
+    kept->fed_us = block->fed_us;
+    kept->sample = sample;
+    client->preroll_count++;
+}
+
+// turns the squelch of a client on or off as it asked, before its next block, a burst that is cut short gets its end
+static int squelch_apply(sdrtcp_t * obj, sdrtcp_client_t * client, sample_format_t format, const sdrtcp_buffer_t * source, int policy) {
+    int wanted = atomic_load_explicit(&client->squelch_threshold, memory_order_relaxed) != 0;
+    if (wanted == client->squelch_active) return 0;
+
+    client->squelch_active = wanted;
+    client->preroll_first = 0;
+    client->preroll_count = 0;
+    if (wanted) {
+        squelch_init(&client->squelch);
+        client->squelch_samples = 0;
+        return 0;
+    }
+    if (!client->squelch.open) return 0;
+
+    sdrtcp_buffer_t * end = squelch_frame(obj, client, NULL, format, client->squelch_samples, source->fed_us);
+    if (end != NULL && client_queue(obj, client, end, sampleformat_bytes(format), policy)) return 1;
+    if (end != NULL) buffer_release(end);
+    return 0;
+}
+
+// queues a block of samples for a client and takes over the reference held on it, returns 1 if something was queued
+// a squelched client only gets it in a frame while the squelch is open, power_db is only looked at then
+static int client_send(sdrtcp_t * obj, sdrtcp_client_t * client, sdrtcp_buffer_t * block, sample_format_t format, double power_db, int policy) {
+    if (!client->squelch_active) {
+        if (client_queue(obj, client, block, sampleformat_bytes(format), policy)) return 1;
+        buffer_release(block);
+        return 0;
     }
+
+    int64_t sample = client->squelch_samples;
+    int64_t samples = (int64_t) (block->length / sampleformat_bytes(format));
+    client->squelch_samples += samples;
+
+    double threshold_db = -atomic_load_explicit(&client->squelch_threshold, memory_order_relaxed) / 10.0;
+    int64_t hold_us = atomic_load_explicit(&client->squelch_hold_ms, memory_order_relaxed) * 1000LL;
+    sdrtcp_buffer_t * frame = NULL;
+    switch (squelch_update(&client->squelch, power_db, threshold_db, hold_us, block->fed_us)) {
+        case SQUELCH_OPENS:
+            client->squelch_burst++;
+            frame = squelch_frame(obj, client, block, format, sample, block->fed_us);
+            break;
+        case SQUELCH_OPEN:
+            frame = squelch_frame(obj, client, block, format, sample, block->fed_us);
+            break;
+        case SQUELCH_CLOSES:
+            frame = squelch_frame(obj, client, NULL, format, sample, block->fed_us);
+            preroll_keep(client, block, format, sample);
+            metric_add(obj, SDRTCP_METRIC_SQUELCHED_SAMPLES, samples);
+            break;
+        default:
+            preroll_keep(client, block, format, sample);
+            metric_add(obj, SDRTCP_METRIC_SQUELCHED_SAMPLES, samples);
+            break;
+    }
+    buffer_release(block);
+
+    if (frame != NULL && client_queue(obj, client, frame, sampleformat_bytes(format), policy)) return 1;
+    if (frame != NULL) buffer_release(frame);
+    return 0;
+}
+
+// hands a reference to every client and drops the one of the feeder
+// raw are the samples as they came from the device, for the clients that want a channel of their own
+// waits for room for the buffers that clients on SDRTCP_POLICY_BLOCK had none for, one bit of blocked per client,
+// without clients_locker so that the event loop can accept and reap clients meanwhile, returns 1 if any got queued
+static int clients_unblock(sdrtcp_t * obj, unsigned int blocked) {
+    int queued = 0;
+    int i;
+    for (i = 0; i < obj->max_clients; i++) {
+        if ((blocked & (1u << i)) == 0) continue;
+        sdrtcp_client_t * client = &obj->clients[i];
+        // reaping a client closes its queue first, which ends the wait
+        spscring_wait_room(&client->queue, CLIENT_QUEUE_TIMEOUT_MS);
+
+        pthread_mutex_lock(&obj->clients_locker);
+        // gone if client_drain released it meanwhile
+        sdrtcp_buffer_t * buffer = client->blocked;
+        client->blocked = NULL;
+        if (buffer != NULL) {
+            if (client->state == CLIENT_SERVING && spscring_push(&client->queue, buffer)) {
+                queued = 1;
+            } else {
+                client_dropped(client, buffer);
+                buffer_release(buffer);
+            }
+        }
+        pthread_mutex_unlock(&obj->clients_locker);
+    }
+    return queued;
+}
+
+static void sdrtcp_fan_out(sdrtcp_t * obj, sdrtcp_buffer_t * buffer, const uint8_t * raw, uint32_t samples) {
+    // by default a single client keeps the classic behaviour of slowing down the feed, with more clients nobody waits
+    int policy = obj->slow_client_policy;
+    // with low latency the newest data is worth more than anything still waiting
+    if (policy == SDRTCP_POLICY_AUTO && obj->low_latency) policy = SDRTCP_POLICY_DROP_OLDEST;
+    if (policy == SDRTCP_POLICY_AUTO) policy = obj->max_clients == 1 ? SDRTCP_POLICY_BLOCK : SDRTCP_POLICY_DROP_NEWEST;
+
+    uint32_t rate = atomic_load_explicit(&obj->sample_rate, memory_order_relaxed);
+    if (rate != obj->sized_rate || buffer->length != obj->sized_length) queue_resize(obj, rate, buffer->length);
+
+    int queued = 0;
+
+    if (obj->udp.socket != -1) {
+        // the TCP clients are only there to send commands
+        atomic_fetch_add_explicit(&buffer->references, 1, memory_order_relaxed);
+        queued = udp_enqueue(obj, buffer);
+    } else {
+        // the channelizer runs once for all clients that picked a channel, and the frame of all channels is shared too
+        int channelized = 0;
+        uint32_t outputs = 0;
+        sdrtcp_buffer_t * frames[SAMPLE_FORMATS] = { NULL };
+        // so is the block in every other format, the format is read once per block so that it changes between buffers
+        sdrtcp_buffer_t * converted[SAMPLE_FORMATS] = { NULL };
+        // and so are the spectra
+        int analysed = 0;
+        sdrtcp_buffer_t * spectra = NULL;
+        // and the power of the block for squelched clients, measured once it is needed
+        int measured = 0;
+        double power_db = SQUELCH_FLOOR_DB;
+
+        pthread_mutex_lock(&obj->clients_locker);
+        int i;
+        for (i = 0; i < obj->max_clients; i++) {
+            sdrtcp_client_t * client = &obj->clients[i];
+            if (client->state != CLIENT_SERVING) continue;
+
+            // from the first block after the client asked for compression everything for it goes through the compression thread
+            if (!client->compress_routed && atomic_load_explicit(&client->compression, memory_order_relaxed)
+                && atomic_load_explicit(&obj->compress_running, memory_order_relaxed)) {
+                client->compress_routed = 1;
+            }
+
+            if (obj->spectrum_size != 0 && atomic_load_explicit(&client->spectrum, memory_order_relaxed)) {
+                if (!analysed) {
+                    uint32_t completed = spectrum_process(&obj->spectrum, raw, samples);
+                    if (completed != 0) spectra = spectrum_frames(obj, buffer, completed, rate);
+                    analysed = 1;
+                }
+                if (spectra == NULL) continue;
+
+                atomic_fetch_add_explicit(&spectra->references, 1, memory_order_relaxed);
+                if (client_queue(obj, client, spectra, obj->spectrum_bits / 8, policy)) queued = 1; else buffer_release(spectra);
+                continue;
+            }
+
+            sample_format_t format = (sample_format_t) atomic_load_explicit(&client->sample_format, memory_order_relaxed);
+            if (squelch_apply(obj, client, format, buffer, policy)) queued = 1;
+            int selected = obj->channelizer_channels == 0 ? SDRTCP_CHANNELIZER_NONE : atomic_load_explicit(&client->channelizer_channel, memory_order_relaxed);
+            if (selected != SDRTCP_CHANNELIZER_NONE) {
+                if (!channelized) {
+                    outputs = channelizer_process(&obj->channelizer, raw, samples);
+                    channelized = 1;
+                }
+                if (outputs == 0) continue;
+
+                sdrtcp_buffer_t * channel;
+                if (selected == SDRTCP_CHANNELIZER_ALL) {
+                    if (frames[format] == NULL) frames[format] = channelizer_frame(obj, format, buffer, outputs);
+                    channel = frames[format];
+                    if (channel != NULL) atomic_fetch_add_explicit(&channel->references, 1, memory_order_relaxed);
+                    if (channel != NULL && client_queue(obj, client, channel, sampleformat_bytes(format), policy)) queued = 1; else if (channel != NULL) buffer_release(channel);
+                    continue;
+                }
+                channel = channelizer_fill(obj, selected, format, buffer, outputs);
+                if (channel == NULL) continue;
+                double channel_db = client->squelch_active ? squelch_power_float(channelizer_channel(&obj->channelizer, selected), outputs) : SQUELCH_FLOOR_DB;
+                if (client_send(obj, client, channel, format, channel_db, policy)) queued = 1;
+                continue;
+            }
+
+            channel_update(obj, client, rate);
+            if (client->channel_active) {
+                sdrtcp_buffer_t * channel = channel_fill(obj, client, buffer, raw, samples);
+                if (channel == NULL) continue;
+                double channel_db = client->squelch_active ? squelch_power_float(client->channel.output, client->channel.outputs) : SQUELCH_FLOOR_DB;
+                if (client_send(obj, client, channel, format, channel_db, policy)) queued = 1;
+                continue;
+            }
+
+            sdrtcp_buffer_t * stream = buffer;
+            if (format != obj->sample_format) {
+                if (converted[format] == NULL) converted[format] = stream_convert(obj, format, buffer, raw);
+                stream = converted[format];
+                if (stream == NULL) continue;
+            }
+            if (client->squelch_active && !measured) {
+                power_db = obj->stream_iq != NULL ? squelch_power_float(obj->stream_iq, (uint32_t) (buffer->length / sample_bytes(obj))) : squelch_power_u8(raw, samples);
+                measured = 1;
+            }
+            atomic_fetch_add_explicit(&stream->references, 1, memory_order_relaxed);
+            if (client_send(obj, client, stream, format, power_db, policy)) queued = 1;
+        }
+        unsigned int blocked = 0;
+        for (i = 0; i < obj->max_clients; i++) {
+            if (obj->clients[i].blocked != NULL) blocked |= 1u << i;
+        }
+        pthread_mutex_unlock(&obj->clients_locker);
+
+        for (i = 0; i < SAMPLE_FORMATS; i++) {
+            if (frames[i] != NULL) buffer_release(frames[i]);
+            if (converted[i] != NULL) buffer_release(converted[i]);
+        }
+        if (spectra != NULL) buffer_release(spectra);
+        obj->channelizer_samples += outputs;
+
+        if (blocked != 0) {
+            // what did get queued goes out while this waits
+            if (queued) server_wake(obj);
+            if (clients_unblock(obj, blocked)) queued = 1;
+        }
+    }
+
+    buffer_release(buffer);
+    if (queued) server_wake(obj);
+}
+
+// a block that found no free buffer is lost to everyone it would have gone to
+static void feed_lost(sdrtcp_t * obj, int64_t samples) {
+    if (obj->udp.socket != -1) {
+        metric_add(obj, SDRTCP_METRIC_DROPPED_SAMPLES, samples);
+        return;
+    }
+
+    pthread_mutex_lock(&obj->clients_locker);
+    int i;
+    for (i = 0; i < obj->max_clients; i++) {
+        sdrtcp_client_t * client = &obj->clients[i];
+        if (client->state == CLIENT_SERVING) client_lost(client, samples);
+    }
+    pthread_mutex_unlock(&obj->clients_locker);
+}
+
+// corrects buf in place, for everything that takes the 8 bit samples, and returns the corrected samples before rounding
+// the memory the correction needs is only allocated for the largest block, NULL if there is none
+static const float * feed_correct(sdrtcp_t * obj, unsigned char * buf, uint32_t len) {
+    extbuffer_preparetohandle(&obj->corrected, 2 * (int) len);
+    if (obj->corrected.floatbuffer == NULL) return NULL;
+    iqcorrect_process(&obj->corrector, buf, len, obj->corrected.floatbuffer);
+    sampleformat_from_float(SAMPLE_FORMAT_U8, obj->corrected.floatbuffer, len, buf);
+    return obj->corrected.floatbuffer;
 }
 
 // queue up data to send over the connection
 int sdrtcp_feed(sdrtcp_t * obj, unsigned char  * buf, uint32_t len) {
-    extbuffer_t * buff = NULL;
     int succesful = 0;
 
     if (obj->state == STAGE_CLIENT_SERVING) {
         pthread_mutex_lock(&obj->state_locker);
         if (obj->state == STAGE_CLIENT_SERVING) {
-            if ((buff = pool_get_wait_lock(&obj->workpool, 0, 1)) != NULL) {
-                extbuffer_preparetohandle(buff, len);
-                memcpy((void *) buff->ushortbuffer, (void *) buf,
-                       sizeof(uint16_t) * len);
-                pool_get_unlock(&obj->workpool, 0, buff);
+            idle_leave(obj);
+            // decimating or widening the corrected samples keeps what rounding them to 8 bits would lose
+            const float * corrected = obj->iq_correction ? feed_correct(obj, buf, len) : NULL;
+            const uint8_t * bytes = buf;
+            size_t length = sizeof(uint16_t) * len;
+            obj->stream_iq = corrected;
+            if (obj->decimation != 1 || obj->sample_format != SAMPLE_FORMAT_U8) {
+                extbuffer_preparetohandle(&obj->decimated, (int) decimator_max_output_bytes(&obj->decimator, len));
+                uint8_t * decimated = (uint8_t *) obj->decimated.charbuffer;
+                length = corrected != NULL ? decimator_process_float(&obj->decimator, corrected, len, decimated) : decimator_process(&obj->decimator, buf, len, decimated);
+                bytes = decimated;
+                if (obj->decimation != 1) obj->stream_iq = obj->decimator.output;
+            }
+
+            // a block shorter than the decimation can come out empty, the filters carry it over to the next one
+            if (length != 0 && obj->shared_ring != NULL) {
+                // the clients are only there to send commands and read the ring
+                shared_ring_write(obj, bytes, length);
+                obj->samples_fed += length / sample_bytes(obj);
+            } else if (length != 0) {
+                sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+                if (buffer != NULL) {
+                    extbuffer_preparetohandle(&buffer->data, (int) (length + 1) / 2);
+                    memcpy((void *) buffer->data.ushortbuffer, (void *) bytes, length);
+                    buffer->bytes = (const uint8_t *) buffer->data.ushortbuffer;
+                    buffer->length = length;
+                    buffer->fed_us = monotonic_us();
+                    buffer->first_sample = obj->samples_fed;
+                    buffer->samples = (int64_t) (length / sample_bytes(obj));
+                    obj->samples_fed += buffer->samples;
+                    sdrtcp_fan_out(obj, buffer, buf, len);
+                } else {
+                    // the stream goes on past the gap, so that the sample numbers the clients see still match the time
+                    int64_t samples = (int64_t) (length / sample_bytes(obj));
+                    obj->samples_fed += samples;
+                    feed_lost(obj, samples);
+                }
             }
             succesful = 1;
-        } else if (obj->state == STAGE_SOCKET_OPEN || obj->state == STAGE_CLIENT_OPEN || obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) {
-            usleep(FEED_SLEEP_IF_NOT_READY_MILLIS * 1000);
-            succesful = 2; // no client to send data to
         }
         pthread_mutex_unlock(&obj->state_locker);
-    } else if (obj->state == STAGE_SOCKET_OPEN || obj->state == STAGE_CLIENT_OPEN || obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC) {
-        usleep(FEED_SLEEP_IF_NOT_READY_MILLIS * 1000);
-        succesful = 2; // no client to send data to
+    }
+
+    if (succesful == 0 && (obj->state == STAGE_SOCKET_OPEN || obj->state == STAGE_CLIENT_OPEN_STARTED_ASYNC)) {
+        // no client to send data to, drop it right away so that the USB transfers keep flowing
+        // and a client connecting later doesn't get a backlog of old samples
+        idle_enter(obj);
+        metric_add(obj, SDRTCP_METRIC_DISCARDED_BYTES, sizeof(uint16_t) * (int64_t) len);
+        succesful = 2;
     }
 
     return succesful;
 }
 
+int sdrtcp_feed_lent(sdrtcp_t * obj, unsigned char * buf, uint32_t len, sdrtcp_release_callback release, void * release_ctx) {
+    int taken = 0;
+
+    // the shared ring takes a copy anyway, sdrtcp_feed writes it there directly, and so does the decimator
+    if (!obj->zero_copy || obj->shared_ring != NULL || obj->state != STAGE_CLIENT_SERVING) return 0;
+    if (obj->decimation != 1 || obj->sample_format != SAMPLE_FORMAT_U8) return 0;
+
+    pthread_mutex_lock(&obj->state_locker);
+    if (obj->state == STAGE_CLIENT_SERVING) {
+        idle_leave(obj);
+        sdrtcp_buffer_t * buffer = buffer_acquire(obj);
+        if (buffer != NULL) {
+            // only once the buffer is taken, otherwise the caller would correct it again with sdrtcp_feed
+            obj->stream_iq = obj->iq_correction ? feed_correct(obj, buf, len) : NULL;
+            buffer->bytes = buf;
+            buffer->length = sizeof(uint16_t) * len;
+            buffer->release = release;
+            buffer->release_ctx = release_ctx;
+            buffer->lent = buf;
+            buffer->fed_us = monotonic_us();
+            buffer->first_sample = obj->samples_fed;
+            buffer->samples = len;
+            obj->samples_fed += len;
+            sdrtcp_fan_out(obj, buffer, buf, len);
+            taken = 1;
+        }
+    }
+    pthread_mutex_unlock(&obj->state_locker);
+
+    return taken;
+}
+
 void sdrtcp_init(sdrtcp_t * obj) {
     obj->state = 0;
     pthread_mutex_init(&obj->state_locker, NULL);
-    obj->client_socket = -1;
+    pthread_mutex_init(&obj->clients_locker, NULL);
     obj->listen_socket = -1;
+    obj->unix_path[0] = 0;
+    obj->epoll_fd = -1;
+    obj->wake_fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    atomic_init(&obj->wake_pending, 0);
+    obj->buffers = NULL;
+    obj->buffers_count = 0;
+    obj->max_clients = 1;
+    obj->persistent = 0;
+    obj->zero_copy = 0;
+    obj->write_batch_bytes = SDRTCP_DEFAULT_WRITE_BATCH_BYTES;
+    obj->send_zerocopy = 0;
+    obj->slow_client_policy = SDRTCP_POLICY_AUTO;
+    obj->latency_budget_ms = SDRTCP_DEFAULT_LATENCY_BUDGET_MS;
+    obj->queue_ms = SDRTCP_DEFAULT_QUEUE_MS;
+    obj->queue_memory_bytes = SDRTCP_DEFAULT_QUEUE_MEMORY_BYTES;
+    obj->low_latency = 0;
+    obj->decimation = 1;
+    obj->sample_format = SAMPLE_FORMAT_U8;
+    decimator_init(&obj->decimator, 1, SAMPLE_FORMAT_U8);
+    obj->stream_iq = NULL;
+    obj->channelizer_channels = 0;
+    memset(&obj->channelizer, 0, sizeof(obj->channelizer));
+    obj->channelizer_samples = 0;
+    obj->spectrum_size = 0;
+    obj->spectrum_overlap_percent = SDRTCP_DEFAULT_SPECTRUM_OVERLAP_PERCENT;
+    obj->spectrum_averages = SDRTCP_DEFAULT_SPECTRUM_AVERAGES;
+    obj->spectrum_bits = 8;
+    memset(&obj->spectrum, 0, sizeof(obj->spectrum));
+    extbuffer_init(&obj->decimated, EXTBUFF_TYPE_CHAR);
+    obj->iq_correction = 0;
+    iqcorrect_init(&obj->corrector);
+    extbuffer_init(&obj->corrected, EXTBUFF_TYPE_FLOAT);
+    // every sample is written before it is read
+    obj->corrected.cleartozero = 0;
+    obj->unix_socket = 0;
+    atomic_init(&obj->sample_rate, 0);
+    obj->sized_rate = 0;
+    obj->sized_length = 0;
+    obj->queue_depth = CLIENT_MAX_QUEUED;
+    obj->udp_address[0] = 0;
+    obj->udp_port = 0;
+    obj->udp.socket = -1;
+    obj->udp.sending = NULL;
+    spscring_init(&obj->udp.queue, SDRTCP_UDP_QUEUED);
+    atomic_init(&obj->compress_running, 0);
+    spscring_init(&obj->compress_queue, SDRTCP_COMPRESS_QUEUED);
+    spscring_set_limit(&obj->compress_queue, SDRTCP_COMPRESS_QUEUED - 2);
+    obj->compress_next = 0;
+    obj->shared_ring_bytes = 0;
+    obj->shared_ring_fd = -1;
+    obj->shared_ring = NULL;
+    obj->shared_ring_mapped = 0;
+    obj->clients_count = 0;
+
+    int i;
+    for (i = 0; i < SDRTCP_METRICS_COUNT; i++) {
+        atomic_init(&obj->metrics[i], 0);
+    }
+    atomic_init(&obj->idle_since_ms, 0);
+
+    for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+        sdrtcp_client_t * client = &obj->clients[i];
+        client->server = obj;
+        client->state = CLIENT_FREE;
+        client->socket = -1;
+        client->sending_count = 0;
+        client->sent_offset = 0;
+        client->header_left = 0;
+        client->awaiting_count = 0;
+        atomic_init(&client->channel_offset_hz, 0);
+        atomic_init(&client->channel_decimation, 1);
+        atomic_init(&client->channel_changes, 0);
+        client->channel_applied = 0;
+        client->channel_rate = 0;
+        client->channel_active = 0;
+        decimator_init(&client->channel, 1, SAMPLE_FORMAT_U8);
+        atomic_init(&client->channelizer_channel, SDRTCP_CHANNELIZER_NONE);
+        atomic_init(&client->spectrum, 0);
+        atomic_init(&client->sample_format, SAMPLE_FORMAT_U8);
+        atomic_init(&client->squelch_threshold, 0);
+        atomic_init(&client->squelch_hold_ms, SDRTCP_DEFAULT_SQUELCH_HOLD_MS);
+        atomic_init(&client->squelch_preroll_ms, SDRTCP_DEFAULT_SQUELCH_PREROLL_MS);
+        client->squelch_active = 0;
+        client->squelch_burst = 0;
+        client->squelch_samples = 0;
+        squelch_init(&client->squelch);
+        int k;
+        for (k = 0; k < SDRTCP_SQUELCH_PREROLL_BLOCKS; k++) {
+            extbuffer_init(&client->preroll[k].data, EXTBUFF_TYPE_CHAR);
+            // every byte is copied in before it is read
+            client->preroll[k].data.cleartozero = 0;
+        }
+        client->preroll_first = 0;
+        client->preroll_count = 0;
+        atomic_init(&client->compression, 0);
+        client->compress_routed = 0;
+        client->connection = 0;
+        client->blocked = NULL;
+        spscring_init(&client->queue, SDRTCP_MAX_QUEUE_DEPTH);
+        spscring_set_limit(&client->queue, CLIENT_MAX_QUEUED);
+    }
 }
 
 void sdrtcp_free(sdrtcp_t * obj) {
+    int i;
+    for (i = 0; i < SDRTCP_MAX_CLIENTS; i++) {
+        spscring_free(&obj->clients[i].queue);
+        decimator_free(&obj->clients[i].channel);
+        int k;
+        for (k = 0; k < SDRTCP_SQUELCH_PREROLL_BLOCKS; k++) {
+            extbuffer_free(&obj->clients[i].preroll[k].data);
+        }
+    }
+    spscring_free(&obj->udp.queue);
+    spscring_free(&obj->compress_queue);
+    decimator_free(&obj->decimator);
+    extbuffer_free(&obj->decimated);
+    extbuffer_free(&obj->corrected);
+    channelizer_free(&obj->channelizer);
+    spectrum_free(&obj->spectrum);
+    if (obj->wake_fd != -1) close(obj->wake_fd);
+    obj->wake_fd = -1;
+    pthread_mutex_destroy(&obj->clients_locker);
     pthread_mutex_destroy(&obj->state_locker);
-}
\ No newline at end of file
+}
@@ -22,52 +22,488 @@
 #define TCP_SDR_C_
 
 #include <stdint.h>
-#include "workpool.h"
-#include "threading.h"
+#include <stdatomic.h>
+#include <pthread.h>
+#include <netinet/in.h>
+#include "extbuffer.h"
+#include "spscring.h"
+#include "decimator.h"
+#include "channelizer.h"
+#include "spectrum.h"
+#include "iqcorrect.h"
+#include "squelch.h"
 
 #define DESIRED_MAX_NUMBER_OF_SAMPLES (32767)
 
+// what a client receives from the channelizer, other than a single channel
+#define SDRTCP_CHANNELIZER_NONE (-1)
+#define SDRTCP_CHANNELIZER_ALL (-2)
+
+// Hard upper limit of clients that can be fed from a single device
+#define SDRTCP_MAX_CLIENTS (8)
+
+// how many queued buffers are sent to a client with a single sendmsg
+#define SDRTCP_MAX_WRITE_BATCH (4)
+#define SDRTCP_DEFAULT_WRITE_BATCH_BYTES (1024 * 1024)
+
+// commands read from a client with a single recv
+#define SDRTCP_COMMANDS_PER_READ (64)
+
+// how many written buffers a client can hold while waiting for the kernel to finish a MSG_ZEROCOPY send
+#define SDRTCP_MAX_ZEROCOPY_AWAITING (8)
+
+#define SDRTCP_DEFAULT_LATENCY_BUDGET_MS (1000)
+
+// the queue of every client holds SDRTCP_OPTION_QUEUE_MS of samples at the current sample rate, within these bounds
+#define SDRTCP_MIN_QUEUE_DEPTH (2)
+#define SDRTCP_MAX_QUEUE_DEPTH (64)
+#define SDRTCP_DEFAULT_QUEUE_MS (500)
+#define SDRTCP_DEFAULT_QUEUE_MEMORY_BYTES (64 * 1024 * 1024)
+
+// SDRTCP_OPTION_LOW_LATENCY: at most this much data waits in the queue or in the socket, the send buffer covers
+// the data in flight over a network with up to SDRTCP_LOW_LATENCY_SNDBUF_MS round trip time
+#define SDRTCP_LOW_LATENCY_QUEUE_MS (30)
+#define SDRTCP_LOW_LATENCY_NOTSENT_BYTES (16 * 1024)
+#define SDRTCP_LOW_LATENCY_SNDBUF_MS (100)
+#define SDRTCP_LOW_LATENCY_FEED_MS (10)
+
+// UDP output: a header and an even number of bytes of samples fit into a 1500 byte Ethernet frame
+#define SDRTCP_UDP_PAYLOAD (1460)
+#define SDRTCP_UDP_QUEUED (8)
+
+// spectra clients can ask for, averaging this many FFTs of the size set with SDRTCP_OPTION_SPECTRUM_SIZE
+#define SDRTCP_DEFAULT_SPECTRUM_OVERLAP_PERCENT (50)
+#define SDRTCP_DEFAULT_SPECTRUM_AVERAGES (100)
+
+// a squelched client gets what went by while the squelch was closed as far back as its pre-roll, up to this many blocks
+#define SDRTCP_SQUELCH_PREROLL_BLOCKS (8)
+#define SDRTCP_DEFAULT_SQUELCH_PREROLL_MS (50)
+#define SDRTCP_DEFAULT_SQUELCH_HOLD_MS (500)
+
+// blocks on their way to the compression thread, see sdrtcp_compress_job_t
+#define SDRTCP_COMPRESS_QUEUED (16)
+
+// Shared ring: the samples start one page into the mapping, the ring is rounded up to a power of two of at least this size
+#define SDRTCP_SHARED_RING_MAGIC "RTLR"
+#define SDRTCP_SHARED_RING_DATA_OFFSET (4096)
+#define SDRTCP_SHARED_RING_MIN_BYTES (1024 * 1024)
+
 typedef struct sdr_tcp_command{
     uint8_t command;
     uint32_t parameter;
 }__attribute__((packed)) sdr_tcp_command_t;
 
+// Starts every UDP datagram, all fields are big endian like the dongle info
+// a gap in sequence means lost datagrams, a gap in sample means samples dropped by the server
+typedef struct sdrtcp_udp_header {
+    uint32_t sequence; // increases by one with every datagram
+    uint64_t sample; // index of the first sample of the datagram since streaming started
+}__attribute__((packed)) sdrtcp_udp_header_t;
+
+// Starts the memfd a unix socket client receives with the dongle info when the shared ring is enabled.
+// The ring never leaves the device so all fields are in host byte order. A reader keeps its own position p and
+// 1. waits until written > p, sleeping with FUTEX_WAIT on futex, the mapping is read only so no locks are taken
+// 2. copies bytes p..written from data_offset + p % capacity, wrapping at capacity
+// 3. keeps the copy only if claimed <= p + capacity afterwards, otherwise the server has overwritten it and
+//    the reader lost data, so it continues from written - capacity
+typedef struct sdrtcp_shared_ring {
+    char magic[4]; // SDRTCP_SHARED_RING_MAGIC
+    uint32_t data_offset; // the samples start this many bytes into the mapping
+    uint64_t capacity; // bytes of samples the ring holds, a power of two
+    _Atomic uint64_t written; // bytes written since streaming started
+    _Atomic uint64_t claimed; // end of the write in progress, the same as written between writes
+    _Atomic uint32_t futex; // increases after every write, followed by FUTEX_WAKE
+    _Atomic uint32_t closed; // 1 once the server has stopped writing
+} sdrtcp_shared_ring_t;
+
+// Starts every frame a client gets after TCP_ANDROID_CHANNELIZER_ALL, all fields are big endian like the dongle info.
+// The samples of every channel follow one channel after the other, the lowest frequency first.
+#define SDRTCP_CHANNELS_MAGIC "RTLC"
+typedef struct sdrtcp_channels_header {
+    char magic[4]; // SDRTCP_CHANNELS_MAGIC
+    uint32_t channels; // number of channels in the frame
+    uint32_t samples; // samples of every channel in the frame
+    uint64_t sample; // index of the first sample of the frame since the channelizer started
+}__attribute__((packed)) sdrtcp_channels_header_t;
+
+// Starts every spectrum a client gets after TCP_ANDROID_SPECTRUM, all fields are big endian like the dongle info.
+// The bins follow, the lowest frequency first, each bits wide and in host byte order for 16 bits like the samples.
+// A bin of value v is v * millidb_per_step / 1000 dB below a full scale tone.
+#define SDRTCP_SPECTRUM_MAGIC "RTLS"
+typedef struct sdrtcp_spectrum_header {
+    char magic[4]; // SDRTCP_SPECTRUM_MAGIC
+    uint32_t bins; // number of bins, the sample rate divided by this is the width of one
+    uint32_t bits; // 8 or 16
+    uint32_t millidb_per_step;
+    uint32_t averages; // FFTs averaged into the spectrum
+    uint32_t sample_rate; // of the samples that were analysed, 0 if the server didn't know it
+    uint64_t sample; // index of the first sample that went into the spectrum since the analysis started
+}__attribute__((packed)) sdrtcp_spectrum_header_t;
+
+// Starts every frame a client gets after TCP_ANDROID_SQUELCH_THRESHOLD, all fields are big endian like the dongle info.
+// The samples follow in the format of the client. A burst comes in as many frames as it spans blocks, the first one
+// with the pre-roll in front, and a frame without samples ends it. A gap in sample is what the squelch held back.
+#define SDRTCP_SQUELCH_MAGIC "RTLQ"
+typedef struct sdrtcp_squelch_header {
+    char magic[4]; // SDRTCP_SQUELCH_MAGIC
+    uint32_t burst; // increases by one with every burst
+    uint32_t samples; // samples in the frame
+    uint64_t sample; // index of the first sample of the frame in the stream of the client since the squelch was turned on
+    uint64_t time_us; // when the first sample of the frame was fed, in microseconds since 1970
+}__attribute__((packed)) sdrtcp_squelch_header_t;
+
+// Every frame a client gets after TCP_ANDROID_COMPRESSION, all fields are big endian like the dongle info.
+// The block follows, coded as iqcompress.h describes, and decodes to exactly the bytes the client would have got
+// otherwise, samples and frames alike. The first frame starts where a block would have, the last one ends where the
+// plain bytes start again after the client turned compression off.
+#define SDRTCP_COMPRESSED_MAGIC "RTLZ"
+typedef struct sdrtcp_compressed_header {
+    char magic[4]; // SDRTCP_COMPRESSED_MAGIC
+    uint32_t length; // bytes the block decodes to
+    uint32_t coded; // bytes of the coded block that follow
+}__attribute__((packed)) sdrtcp_compressed_header_t;
+
+typedef struct {
+    char magic[4];
+    uint32_t dongleType;
+    uint32_t gainsCount;
+} dongle_info_t;
+
+// Options that can be set with sdrtcp_set_option before sdrtcp_open_socket is called
+// keep in sync with com.sdrtouch.rtlsdr.driver.enums.ServerOption
+typedef enum {
+    SDRTCP_OPTION_MAX_CLIENTS = 0, // number of clients served at the same time, 1 is the classic rtl_tcp behaviour
+    SDRTCP_OPTION_PERSISTENT = 1, // set to 1 to keep the device open and wait for new clients after the last one disconnects
+    SDRTCP_OPTION_ZERO_COPY = 2, // set to 1 to let sdrtcp_feed_lent send the caller's buffers without copying them
+    SDRTCP_OPTION_WRITE_BATCH_BYTES = 3, // queued buffers are sent together until they add up to this many bytes, 0 sends one at a time
+    SDRTCP_OPTION_SEND_ZEROCOPY = 4, // set to 1 to send with MSG_ZEROCOPY where the kernel supports it
+    SDRTCP_OPTION_SLOW_CLIENT_POLICY = 5, // one of sdrtcp_slow_client_policy_t
+    SDRTCP_OPTION_LATENCY_BUDGET_MS = 6, // oldest unsent data a client may have before SDRTCP_POLICY_DISCONNECT drops it
+    SDRTCP_OPTION_SHARED_RING_BYTES = 7, // size of the shared ring handed to unix socket clients instead of sending samples, 0 to disable
+    SDRTCP_OPTION_QUEUE_MS = 8, // how much data every client may have queued, sized with sdrtcp_set_sample_rate
+    SDRTCP_OPTION_QUEUE_MEMORY_BYTES = 9, // cap on the memory the queues of all clients take together
+    SDRTCP_OPTION_LOW_LATENCY = 10, // set to 1 to keep queues and socket buffers short and drop the oldest data instead of waiting
+    SDRTCP_OPTION_DECIMATION = 11, // power of two up to DECIMATOR_MAX_FACTOR the sample rate is divided by before sending, 1 sends everything
+    SDRTCP_OPTION_SAMPLE_BITS = 12, // 8 sends unsigned bytes like rtl_tcp, 16 signed 16 bit little endian samples, clients can ask for another format
+    SDRTCP_OPTION_CHANNELIZER_CHANNELS = 13, // power of two up to CHANNELIZER_MAX_CHANNELS the band is split into for clients to pick from, 0 for none
+    SDRTCP_OPTION_SPECTRUM_SIZE = 14, // power of two FFT size of the spectra clients can ask for instead of samples, 0 for none
+    SDRTCP_OPTION_SPECTRUM_OVERLAP_PERCENT = 15, // how much of every FFT the next one analyses again, up to SPECTRUM_MAX_OVERLAP_PERCENT
+    SDRTCP_OPTION_SPECTRUM_AVERAGES = 16, // FFTs averaged into every spectrum that is sent
+    SDRTCP_OPTION_SPECTRUM_BITS = 17, // 8 or 16 bits per bin, see sdrtcp_spectrum_header_t
+    SDRTCP_OPTION_IQ_CORRECTION = 18, // set to 1 to remove the DC offset and the IQ imbalance of the samples before anything else
+} sdrtcp_option_t;
+
+// What happens to new data when the queue of a client is full
+typedef enum {
+    SDRTCP_POLICY_AUTO = 0, // block with a single client, drop newest with more
+    SDRTCP_POLICY_BLOCK = 1, // the feeding thread waits for room, up to a second
+    SDRTCP_POLICY_DROP_OLDEST = 2, // the oldest queued buffer makes room
+    SDRTCP_POLICY_DROP_NEWEST = 3, // the new buffer is not queued
+    SDRTCP_POLICY_DISCONNECT = 4, // drop newest, and disconnect once queued data is older than the latency budget
+} sdrtcp_slow_client_policy_t;
+
+// Counters that can be read with sdrtcp_get_metric, they are reset by sdrtcp_open_socket
+// keep in sync with com.sdrtouch.rtlsdr.driver.enums.ServerMetric
+typedef enum {
+    SDRTCP_METRIC_IDLE_MILLIS = 0, // time data was fed while no client was connected
+    SDRTCP_METRIC_DISCARDED_BYTES = 1, // bytes fed while no client was connected
+    SDRTCP_METRIC_SENT_BYTES = 2, // bytes written to all client sockets
+    SDRTCP_METRIC_ZEROCOPY_SENT_BYTES = 3, // part of SENT_BYTES written with MSG_ZEROCOPY
+    SDRTCP_METRIC_ZEROCOPY_COPIED = 4, // MSG_ZEROCOPY completions where the kernel had to copy anyway
+    SDRTCP_METRIC_DROPPED_SAMPLES = 5, // samples that did not reach a client because it was too slow, counted once per client
+    SDRTCP_METRIC_SLOW_CLIENTS_DISCONNECTED = 6, // clients dropped for not keeping up
+    SDRTCP_METRIC_UDP_DATAGRAMS = 7, // datagrams sent by the UDP output
+    SDRTCP_METRIC_SHARED_RING_BYTES = 8, // bytes written to the shared ring
+    SDRTCP_METRIC_QUEUE_DEPTH = 9, // buffers every client may have queued right now, not a counter
+    SDRTCP_METRIC_BUFFERS_WRITTEN = 10, // buffers completely written to a client socket
+    SDRTCP_METRIC_BUFFER_AGE_MICROS = 11, // time from feeding to being written, summed over BUFFERS_WRITTEN
+    SDRTCP_METRIC_BUFFER_AGE_MAX_MICROS = 12, // the longest of those, not a counter
+    SDRTCP_METRIC_SQUELCHED_SAMPLES = 13, // samples the squelch held back from clients, counted once per client
+    SDRTCP_METRIC_COMPRESSED_INPUT_BYTES = 14, // bytes coded for clients that asked for compression
+    SDRTCP_METRIC_COMPRESSED_OUTPUT_BYTES = 15, // what they were sent as, the frame headers included
+    SDRTCP_METRIC_COMPRESSION_CPU_MICROS = 16, // CPU time of the compression thread spent coding them
+    SDRTCP_METRIC_COMPRESSION_RATIO_PERCENT = 17, // input bytes per 100 bytes sent so far, not a counter
+    SDRTCP_METRIC_COMPRESSION_MICROS_PER_MB = 18, // CPU time per 1000000 input bytes so far, not a counter
+    SDRTCP_METRICS_COUNT
+} sdrtcp_metric_t;
+
 typedef struct sdrtcp sdrtcp_t;
 
 typedef void (*sdrtcp_command_callback)(sdrtcp_t *, void * ctx, sdr_tcp_command_t *);
 typedef void (*sdrtcp_closed_callback)(sdrtcp_t *, void * ctx);
+typedef void (*sdrtcp_release_callback)(unsigned char * buf, void * ctx);
+
+// Buffer filled once by sdrtcp_feed and shared between all clients.
+// It goes back to the pool when the last client holding a reference has sent it.
+// Aligned so that reference counting of neighbouring buffers doesn't share a cache line.
+typedef struct sdrtcp_buffer {
+    extbuffer_t data;
+
+    // what gets sent, either data or memory lent with sdrtcp_feed_lent
+    const uint8_t * bytes;
+    size_t length;
+
+    unsigned char * lent;
+    sdrtcp_release_callback release;
+    void * release_ctx;
+
+    int64_t fed_us; // when the data was fed, to tell how late a client is and to pace the UDP output
+    int64_t first_sample; // position in the stream, for the UDP header
+    int64_t samples; // what a client that doesn't get the buffer loses, in samples of what the buffer was made from
+
+    atomic_int references;
+} __attribute__((aligned(SPSCRING_CACHE_LINE))) sdrtcp_buffer_t;
+
+// A block a squelched client did not get, kept in case the squelch opens soon after
+typedef struct sdrtcp_preroll {
+    extbuffer_t data;
+    size_t length;
+    sample_format_t format;
+    int64_t fed_us;
+    int64_t sample; // see sdrtcp_squelch_header_t
+} sdrtcp_preroll_t;
+
+typedef struct sdrtcp_client {
+    sdrtcp_t * server;
+    volatile int state;
+    int socket;
+
+    // buffers waiting to be sent to this client only, sdrtcp_feed is the producer and the event loop the consumer
+    spscring_t queue;
+    // under clients_locker, a buffer the queue had no room for with SDRTCP_POLICY_BLOCK, see clients_unblock
+    sdrtcp_buffer_t * blocked;
+
+    // owned by the event loop, buffers taken off the queue and not completely written yet
+    sdrtcp_buffer_t * sending[SDRTCP_MAX_WRITE_BATCH];
+    int64_t sending_zerocopy_id[SDRTCP_MAX_WRITE_BATCH]; // last MSG_ZEROCOPY send that used the buffer, -1 if none
+    int sending_count;
+    size_t sent_offset; // bytes of sending[0] that are already written
+    size_t header_left; // bytes of the dongle info still to be written before any samples
+    int64_t stalled_since_ms; // 0 unless the socket refused data
+
+    // written buffers the kernel may still read from, released in order as MSG_ZEROCOPY completions arrive
+    int zerocopy;
+    uint32_t zerocopy_next_id;
+    sdrtcp_buffer_t * awaiting[SDRTCP_MAX_ZEROCOPY_AWAITING];
+    uint32_t awaiting_id[SDRTCP_MAX_ZEROCOPY_AWAITING];
+    int awaiting_count;
+
+    // written by the feeding thread and the compression thread under clients_locker, read once the client is removed
+    int64_t dropped_samples;
+
+    // the channel this client asked for with TCP_ANDROID_SET_CHANNEL_OFFSET and TCP_ANDROID_SET_CHANNEL_DECIMATION,
+    // set by the event loop, channel_changes goes up after every change
+    atomic_int channel_offset_hz;
+    atomic_int channel_decimation;
+    atomic_uint channel_changes;
+
+    // owned by the feeding thread, the channel is cut out of the device samples for this client only
+    unsigned int channel_applied;
+    uint32_t channel_rate;
+    int channel_active;
+    decimator_t channel;
+
+    // SDRTCP_CHANNELIZER_NONE, SDRTCP_CHANNELIZER_ALL or the channelizer channel this client receives, set by the event loop
+    atomic_int channelizer_channel;
+    // 1 if the client receives spectra instead of samples, set by the event loop
+    atomic_int spectrum;
+    // the sample_format_t this client asked for with TCP_ANDROID_ENABLE_16_BIT_SIGNED, set by the event loop
+    atomic_int sample_format;
+
+    // the squelch this client set with TCP_ANDROID_SQUELCH_THRESHOLD, TCP_ANDROID_SQUELCH_HOLD and
+    // TCP_ANDROID_SQUELCH_PREROLL, set by the event loop
+    atomic_int squelch_threshold; // tenths of a dB below full scale, 0 if every sample is sent
+    atomic_int squelch_hold_ms;
+    atomic_int squelch_preroll_ms;
+
+    // owned by the feeding thread, the last blocks are copied to the pre-roll while the squelch is closed
+    int squelch_active;
+    squelch_t squelch;
+    uint32_t squelch_burst;
+    int64_t squelch_samples; // samples of the stream of the client since the squelch was turned on
+    sdrtcp_preroll_t preroll[SDRTCP_SQUELCH_PREROLL_BLOCKS];
+    int preroll_first;
+    int preroll_count;
+
+    // 1 if the client asked for compressed frames with TCP_ANDROID_COMPRESSION, set by the event loop
+    atomic_int compression;
+    // owned by the feeding thread, 1 from the first block after the client asked for compression until it disconnects,
+    // everything for it then goes through the compression thread, which is the only one to fill its queue
+    int compress_routed;
+    // goes up when the client disconnects, under clients_locker, so that blocks for an earlier connection are dropped
+    uint32_t connection;
+
+    // received commands, the last one can be incomplete until the rest arrives
+    uint8_t commands[SDRTCP_COMMANDS_PER_READ * sizeof(sdr_tcp_command_t)];
+    size_t commands_length;
+} sdrtcp_client_t;
+
+// A block on its way to the compression thread. Block k is in slot k % SDRTCP_COMPRESS_QUEUED and the ring only
+// takes two fewer, so the slot the feeding thread fills next is never the one the compression thread works on.
+typedef struct sdrtcp_compress_job {
+    sdrtcp_client_t * client;
+    uint32_t connection; // of the client when the block was queued
+    sdrtcp_buffer_t * buffer; // the reference of the client
+    int lanes; // bytes of one sample as the client gets them
+    int compress; // 0 once the client has turned compression off again, the block goes on as it is
+    int policy;
+} sdrtcp_compress_job_t;
+
+// Sends every fed buffer as paced datagrams to a unicast or multicast address.
+// Owned by the event loop except for the queue, which sdrtcp_feed fills.
+typedef struct sdrtcp_udp {
+    int socket;
+    struct sockaddr_in destination;
+
+    spscring_t queue;
+    sdrtcp_buffer_t * sending;
+    size_t sent_offset;
+    uint32_t sequence;
+
+    // token bucket in bytes, refilled a bit faster than data arrives so that the queue drains
+    int64_t last_us;
+    int64_t last_fed_us;
+    double rate; // bytes per microsecond, 0 until known
+    double tokens;
+} sdrtcp_udp_t;
 
 struct sdrtcp {
     volatile int state;
     pthread_mutex_t state_locker;
-    workpool_t workpool;
+
+    sdrtcp_buffer_t * buffers;
+    int buffers_count;
+
+    pthread_mutex_t clients_locker;
+    sdrtcp_client_t clients[SDRTCP_MAX_CLIENTS];
+    int max_clients;
+    int persistent;
+    int zero_copy;
+    size_t write_batch_bytes;
+    int send_zerocopy;
+    int slow_client_policy;
+    int latency_budget_ms;
+    int queue_ms;
+    int64_t queue_memory_bytes;
+    int low_latency;
+    int decimation;
+    sample_format_t sample_format; // what clients get unless they ask for another one
+    atomic_uint sample_rate; // 0 until known, the rate of the device before decimation
+
+    // owned by the feeding thread, the samples that are sent when they are decimated or widened
+    decimator_t decimator;
+    extbuffer_t decimated;
+    // the float IQ of the block being handed out, for the clients that want it in another format, NULL if it is the raw samples
+    const float * stream_iq;
+
+    // owned by the feeding thread, the corrected samples before they are rounded back to 8 bits
+    int iq_correction;
+    iqcorrect_t corrector;
+    extbuffer_t corrected;
+
+    // owned by the feeding thread, runs only while a client has picked a channel
+    int channelizer_channels; // 0 if there is no channelizer
+    channelizer_t channelizer;
+    int64_t channelizer_samples;
+
+    // owned by the feeding thread, runs only while a client wants spectra
+    int spectrum_size; // 0 if there is no spectrum mode
+    int spectrum_overlap_percent;
+    int spectrum_averages;
+    int spectrum_bits;
+    spectrum_t spectrum;
+
+    // owned by the feeding thread, what the queues were last sized for
+    uint32_t sized_rate;
+    size_t sized_length;
+    int queue_depth;
+
+    // the compression thread runs with the event loop, the feeding thread hands it the blocks of compressing clients
+    pthread_t compress_thread;
+    atomic_int compress_running;
+    spscring_t compress_queue;
+    sdrtcp_compress_job_t compress_jobs[SDRTCP_COMPRESS_QUEUED];
+    unsigned int compress_next; // owned by the feeding thread, the number of blocks handed over so far
+
+    char udp_address[64];
+    int udp_port; // 0 if there is no UDP output
+
+    sdrtcp_udp_t udp;
+    size_t shared_ring_bytes; // 0 if there is no shared ring
+    int shared_ring_fd;
+    sdrtcp_shared_ring_t * shared_ring; // written by the feeding thread only
+    size_t shared_ring_mapped;
+    int64_t samples_fed;
+    volatile int clients_count;
+
+    dongle_info_t dongle_info;
+
+    atomic_llong metrics[SDRTCP_METRICS_COUNT];
+    atomic_llong idle_since_ms; // 0 while a client is connected
 
     sdrtcp_closed_callback closedcb;
     sdrtcp_command_callback commandcb;
     void * ctx;
 
-    volatile int client_socket;
     volatile int listen_socket;
+    int unix_socket; // TCP options don't apply
+    char unix_path[108]; // filesystem socket to remove on close, empty otherwise
+
+    // event loop, the eventfd lives as long as the object so that it can be woken up from any thread
+    int epoll_fd;
+    int wake_fd;
+    atomic_int wake_pending;
 };
 
 void sdrtcp_init(sdrtcp_t * obj);
 void sdrtcp_free(sdrtcp_t * obj);
 
+// Changes one of the sdrtcp_option_t options. Only allowed while the server is not running.
+// returns 0 if the option or the value is not valid
+int sdrtcp_set_option(sdrtcp_t * obj, int option, int64_t value);
+
+// Sends the samples as UDP datagrams to address:port instead of over TCP, the address can be a multicast group.
+// TCP clients then only get the dongle info and send commands. Only allowed while the server is not running.
+// returns 0 if the address is not valid
+int sdrtcp_set_udp_output(sdrtcp_t * obj, const char * address, int port);
+
+// Tells the server the sample rate the device runs at, can be called from any thread at any time
+// the client queues are resized to SDRTCP_OPTION_QUEUE_MS before the next fed buffer is queued
+void sdrtcp_set_sample_rate(sdrtcp_t * obj, uint32_t rate);
+
+// How many bytes every sdrtcp_feed call should bring at the given sample rate, 0 if any size is fine
+// with SDRTCP_OPTION_LOW_LATENCY the samples should not wait for a large buffer to fill up
+uint32_t sdrtcp_preferred_feed_bytes(sdrtcp_t * obj, uint32_t rate);
+
+// Reads one of the sdrtcp_metric_t counters, can be called from any thread at any time
+// returns -1 if the metric is not known
+int64_t sdrtcp_get_metric(sdrtcp_t * obj, int metric);
+
 // Opens socket. If this returns true then we are ready to wait for client
+// address is an IPv4 address, or "unix:/path" for a unix domain socket and "unix:@name" for one in the abstract namespace, port is ignored for those
+// SDRTCP_OPTION_SHARED_RING_BYTES needs a unix domain socket, the memfd of the ring is passed over it with SCM_RIGHTS
 // dongleMagic must be exactly 4 characters long!
 int sdrtcp_open_socket(sdrtcp_t * obj, const char * address, int port, const char * dongleMagic, uint32_t dongleType, uint32_t gainsCount);
 
 
-// Starts waiting for and feeding a client asynchroneously
+// Starts waiting for and feeding clients asynchroneously
 // if a command is received command cb will be called (guaranteed in a separate thread). This callback can be called after sdrtcp_stop_serving_client!!!
-// if for any reason the server stops, closedcb will be called (in a separate thread unless a config error)
+// all clients are served by a single event loop thread, so commands are never delivered concurrently and should not block for long
+// if for any reason the server stops (including the last client disconnecting unless persistent), closedcb will be called (in a separate thread unless a config error)
 void sdrtcp_serve_client_async(sdrtcp_t * obj, void * ctx, sdrtcp_command_callback commandcb, sdrtcp_closed_callback closedcb);
 
 // doesn't block
 void sdrtcp_stop_serving_client(sdrtcp_t * obj);
 
-// queue up data to send over the connection
+// queue up data to send to every connected client, never blocks if there is no client connected
+// a client that asked for a channel gets it cut out of buf, the rest get the same samples
+// with SDRTCP_OPTION_IQ_CORRECTION buf is corrected in place
 // return 0 if there was an error and this function should not be called anymore until another sdrtcp_open_socket
 int sdrtcp_feed(sdrtcp_t * obj, unsigned char * buf, uint32_t len);
 
-#endif
\ No newline at end of file
+// queue up data without copying it, only works if SDRTCP_OPTION_ZERO_COPY is enabled
+// returns 1 if buf was taken, release will then be called from any thread once all clients are done with it
+// if 0 is returned the caller still owns buf, unchanged, and should use sdrtcp_feed instead
+int sdrtcp_feed_lent(sdrtcp_t * obj, unsigned char * buf, uint32_t len, sdrtcp_release_callback release, void * release_ctx);
+
+#endif
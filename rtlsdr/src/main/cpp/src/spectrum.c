@@ -0,0 +1,166 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include "spectrum.h"
+#include "kernels.h"
+
+// a full scale tone, on the scale of the input minus 127.5
+#define FULL_SCALE (127.5)
+// what a bin with no power at all reads, rather than minus infinity
+#define FLOOR_DB (-1000.0f)
+
+int spectrum_init(spectrum_t * spectrum, int size, int overlap_percent, int averages) {
+    memset(spectrum, 0, sizeof(*spectrum));
+    if (size < SPECTRUM_MIN_SIZE || size > SPECTRUM_MAX_SIZE) return 0;
+    if (overlap_percent < 0 || overlap_percent > SPECTRUM_MAX_OVERLAP_PERCENT) return 0;
+    if (averages < 1 || averages > SPECTRUM_MAX_AVERAGES) return 0;
+    if (!fft_init(&spectrum->fft, size)) return 0;
+
+    spectrum->size = size;
+    spectrum->hop = size - (int) ((int64_t) size * overlap_percent / 100);
+    spectrum->averages = averages;
+    spectrum->window = (float *) malloc(sizeof(float) * size);
+    spectrum->work = (float *) malloc(sizeof(float) * 2 * size);
+    spectrum->power = (double *) calloc((size_t) size, sizeof(double));
+    extbuffer_init(&spectrum->input, EXTBUFF_TYPE_FLOAT);
+    extbuffer_init(&spectrum->output, EXTBUFF_TYPE_FLOAT);
+    // what is buffered has to stay, and the output is written in full every time
+    spectrum->input.cleartozero = 0;
+    spectrum->output.cleartozero = 0;
+    if (spectrum->window == NULL || spectrum->work == NULL || spectrum->power == NULL) {
+        spectrum_free(spectrum);
+        return 0;
+    }
+
+    // a tone in the middle of a bin adds up to the sum of the window times its amplitude
+    double sum = 0;
+    int n;
+    for (n = 0; n < size; n++) {
+        spectrum->window[n] = (float) (0.5 - 0.5 * cos(2 * M_PI * n / size));
+        sum += spectrum->window[n];
+    }
+    spectrum->scale = 1.0 / (sum * sum * FULL_SCALE * FULL_SCALE);
+    return 1;
+}
+
+void spectrum_free(spectrum_t * spectrum) {
+    free(spectrum->window);
+    free(spectrum->work);
+    free(spectrum->power);
+    spectrum->window = NULL;
+    spectrum->work = NULL;
+    spectrum->power = NULL;
+    fft_free(&spectrum->fft);
+    extbuffer_free(&spectrum->input);
+    extbuffer_free(&spectrum->output);
+    spectrum->size = 0;
+}
+
+static void accumulate(spectrum_t * spectrum, const float * iq) {
+    const int size = spectrum->size;
+    float * work = spectrum->work;
+    int n;
+    for (n = 0; n < size; n++) {
+        work[2 * n] = iq[2 * n] * spectrum->window[n];
+        work[2 * n + 1] = iq[2 * n + 1] * spectrum->window[n];
+    }
+    fft_forward(&spectrum->fft, work);
+    for (n = 0; n < size; n++) {
+        spectrum->power[n] += (double) work[2 * n] * work[2 * n] + (double) work[2 * n + 1] * work[2 * n + 1];
+    }
+}
+
+// the FFT has 0 Hz first and the negative frequencies in the upper half, they swap places on the way out
+static void finish(spectrum_t * spectrum, float * bins) {
+    const int size = spectrum->size;
+    const double scale = spectrum->scale / spectrum->averaged;
+    int n;
+    for (n = 0; n < size; n++) {
+        double power = spectrum->power[(n + size / 2) & (size - 1)] * scale;
+        bins[n] = power > 0 ? (float) (10 * log10(power)) : FLOOR_DB;
+    }
+    memset(spectrum->power, 0, sizeof(double) * size);
+    spectrum->averaged = 0;
+}
+
+uint32_t spectrum_process(spectrum_t * spectrum, const uint8_t * iq, uint32_t samples) {
+    const int size = spectrum->size;
+    const int hop = spectrum->hop;
+
+    // the buffers only grow, so once the largest block went through nothing is allocated anymore
+    extbuffer_preparetohandle(&spectrum->input, 2 * (spectrum->buffered + (int) samples));
+    if (spectrum->input.floatbuffer == NULL) return 0;
+    float * input = spectrum->input.floatbuffer;
+    kernels_get()->u8_to_f32(iq, 2 * samples, 1.0f, input + 2 * spectrum->buffered);
+    spectrum->buffered += samples;
+
+    // room for every spectrum this block can complete
+    int ffts = spectrum->buffered >= size ? (spectrum->buffered - size) / hop + 1 : 0;
+    uint32_t most = (uint32_t) ((spectrum->averaged + ffts) / spectrum->averages);
+    spectrum->spectra = 0;
+    if (most != 0) {
+        extbuffer_preparetohandle(&spectrum->output, (int) (most * size));
+        if (spectrum->output.floatbuffer == NULL) return 0;
+    }
+
+    int start;
+    for (start = 0; start + size <= spectrum->buffered; start += hop) {
+        if (spectrum->averaged == 0) spectrum->frame_start = spectrum->position + start;
+        accumulate(spectrum, input + 2 * (size_t) start);
+        if (++spectrum->averaged == spectrum->averages) {
+            if (spectrum->spectra == 0) spectrum->first_start = spectrum->frame_start;
+            finish(spectrum, spectrum->output.floatbuffer + (size_t) spectrum->spectra * size);
+            spectrum->spectra++;
+        }
+    }
+
+    // the next FFT starts with what is left over, with a big overlap it can also start before the end of the block
+    spectrum->buffered -= start;
+    spectrum->position += start;
+    memmove(input, input + 2 * (size_t) start, sizeof(float) * 2 * spectrum->buffered);
+    return spectrum->spectra;
+}
+
+const float * spectrum_bins(const spectrum_t * spectrum, uint32_t index) {
+    return spectrum->output.floatbuffer + (size_t) index * spectrum->size;
+}
+
+size_t spectrum_quantize(const float * bins, int size, int bits, uint8_t * out) {
+    int n;
+    if (bits == 16) {
+        uint16_t * out16 = (uint16_t *) out;
+        const float steps = -1000.0f / SPECTRUM_16BIT_MILLIDB_PER_STEP;
+        for (n = 0; n < size; n++) {
+            float value = bins[n] * steps + 0.5f;
+            out16[n] = value <= 0.0f ? 0 : value >= 65535.0f ? 65535 : (uint16_t) value;
+        }
+        return 2 * (size_t) size;
+    }
+
+    const float steps = -1000.0f / SPECTRUM_8BIT_MILLIDB_PER_STEP;
+    for (n = 0; n < size; n++) {
+        float value = bins[n] * steps + 0.5f;
+        out[n] = value <= 0.0f ? 0 : value >= 255.0f ? 255 : (uint8_t) value;
+    }
+    return (size_t) size;
+}
@@ -0,0 +1,77 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SPECTRUM_H_
+#define SPECTRUM_H_
+
+#include <stdint.h>
+#include <stddef.h>
+#include "extbuffer.h"
+#include "fft.h"
+
+#define SPECTRUM_MIN_SIZE (16)
+#define SPECTRUM_MAX_SIZE (FFT_MAX_SIZE)
+#define SPECTRUM_MAX_OVERLAP_PERCENT (95)
+#define SPECTRUM_MAX_AVERAGES (100000)
+
+// what a step of a quantized bin is worth, 8 bit bins reach down to -127.5 dB and 16 bit ones to -655 dB
+#define SPECTRUM_8BIT_MILLIDB_PER_STEP (500)
+#define SPECTRUM_16BIT_MILLIDB_PER_STEP (10)
+
+// Turns interleaved 8 bit unsigned IQ into power spectra: Hann windowed FFTs of size samples, the next one starting
+// size minus the overlap later, with averages of them averaged into every spectrum. The bins are in dB below a full
+// scale tone, the lowest frequency first, so a tone as strong as the input allows reads 0 dB in its bin.
+// Only one thread may use it at a time.
+typedef struct spectrum {
+    int size;
+    int hop; // input samples from the start of one FFT to the next
+    int averages;
+    float * window;
+    float * work; // the FFT, I and Q interleaved
+    double * power; // sum of the squared magnitudes so far, one per bin
+    int averaged; // FFTs summed into power
+    double scale; // turns the average of the squared magnitudes into a fraction of full scale
+    fft_t fft;
+
+    extbuffer_t input; // floats, starting with the first sample of the next FFT
+    int buffered; // complex samples in input
+    int64_t position; // samples since the start before the first one in input
+    int64_t frame_start; // where the first FFT summed into power started
+
+    extbuffer_t output; // floats, the dB bins of one spectrum after the other
+    uint32_t spectra; // spectra in output
+    int64_t first_start; // where the first spectrum in output started
+} spectrum_t;
+
+// size is a power of two from SPECTRUM_MIN_SIZE to SPECTRUM_MAX_SIZE, overlap_percent up to SPECTRUM_MAX_OVERLAP_PERCENT
+// and averages from 1 to SPECTRUM_MAX_AVERAGES, returns 0 if one isn't or if there is no memory
+int spectrum_init(spectrum_t * spectrum, int size, int overlap_percent, int averages);
+void spectrum_free(spectrum_t * spectrum);
+
+// analyses samples IQ pairs, carrying on from the previous call, returns how many spectra were completed
+uint32_t spectrum_process(spectrum_t * spectrum, const uint8_t * iq, uint32_t samples);
+
+// the bins of one of the spectra the last spectrum_process completed
+const float * spectrum_bins(const spectrum_t * spectrum, uint32_t index);
+
+// quantizes size dB bins to 8 bit or 16 bit host order steps below full scale, returns the number of bytes written
+size_t spectrum_quantize(const float * bins, int size, int bits, uint8_t * out);
+
+#endif
@@ -0,0 +1,197 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <errno.h>
+#include <time.h>
+#include "spscring.h"
+
+void spscring_init(spscring_t * ring, unsigned int capacity) {
+    unsigned int size = 1;
+    while (size < capacity) size <<= 1;
+
+    atomic_init(&ring->head, 0);
+    atomic_init(&ring->tail, 0);
+    atomic_init(&ring->waiters, 0);
+    atomic_init(&ring->closed, 0);
+    ring->mask = size - 1;
+    atomic_init(&ring->limit, size);
+    ring->slots = (_Atomic(void *) *) calloc(size, sizeof(ring->slots[0]));
+    pthread_mutex_init(&ring->locker, NULL);
+    pthread_cond_init(&ring->condition, NULL);
+}
+
+void spscring_free(spscring_t * ring) {
+    free(ring->slots);
+    ring->slots = NULL;
+    pthread_mutex_destroy(&ring->locker);
+    pthread_cond_destroy(&ring->condition);
+}
+
+unsigned int spscring_capacity(spscring_t * ring) {
+    return ring->mask + 1;
+}
+
+void spscring_set_limit(spscring_t * ring, unsigned int limit) {
+    if (limit < 1) limit = 1;
+    if (limit > ring->mask + 1) limit = ring->mask + 1;
+    atomic_store_explicit(&ring->limit, limit, memory_order_relaxed);
+}
+
+unsigned int spscring_count(spscring_t * ring) {
+    return atomic_load_explicit(&ring->head, memory_order_acquire) - atomic_load_explicit(&ring->tail, memory_order_acquire);
+}
+
+// The other side registers in waiters before re-checking the ring, so either it sees our update or we see it waiting
+static void notify(spscring_t * ring) {
+    atomic_thread_fence(memory_order_seq_cst);
+    if (atomic_load_explicit(&ring->waiters, memory_order_relaxed) > 0) {
+        pthread_mutex_lock(&ring->locker);
+        pthread_cond_broadcast(&ring->condition);
+        pthread_mutex_unlock(&ring->locker);
+    }
+}
+
+int spscring_push(spscring_t * ring, void * item) {
+    unsigned int head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    unsigned int tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+    if (head - tail >= atomic_load_explicit(&ring->limit, memory_order_relaxed)) return 0;
+
+    atomic_store_explicit(&ring->slots[head & ring->mask], item, memory_order_relaxed);
+    atomic_store_explicit(&ring->head, head + 1, memory_order_release);
+    notify(ring);
+    return 1;
+}
+
+void * spscring_push_evict(spscring_t * ring, void * item) {
+    void * evicted = NULL;
+    unsigned int head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    unsigned int tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+    unsigned int limit = atomic_load_explicit(&ring->limit, memory_order_relaxed);
+
+    // after the limit was lowered the ring can hold more than limit, it shrinks as the consumer catches up
+    while (head - tail >= limit) {
+        void * oldest = atomic_load_explicit(&ring->slots[tail & ring->mask], memory_order_relaxed);
+        if (atomic_compare_exchange_weak_explicit(&ring->tail, &tail, tail + 1, memory_order_acq_rel, memory_order_acquire)) {
+            evicted = oldest;
+            break;
+        }
+        // either the consumer took it first, which makes room as well, or the CAS failed spuriously
+    }
+
+    atomic_store_explicit(&ring->slots[head & ring->mask], item, memory_order_relaxed);
+    atomic_store_explicit(&ring->head, head + 1, memory_order_release);
+    notify(ring);
+    return evicted;
+}
+
+void * spscring_pop(spscring_t * ring) {
+    unsigned int tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    for (;;) {
+        unsigned int head = atomic_load_explicit(&ring->head, memory_order_acquire);
+        if (head == tail) return NULL;
+
+        // the producer can evict this slot and reuse it, in that case the CAS fails and the item is not ours
+        void * item = atomic_load_explicit(&ring->slots[tail & ring->mask], memory_order_relaxed);
+        if (atomic_compare_exchange_weak_explicit(&ring->tail, &tail, tail + 1, memory_order_acq_rel, memory_order_relaxed)) {
+            notify(ring);
+            return item;
+        }
+    }
+}
+
+static void deadline_after_ms(struct timespec * ts, int ms) {
+    clock_gettime(CLOCK_REALTIME, ts);
+    ts->tv_nsec += ms * 1000000L;
+    ts->tv_sec += ts->tv_nsec / 1000000000L;
+    ts->tv_nsec = ts->tv_nsec % 1000000000L;
+}
+
+static int deadline_passed(const struct timespec * ts) {
+    struct timespec now;
+    clock_gettime(CLOCK_REALTIME, &now);
+    return now.tv_sec > ts->tv_sec || (now.tv_sec == ts->tv_sec && now.tv_nsec >= ts->tv_nsec);
+}
+
+// sleeps once until woken up or the timeout expires, unless the ring has changed since head and tail were read
+static void wait_for_change(spscring_t * ring, unsigned int head, unsigned int tail, struct timespec * ts) {
+    pthread_mutex_lock(&ring->locker);
+    atomic_fetch_add(&ring->waiters, 1);
+    if (!atomic_load(&ring->closed) && atomic_load(&ring->head) == head && atomic_load(&ring->tail) == tail) {
+        pthread_cond_timedwait(&ring->condition, &ring->locker, ts);
+    }
+    atomic_fetch_sub(&ring->waiters, 1);
+    pthread_mutex_unlock(&ring->locker);
+}
+
+// a change doesn't have to make room, the consumer can also have been woken up or the limit lowered, so this goes
+// on waiting until the deadline
+int spscring_push_wait(spscring_t * ring, void * item, int timeout_ms) {
+    struct timespec ts;
+    deadline_after_ms(&ts, timeout_ms);
+    for (;;) {
+        unsigned int head = atomic_load(&ring->head);
+        unsigned int tail = atomic_load(&ring->tail);
+        if (spscring_push(ring, item)) return 1;
+        if (atomic_load(&ring->closed) || deadline_passed(&ts)) return 0;
+        wait_for_change(ring, head, tail, &ts);
+    }
+}
+
+int spscring_wait_room(spscring_t * ring, int timeout_ms) {
+    struct timespec ts;
+    deadline_after_ms(&ts, timeout_ms);
+    for (;;) {
+        unsigned int head = atomic_load(&ring->head);
+        unsigned int tail = atomic_load(&ring->tail);
+        if (head - tail < atomic_load(&ring->limit)) return 1;
+        if (atomic_load(&ring->closed) || deadline_passed(&ts)) return 0;
+        wait_for_change(ring, head, tail, &ts);
+    }
+}
+
+void * spscring_pop_wait(spscring_t * ring, int timeout_ms) {
+    unsigned int head = atomic_load(&ring->head);
+    unsigned int tail = atomic_load(&ring->tail);
+    void * item = spscring_pop(ring);
+    if (item != NULL) return item;
+
+    struct timespec ts;
+    deadline_after_ms(&ts, timeout_ms);
+    wait_for_change(ring, head, tail, &ts);
+    return spscring_pop(ring);
+}
+
+void spscring_wake(spscring_t * ring) {
+    pthread_mutex_lock(&ring->locker);
+    pthread_cond_broadcast(&ring->condition);
+    pthread_mutex_unlock(&ring->locker);
+}
+
+void spscring_close(spscring_t * ring) {
+    pthread_mutex_lock(&ring->locker);
+    atomic_store(&ring->closed, 1);
+    pthread_cond_broadcast(&ring->condition);
+    pthread_mutex_unlock(&ring->locker);
+}
+
+void spscring_open(spscring_t * ring) {
+    atomic_store(&ring->closed, 0);
+}
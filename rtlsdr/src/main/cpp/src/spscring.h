@@ -0,0 +1,83 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SPSCRING_H_
+#define SPSCRING_H_
+
+#include <stdatomic.h>
+#include <pthread.h>
+
+#define SPSCRING_CACHE_LINE (64)
+
+// Fixed capacity single producer / single consumer ring of pointers.
+// push and pop never lock, the *_wait versions only block while the ring is full / empty.
+// The producer may also take the oldest item back with spscring_push_evict, so the tail is advanced with a CAS.
+// spscring_set_limit makes the ring accept fewer items than it has slots, it can be changed at any time.
+typedef struct spscring {
+    // written by the producer only
+    _Alignas(SPSCRING_CACHE_LINE) atomic_uint head;
+    // written by the consumer only
+    _Alignas(SPSCRING_CACHE_LINE) atomic_uint tail;
+
+    _Alignas(SPSCRING_CACHE_LINE) _Atomic(void *) * slots;
+    unsigned int mask;
+    atomic_uint limit;
+
+    // only touched when one of the sides needs to sleep
+    atomic_int waiters;
+    atomic_int closed;
+    pthread_mutex_t locker;
+    pthread_cond_t condition;
+} spscring_t;
+
+// capacity is rounded up to a power of two
+void spscring_init(spscring_t * ring, unsigned int capacity);
+void spscring_free(spscring_t * ring);
+
+// producer side, return 0 if the ring is full
+int spscring_push(spscring_t * ring, void * item);
+int spscring_push_wait(spscring_t * ring, void * item, int timeout_ms);
+// waits like spscring_push_wait without pushing, for a producer that has to push somewhere it can't wait
+// returns 0 if the ring is still full after timeout_ms or once it is closed
+int spscring_wait_room(spscring_t * ring, int timeout_ms);
+// always pushes, if the ring is full the oldest item is removed to make room and returned
+void * spscring_push_evict(spscring_t * ring, void * item);
+
+// consumer side, return NULL if the ring is empty
+void * spscring_pop(spscring_t * ring);
+void * spscring_pop_wait(spscring_t * ring, int timeout_ms);
+
+unsigned int spscring_count(spscring_t * ring);
+unsigned int spscring_capacity(spscring_t * ring);
+
+// the ring is full once it holds limit items, limit is clamped to 1..capacity
+// lowering it doesn't remove anything, the ring only takes new items once the consumer got below it
+void spscring_set_limit(spscring_t * ring, unsigned int limit);
+
+// wakes up anybody blocked in one of the *_wait functions, spscring_pop_wait returns while the producer side
+// goes back to waiting for room
+void spscring_wake(spscring_t * ring);
+
+// wakes up anybody blocked and makes the *_wait functions stop waiting until the ring is opened again,
+// unlike spscring_wake it can't be missed by a side that is just about to sleep
+void spscring_close(spscring_t * ring);
+void spscring_open(spscring_t * ring);
+
+#endif
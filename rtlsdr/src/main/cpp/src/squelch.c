@@ -0,0 +1,82 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include "squelch.h"
+#include "kernels.h"
+
+// a full scale tone, on the scale of the input minus 127.5
+#define FULL_SCALE (127.5)
+
+// samples whose squared magnitudes are summed side by side, the sums only meet at the end of a block
+#define LANES (256)
+
+void squelch_init(squelch_t * squelch) {
+    squelch->open = 0;
+    squelch->hold_until_us = 0;
+}
+
+static double power_db(const float * lanes, uint32_t samples) {
+    if (samples == 0) return SQUELCH_FLOOR_DB;
+    double sum = 0;
+    int k;
+    for (k = 0; k < LANES; k++) {
+        sum += lanes[k];
+    }
+    double power = sum / ((double) samples * FULL_SCALE * FULL_SCALE);
+    return power > 0 ? 10 * log10(power) : SQUELCH_FLOOR_DB;
+}
+
+double squelch_power_u8(const uint8_t * iq, uint32_t samples) {
+    const kernels_t * kernels = kernels_get();
+    float lanes[LANES] = {0};
+    float converted[2 * LANES];
+    uint32_t n;
+    for (n = 0; n < samples; n += LANES) {
+        uint32_t chunk = samples - n < LANES ? samples - n : LANES;
+        kernels->u8_to_f32(iq + 2 * n, 2 * chunk, 1.0f, converted);
+        kernels->magnitude_squared_add(converted, chunk, lanes);
+    }
+    return power_db(lanes, samples);
+}
+
+double squelch_power_float(const float * iq, uint32_t samples) {
+    const kernels_t * kernels = kernels_get();
+    float lanes[LANES] = {0};
+    uint32_t n;
+    for (n = 0; n < samples; n += LANES) {
+        uint32_t chunk = samples - n < LANES ? samples - n : LANES;
+        kernels->magnitude_squared_add(iq + 2 * n, chunk, lanes);
+    }
+    return power_db(lanes, samples);
+}
+
+squelch_state_t squelch_update(squelch_t * squelch, double power_db, double threshold_db, int64_t hold_us, int64_t now_us) {
+    if (power_db >= threshold_db) {
+        squelch->hold_until_us = now_us + hold_us;
+        if (squelch->open) return SQUELCH_OPEN;
+        squelch->open = 1;
+        return SQUELCH_OPENS;
+    }
+    if (!squelch->open) return SQUELCH_CLOSED;
+    if (now_us <= squelch->hold_until_us) return SQUELCH_OPEN;
+    squelch->open = 0;
+    return SQUELCH_CLOSES;
+}
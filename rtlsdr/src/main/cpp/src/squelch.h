@@ -0,0 +1,56 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SQUELCH_H_
+#define SQUELCH_H_
+
+#include <stdint.h>
+
+// what a block with no power at all reads, rather than minus infinity
+#define SQUELCH_FLOOR_DB (-200.0)
+
+// What a block does to the squelch
+typedef enum {
+    SQUELCH_CLOSED = 0, // nothing to send
+    SQUELCH_OPENS = 1, // a burst starts with this block
+    SQUELCH_OPEN = 2, // the burst goes on with this block, which is loud or within the hold time of one that was
+    SQUELCH_CLOSES = 3, // the burst ended before this block, which is not sent
+} squelch_state_t;
+
+// Opens on the first block whose power is at or above a threshold, and closes on the first block that comes more
+// than the hold time after the last one that was. The power of a block is its mean squared magnitude in dB below a
+// full scale tone, so a threshold reads the same for every sample format, sample rate and block size.
+// Only one thread may use a squelch at a time.
+typedef struct squelch {
+    int open;
+    int64_t hold_until_us; // the squelch closes after this unless a block is loud again
+} squelch_t;
+
+void squelch_init(squelch_t * squelch);
+
+// the power of samples IQ pairs in dB relative to a full scale tone, SQUELCH_FLOOR_DB if there are none
+double squelch_power_u8(const uint8_t * iq, uint32_t samples);
+// the same for floats on the scale of the 8 bit input minus 127.5
+double squelch_power_float(const float * iq, uint32_t samples);
+
+// moves the squelch on by a block of power_db that was fed at now_us
+squelch_state_t squelch_update(squelch_t * squelch, double power_db, double threshold_db, int64_t hold_us, int64_t now_us);
+
+#endif
@@ -46,7 +46,16 @@ typedef enum
     // Android only rtl-tcp API
     TCP_ANDROID_EXIT = 0x7e, // send any value to cause the driver to turn off itself
     TCP_ANDROID_GAIN_BY_PERCENTAGE = 0x7f, // set device gain by percentage. send values 0 to 100, where 0 means no gain and 100 means maximum gain
-    TCP_ANDROID_ENABLE_16_BIT_SIGNED = 0x80, // [NOT SUPPORTED IN RTL-SDR] set to 1 to enable 16 bit unsigned sample size (only supported devices such as SDRplay)
+    TCP_ANDROID_ENABLE_16_BIT_SIGNED = 0x80, // sample format of this client, 0 for 8 bit unsigned, 1 for 16 bit signed, 2 for 32 bit float, 3 for 8 bit signed, see sample_format_t
+    TCP_ANDROID_SET_CHANNEL_OFFSET = 0x81, // signed offset in Hz from the centre frequency of the channel this client receives
+    TCP_ANDROID_SET_CHANNEL_DECIMATION = 0x82, // power of two up to 256 the sample rate of this client's channel is divided by, 0 or 1 for the full band
+    TCP_ANDROID_SELECT_CHANNELIZER_CHANNEL = 0x83, // signed number of the channelizer channel this client receives, 0 is at the centre frequency
+    TCP_ANDROID_CHANNELIZER_ALL = 0x84, // set to 1 to receive every channelizer channel in frames, 0 goes back to the full band
+    TCP_ANDROID_SPECTRUM = 0x85, // set to 1 to receive averaged power spectra instead of samples, 0 goes back to samples
+    TCP_ANDROID_SQUELCH_THRESHOLD = 0x86, // tenths of a dB below full scale a block has to reach for this client to receive it in bursts, 0 sends every sample
+    TCP_ANDROID_SQUELCH_HOLD = 0x87, // milliseconds the squelch of this client stays open after the last block that reached the threshold
+    TCP_ANDROID_SQUELCH_PREROLL = 0x88, // milliseconds of samples from before the squelch of this client opens that start a burst
+    TCP_ANDROID_COMPRESSION = 0x89, // set to 1 to receive everything for this client in losslessly compressed frames, 0 goes back to plain bytes
 } tcp_commands_t;
 
 #endif //RTLSDR_TCP_COMMANDS_H
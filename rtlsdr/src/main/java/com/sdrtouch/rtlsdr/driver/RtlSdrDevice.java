@@ -27,6 +27,8 @@ import android.hardware.usb.UsbDeviceConnection;
 import com.sdrtouch.core.SdrTcpArguments;
 import com.sdrtouch.core.devices.SdrDevice;
 import com.sdrtouch.core.exceptions.SdrException;
+import com.sdrtouch.rtlsdr.driver.enums.ServerMetric;
+import com.sdrtouch.rtlsdr.driver.enums.ServerOption;
 import com.sdrtouch.tools.Log;
 import com.sdrtouch.tools.UsbPermissionObtainer;
 
@@ -49,6 +51,7 @@ public class RtlSdrDevice extends SdrDevice {
             @Override
             public void run() {
                 try {
+                    setServerOptions(sdrTcpArguments);
                     int fd = openSessionAndGetFd();
                     String path = usbDevice.getDeviceName();
                     if (!openAsync(nativeHandler, fd, sdrTcpArguments.getGain(), sdrTcpArguments.getSamplerateHz(), sdrTcpArguments.getFrequencyHz(), sdrTcpArguments.getPort(), sdrTcpArguments.getPpm(), sdrTcpArguments.getBiasT(),sdrTcpArguments.getAddress(), path)) {
@@ -73,6 +76,42 @@ public class RtlSdrDevice extends SdrDevice {
         return "rtl-sdr "+usbDevice.getDeviceName();
     }
 
+    private void setServerOptions(SdrTcpArguments sdrTcpArguments) throws SdrException {
+        setServerOption(ServerOption.MAX_CLIENTS, sdrTcpArguments.getMaxClients());
+        setServerOption(ServerOption.PERSISTENT, sdrTcpArguments.isPersistent() ? 1 : 0);
+        setServerOption(ServerOption.ZERO_COPY, sdrTcpArguments.isZeroCopy() ? 1 : 0);
+        setServerOption(ServerOption.WRITE_BATCH_BYTES, sdrTcpArguments.getWriteBatchBytes());
+        setServerOption(ServerOption.SEND_ZERO_COPY, sdrTcpArguments.isSendZeroCopy() ? 1 : 0);
+        setServerOption(ServerOption.SLOW_CLIENT_POLICY, sdrTcpArguments.getSlowClientPolicy());
+        setServerOption(ServerOption.LATENCY_BUDGET_MS, sdrTcpArguments.getLatencyBudgetMs());
+        setServerOption(ServerOption.SHARED_RING_BYTES, sdrTcpArguments.getSharedRingBytes());
+        setServerOption(ServerOption.QUEUE_MS, sdrTcpArguments.getQueueMs());
+        setServerOption(ServerOption.QUEUE_MEMORY_BYTES, sdrTcpArguments.getQueueMemoryBytes());
+        setServerOption(ServerOption.LOW_LATENCY, sdrTcpArguments.isLowLatency() ? 1 : 0);
+        setServerOption(ServerOption.DECIMATION, sdrTcpArguments.getDecimation());
+        setServerOption(ServerOption.SAMPLE_BITS, sdrTcpArguments.getSampleBits());
+        setServerOption(ServerOption.CHANNELIZER_CHANNELS, sdrTcpArguments.getChannelizerChannels());
+        setServerOption(ServerOption.SPECTRUM_SIZE, sdrTcpArguments.getSpectrumSize());
+        setServerOption(ServerOption.SPECTRUM_OVERLAP_PERCENT, sdrTcpArguments.getSpectrumOverlapPercent());
+        setServerOption(ServerOption.SPECTRUM_AVERAGES, sdrTcpArguments.getSpectrumAverages());
+        setServerOption(ServerOption.SPECTRUM_BITS, sdrTcpArguments.getSpectrumBits());
+        setServerOption(ServerOption.IQ_CORRECTION, sdrTcpArguments.isIqCorrection() ? 1 : 0);
+        if (!setUdpOutput(nativeHandler, sdrTcpArguments.getUdpAddress(), sdrTcpArguments.getUdpPort())) {
+            Log.appendLine("Cannot send samples to "+sdrTcpArguments.getUdpAddress()+":"+sdrTcpArguments.getUdpPort());
+        }
+    }
+
+    private void setServerOption(ServerOption option, long value) throws SdrException {
+        if (!setServerOption(nativeHandler, option.getCode(), value)) {
+            Log.appendLine("Server option "+option+" does not accept "+value);
+            throw new SdrException(SdrException.EXIT_WRONG_ARGS);
+        }
+    }
+
+    public long getServerMetric(ServerMetric metric) {
+        return getServerMetric(nativeHandler, metric.getCode());
+    }
+
     private int openSessionAndGetFd() throws ExecutionException, InterruptedException {
         UsbDeviceConnection deviceConnection = UsbPermissionObtainer.obtainFdFor(context, usbDevice).get();
         if (deviceConnection == null) throw new RuntimeException("Could not get a connection");
@@ -93,5 +132,8 @@ public class RtlSdrDevice extends SdrDevice {
     private native long initialize();
     private native void close(long pointer);
     private native void deInit(long pointer);
+    private native boolean setServerOption(long pointer, int option, long value);
+    private native long getServerMetric(long pointer, int metric);
+    private native boolean setUdpOutput(long pointer, String address, int port);
     private native boolean openAsync(long pointer, int fd, int gain, long samplingrate, long frequency, int port, int ppm, int biast, String address, String devicePath) throws Exception;
 }
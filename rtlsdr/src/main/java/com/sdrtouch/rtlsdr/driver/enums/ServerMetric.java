@@ -0,0 +1,56 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sdrtouch.rtlsdr.driver.enums;
+
+/**
+ * Counters kept by the native rtl-tcp server. Codes must match sdrtcp_metric_t in sdrtcp.h
+ */
+public enum ServerMetric {
+    IDLE_MILLIS(0),
+    DISCARDED_BYTES(1),
+    SENT_BYTES(2),
+    ZERO_COPY_SENT_BYTES(3),
+    ZERO_COPY_COPIED(4),
+    DROPPED_SAMPLES(5),
+    SLOW_CLIENTS_DISCONNECTED(6),
+    UDP_DATAGRAMS(7),
+    SHARED_RING_BYTES(8),
+    QUEUE_DEPTH(9),
+    BUFFERS_WRITTEN(10),
+    BUFFER_AGE_MICROS(11),
+    BUFFER_AGE_MAX_MICROS(12),
+    SQUELCHED_SAMPLES(13),
+    COMPRESSED_INPUT_BYTES(14),
+    COMPRESSED_OUTPUT_BYTES(15),
+    COMPRESSION_CPU_MICROS(16),
+    COMPRESSION_RATIO_PERCENT(17),
+    COMPRESSION_MICROS_PER_MB(18);
+
+    private final int code;
+
+    ServerMetric(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
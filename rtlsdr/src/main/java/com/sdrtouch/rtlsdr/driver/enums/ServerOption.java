@@ -0,0 +1,56 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sdrtouch.rtlsdr.driver.enums;
+
+/**
+ * Options of the native rtl-tcp server. Codes must match sdrtcp_option_t in sdrtcp.h
+ */
+public enum ServerOption {
+    MAX_CLIENTS(0),
+    PERSISTENT(1),
+    ZERO_COPY(2),
+    WRITE_BATCH_BYTES(3),
+    SEND_ZERO_COPY(4),
+    SLOW_CLIENT_POLICY(5),
+    LATENCY_BUDGET_MS(6),
+    SHARED_RING_BYTES(7),
+    QUEUE_MS(8),
+    QUEUE_MEMORY_BYTES(9),
+    LOW_LATENCY(10),
+    DECIMATION(11),
+    SAMPLE_BITS(12),
+    CHANNELIZER_CHANNELS(13),
+    SPECTRUM_SIZE(14),
+    SPECTRUM_OVERLAP_PERCENT(15),
+    SPECTRUM_AVERAGES(16),
+    SPECTRUM_BITS(17),
+    IQ_CORRECTION(18);
+
+    private final int code;
+
+    ServerOption(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
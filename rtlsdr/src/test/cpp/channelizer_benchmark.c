@@ -0,0 +1,128 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how many channels one core can split off a 2.4 Msps capture, with the polyphase channelizer against a
+// separate down-converter and decimator per channel, which is what every client asking for its own channel costs.
+// On the way it checks the filter bank: a tone a third of the spacing off the centre of a channel has to come out of
+// that channel at full strength and be gone from the channels two away, the next one over shares the edge of the band.
+// Blocks are the size of a default USB transfer. Run it on the phone too, the ratio is what matters on ARM.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+#include <time.h>
+
+#include "channelizer.h"
+#include "decimator.h"
+
+#define BLOCK_SAMPLES (131072)
+#define DEFAULT_BLOCKS (100)
+#define TONE_AMPLITUDE (100.0)
+#define CAPTURE_RATE (2.4e6)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void tone(uint8_t * iq, uint32_t samples, double frequency) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        iq[2 * n] = (uint8_t) lrint(127.5 + TONE_AMPLITUDE * cos(2 * M_PI * frequency * n));
+        iq[2 * n + 1] = (uint8_t) lrint(127.5 + TONE_AMPLITUDE * sin(2 * M_PI * frequency * n));
+    }
+}
+
+// power of a channel relative to the tone, in dB, skipping the start where the filter fills up
+static double channel_db(const channelizer_t * channelizer, int channel, uint32_t outputs) {
+    const float * iq = channelizer_channel(channelizer, channel & (channelizer->channels - 1));
+    double power = 0;
+    uint32_t n;
+    for (n = outputs / 4; n < outputs; n++) {
+        power += iq[2 * n] * iq[2 * n] + iq[2 * n + 1] * iq[2 * n + 1];
+    }
+    power /= outputs - outputs / 4;
+    return 10 * log10(power / (TONE_AMPLITUDE * TONE_AMPLITUDE) + 1e-12);
+}
+
+// fraction of a core the decimator takes for a single channel at the same output rate as the channelizer, 0 if it can't go that low
+static double down_converter_load(int channels, const uint8_t * in) {
+    static uint8_t out[4 * BLOCK_SAMPLES];
+    decimator_t decimator;
+    if (!decimator_init(&decimator, channels / 2, SAMPLE_FORMAT_S16)) return 0;
+    decimator_set_offset(&decimator, 3.0 / channels);
+
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < blocks; i++) {
+        decimator_process(&decimator, in, BLOCK_SAMPLES, out);
+    }
+    double elapsed = now_seconds() - start;
+    decimator_free(&decimator);
+    return CAPTURE_RATE * elapsed / (BLOCK_SAMPLES * (double) blocks);
+}
+
+static void benchmark(int channels) {
+    static uint8_t in[2 * BLOCK_SAMPLES];
+    channelizer_t channelizer;
+    if (!channelizer_init(&channelizer, channels)) {
+        printf("%4d channels not supported\n", channels);
+        return;
+    }
+
+    int channel = channels / 4;
+    tone(in, BLOCK_SAMPLES, (channel + 1.0 / 3) / channels);
+    uint32_t outputs = channelizer_process(&channelizer, in, BLOCK_SAMPLES);
+    double own = channel_db(&channelizer, channel, outputs);
+    double next = channel_db(&channelizer, channel + 1, outputs);
+    double far = fmax(channel_db(&channelizer, channel + 2, outputs), channel_db(&channelizer, channel - 2, outputs));
+
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < blocks; i++) {
+        channelizer_process(&channelizer, in, BLOCK_SAMPLES);
+    }
+    double elapsed = now_seconds() - start;
+    channelizer_free(&channelizer);
+
+    double load = CAPTURE_RATE * elapsed / (BLOCK_SAMPLES * (double) blocks);
+    double ddc = down_converter_load(channels, in);
+    char per_ddc[16] = "   -";
+    if (ddc > 0) snprintf(per_ddc, sizeof(per_ddc), "%4.0f", 1 / ddc);
+    printf("%4d x %6.1f kHz %7.1f Msps %5.1f%% of a core  %7.0f channels per core, %s with one down-converter each"
+           "  own %6.2f dB  next %6.1f dB  two away %6.1f dB\n",
+           channels, CAPTURE_RATE / channels / 1e3, BLOCK_SAMPLES * (double) blocks / elapsed / 1e6, 100 * load,
+           channels / load, per_ddc, own, next, far);
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    printf("capture at %.1f Msps, every channel comes out at twice its spacing\n", CAPTURE_RATE / 1e6);
+    int channels;
+    for (channels = 8; channels <= CHANNELIZER_MAX_CHANNELS; channels *= 2) {
+        benchmark(channels);
+    }
+    return 0;
+}
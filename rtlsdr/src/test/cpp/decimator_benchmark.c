@@ -0,0 +1,120 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how many samples per second the decimator takes on one core, and checks the filters on the way:
+// a tone inside the passband has to come out at full strength and one that would fold onto it has to vanish.
+// With 8 bit output the rounding alone is about 43 dB below the tone, so that is as low as folded goes.
+// Blocks are the size of a default USB transfer, the dongle delivers 2.4 Msps in a typical setup.
+// The last lines cut a channel away from the centre, the way a client with its own channel gets it, the tones move with it.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+#include <time.h>
+
+#include "decimator.h"
+
+#define BLOCK_SAMPLES (131072)
+#define DEFAULT_BLOCKS (200)
+#define TONE_AMPLITUDE (100.0)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void tone(uint8_t * iq, uint32_t samples, double frequency) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        iq[2 * n] = (uint8_t) lrint(127.5 + TONE_AMPLITUDE * cos(2 * M_PI * frequency * n));
+        iq[2 * n + 1] = (uint8_t) lrint(127.5 + TONE_AMPLITUDE * sin(2 * M_PI * frequency * n));
+    }
+}
+
+// power of what comes out relative to the tone, in dB, skipping the start where the filters fill up
+static double output_db(decimator_t * decimator, const uint8_t * out, size_t bytes) {
+    size_t samples = bytes / sampleformat_bytes(decimator->format);
+    double power = 0;
+    size_t n;
+    for (n = samples / 4; n < samples; n++) {
+        double i, q;
+        if (decimator->format == SAMPLE_FORMAT_S16) {
+            i = ((const int16_t *) out)[2 * n] / 256.0;
+            q = ((const int16_t *) out)[2 * n + 1] / 256.0;
+        } else {
+            i = out[2 * n] - 127.5;
+            q = out[2 * n + 1] - 127.5;
+        }
+        power += i * i + q * q;
+    }
+    power /= samples - samples / 4;
+    return 10 * log10(power / (TONE_AMPLITUDE * TONE_AMPLITUDE) + 1e-12);
+}
+
+static void benchmark(int factor, int bits, double offset) {
+    static uint8_t in[2 * BLOCK_SAMPLES];
+    static uint8_t out[4 * BLOCK_SAMPLES];
+    decimator_t decimator;
+
+    // 20% of the output rate is well inside the passband, 70% folds onto -30%
+    double output_rate = 1.0 / factor;
+    decimator_init(&decimator, factor, bits == 16 ? SAMPLE_FORMAT_S16 : SAMPLE_FORMAT_U8);
+    decimator_set_offset(&decimator, offset);
+    tone(in, BLOCK_SAMPLES, offset + 0.2 * output_rate);
+    double passband = output_db(&decimator, out, decimator_process(&decimator, in, BLOCK_SAMPLES, out));
+    decimator_free(&decimator);
+
+    decimator_init(&decimator, factor, bits == 16 ? SAMPLE_FORMAT_S16 : SAMPLE_FORMAT_U8);
+    decimator_set_offset(&decimator, offset);
+    tone(in, BLOCK_SAMPLES, offset + 0.7 * output_rate);
+    double folded = output_db(&decimator, out, decimator_process(&decimator, in, BLOCK_SAMPLES, out));
+
+    size_t bytes = 0;
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < blocks; i++) {
+        bytes += decimator_process(&decimator, in, BLOCK_SAMPLES, out);
+    }
+    double elapsed = now_seconds() - start;
+    decimator_free(&decimator);
+
+    double input_bytes = 2.0 * BLOCK_SAMPLES * blocks;
+    printf("/%-3d %2d bit %+5.2f %8.1f Msps %5.1f%% of a core at 2.4 Msps  %6.1fx less data  passband %6.2f dB  folded %6.1f dB\n",
+           factor, bits, offset, BLOCK_SAMPLES * (double) blocks / elapsed / 1e6, 100 * 2.4e6 * elapsed / (BLOCK_SAMPLES * (double) blocks),
+           input_bytes / bytes, passband, folded);
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    int factor;
+    for (factor = 2; factor <= DECIMATOR_MAX_FACTOR; factor *= 2) {
+        benchmark(factor, 8, 0);
+    }
+    benchmark(16, 16, 0);
+    benchmark(16, 8, 0.125);
+    benchmark(16, 16, -0.3);
+    benchmark(256, 8, 0.4);
+    return 0;
+}
@@ -0,0 +1,125 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how small the lossless compression gets the stream and what it costs on one core, for each sample format.
+// The captures are what a client typically gets: the full band with only noise in it at a low and a high gain, and a
+// narrow channel with a strong carrier that a DDC cut out and brought down to a lower rate. Every block is decoded
+// again and compared, so any difference is counted. Blocks are the size of what the server feeds.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <time.h>
+
+#include "iqcompress.h"
+#include "sampleformat.h"
+
+#define BLOCK_SAMPLES (16384)
+#define DEFAULT_BLOCKS (500)
+#define CAPTURES (8)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+// roughly Gaussian, the sum of four uniform values
+static double noise(void) {
+    double sum = 0;
+    int k;
+    for (k = 0; k < 4; k++) {
+        sum += rand() / (double) RAND_MAX - 0.5;
+    }
+    return sum * sqrt(3.0);
+}
+
+static void capture(float * iq, uint32_t samples, double noise_rms, double amplitude, double frequency) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        iq[2 * n] = (float) (amplitude * cos(2 * M_PI * frequency * n) + noise_rms * noise());
+        iq[2 * n + 1] = (float) (amplitude * sin(2 * M_PI * frequency * n) + noise_rms * noise());
+    }
+}
+
+static void benchmark(const char * name, const float * iq, int from_u8, sample_format_t format) {
+    static uint8_t u8[CAPTURES][2 * BLOCK_SAMPLES];
+    static uint8_t in[CAPTURES][8 * BLOCK_SAMPLES];
+    static uint8_t coded[CAPTURES][8 * BLOCK_SAMPLES + 16];
+    static uint8_t decoded[8 * BLOCK_SAMPLES];
+    size_t length[CAPTURES], coded_length[CAPTURES];
+    int c, i;
+
+    // the wide band comes from the dongle as 8 bit, which every format holds exactly
+    for (c = 0; c < CAPTURES; c++) {
+        const float * block = iq + (size_t) c * 2 * BLOCK_SAMPLES;
+        if (from_u8) {
+            sampleformat_from_float(SAMPLE_FORMAT_U8, block, BLOCK_SAMPLES, u8[c]);
+            length[c] = sampleformat_from_u8(format, u8[c], BLOCK_SAMPLES, in[c]);
+        } else {
+            length[c] = sampleformat_from_float(format, block, BLOCK_SAMPLES, in[c]);
+        }
+    }
+
+    const int lanes = sampleformat_bytes(format);
+    double input_bytes = 0, output_bytes = 0;
+    double start = now_seconds();
+    for (i = 0; i < blocks; i++) {
+        c = i % CAPTURES;
+        coded_length[c] = iqcompress_encode(in[c], length[c], lanes, coded[c]);
+        input_bytes += length[c];
+        output_bytes += coded_length[c];
+    }
+    double encoding = now_seconds() - start;
+
+    int differing = 0;
+    start = now_seconds();
+    for (i = 0; i < blocks; i++) {
+        c = i % CAPTURES;
+        if (!iqcompress_decode(coded[c], coded_length[c], decoded, length[c]) || memcmp(decoded, in[c], length[c]) != 0) differing++;
+    }
+    double decoding = now_seconds() - start;
+
+    printf("%-22s %-4s %5.2f:1  %s  encode %6.1f MB/s %5.2f ms per MB %5.2f%% of a core at 2.4 Msps  decode %6.1f MB/s  %d blocks differ\n",
+           name, sampleformat_name(format), input_bytes / output_bytes,
+           coded[0][0] == IQCOMPRESS_STORED ? "stored" : coded[0][2] == IQCOMPRESS_PREDICT_DELTA ? "delta " : "plain ",
+           input_bytes / encoding / 1e6, 1e3 * encoding / (input_bytes / 1e6),
+           100 * 2.4e6 * lanes * encoding / input_bytes, input_bytes / decoding / 1e6, differing);
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    static float quiet[CAPTURES * 2 * BLOCK_SAMPLES], loud[CAPTURES * 2 * BLOCK_SAMPLES], channel[CAPTURES * 2 * BLOCK_SAMPLES];
+    capture(quiet, CAPTURES * BLOCK_SAMPLES, 3, 0, 0);
+    capture(loud, CAPTURES * BLOCK_SAMPLES, 25, 0, 0);
+    capture(channel, CAPTURES * BLOCK_SAMPLES, 0.5, 60, 0.01);
+
+    static const sample_format_t formats[] = {SAMPLE_FORMAT_U8, SAMPLE_FORMAT_S8, SAMPLE_FORMAT_S16, SAMPLE_FORMAT_F32};
+    int f;
+    for (f = 0; f < 4; f++) benchmark("full band, low gain", quiet, 1, formats[f]);
+    for (f = 0; f < 4; f++) benchmark("full band, high gain", loud, 1, formats[f]);
+    for (f = 0; f < 4; f++) benchmark("channel with a carrier", channel, 0, formats[f]);
+    return 0;
+}
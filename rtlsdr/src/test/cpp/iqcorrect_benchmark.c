@@ -0,0 +1,125 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how many samples per second the DC and IQ imbalance correction takes on one core, and how well it works.
+// A tone goes in with a DC offset and with Q 5% too strong and 3 degrees off, the way a dongle might deliver it.
+// The imbalance shows up as an image of the tone on the other side of the centre, so the image rejection is the
+// tone against its image, and the DC is what is left at 0 Hz, both before and after settling, as 8 and 16 bit output.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+#include <time.h>
+
+#include "iqcorrect.h"
+#include "sampleformat.h"
+
+#define BLOCK_SAMPLES (131072)
+#define DEFAULT_BLOCKS (200)
+#define SETTLE_BLOCKS (20)
+#define TONE_AMPLITUDE (80.0)
+#define TONE_FREQUENCY (0.1)
+#define DC_I (4.0)
+#define DC_Q (-3.0)
+#define GAIN_ERROR (1.05)
+#define PHASE_ERROR_DEGREES (3.0)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void impaired_tone(uint8_t * iq, uint32_t samples) {
+    const double phase_error = PHASE_ERROR_DEGREES * M_PI / 180;
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        double angle = 2 * M_PI * TONE_FREQUENCY * n;
+        // a little noise so that the rounding to 8 bits doesn't line up with the tone
+        double noise_i = (rand() / (double) RAND_MAX - 0.5);
+        double noise_q = (rand() / (double) RAND_MAX - 0.5);
+        iq[2 * n] = (uint8_t) lrint(127.5 + DC_I + TONE_AMPLITUDE * cos(angle) + noise_i);
+        iq[2 * n + 1] = (uint8_t) lrint(127.5 + DC_Q + GAIN_ERROR * TONE_AMPLITUDE * sin(angle + phase_error) + noise_q);
+    }
+}
+
+// power at a frequency, from a single bin of a DFT over the block
+static double power_at(const float * iq, uint32_t samples, double frequency) {
+    double re = 0, im = 0;
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        double c = cos(2 * M_PI * frequency * n), s = -sin(2 * M_PI * frequency * n);
+        re += iq[2 * n] * c - iq[2 * n + 1] * s;
+        im += iq[2 * n] * s + iq[2 * n + 1] * c;
+    }
+    return (re * re + im * im) / ((double) samples * samples);
+}
+
+// image rejection and DC of what comes out in the given width, read back as floats on the scale of the input
+static void report(const char * what, const float * corrected, uint32_t samples, int bits) {
+    static uint8_t written[4 * BLOCK_SAMPLES];
+    static float iq[2 * BLOCK_SAMPLES];
+    sampleformat_from_float(bits == 16 ? SAMPLE_FORMAT_S16 : SAMPLE_FORMAT_U8, corrected, samples, written);
+    uint32_t i;
+    for (i = 0; i < 2 * samples; i++) {
+        iq[i] = bits == 16 ? ((const int16_t *) written)[i] / 256.0f : written[i] - 127.5f;
+    }
+
+    double image = 10 * log10(power_at(iq, samples, TONE_FREQUENCY) / power_at(iq, samples, -TONE_FREQUENCY));
+    double dc = 10 * log10(power_at(iq, samples, 0) / (TONE_AMPLITUDE * TONE_AMPLITUDE));
+    printf("%-10s %2d bit  image rejection %5.1f dB  DC %6.1f dB below the tone\n", what, bits, image, -dc);
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    static uint8_t in[2 * BLOCK_SAMPLES];
+    static float out[2 * BLOCK_SAMPLES];
+    impaired_tone(in, BLOCK_SAMPLES);
+    uint32_t i;
+    for (i = 0; i < 2 * BLOCK_SAMPLES; i++) {
+        out[i] = in[i] - 127.5f;
+    }
+    report("input", out, BLOCK_SAMPLES, 8);
+
+    iqcorrect_t corrector;
+    iqcorrect_init(&corrector);
+    iqcorrect_process(&corrector, in, BLOCK_SAMPLES, out);
+    iqcorrect_process(&corrector, in, BLOCK_SAMPLES, out);
+    report("2 blocks", out, BLOCK_SAMPLES, 8);
+    int b;
+    for (b = 2; b < SETTLE_BLOCKS; b++) {
+        iqcorrect_process(&corrector, in, BLOCK_SAMPLES, out);
+    }
+    report("settled", out, BLOCK_SAMPLES, 8);
+    report("settled", out, BLOCK_SAMPLES, 16);
+
+    double start = now_seconds();
+    for (b = 0; b < blocks; b++) {
+        iqcorrect_process(&corrector, in, BLOCK_SAMPLES, out);
+    }
+    double elapsed = now_seconds() - start;
+    printf("%.1f Msps, %.1f%% of a core at 2.4 Msps\n", BLOCK_SAMPLES * (double) blocks / elapsed / 1e6,
+           100 * 2.4e6 * elapsed / (BLOCK_SAMPLES * (double) blocks));
+    return 0;
+}
@@ -0,0 +1,100 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures every kernel of every set this CPU runs, in million complex samples per second and against the plain C
+// reference. The FIR has the 12 taps a decimator stage runs on every other input sample. Blocks are the size of a
+// default USB transfer, the dongle delivers 2.4 Msps in a typical setup. The Android build has optimisation turned
+// down, build this the same way with -DCMAKE_C_FLAGS_RELEASE=-O1 to see what the reference does there.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include <math.h>
+
+#include "kernels.h"
+
+#define BLOCK_SAMPLES (131072)
+#define DEFAULT_BLOCKS (500)
+#define FIR_TAPS (12)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+enum { U8_TO_S8, U8_TO_S16, U8_TO_F32, MIX, FIR, MAGNITUDE_SQUARED, KERNELS };
+static const char * const NAMES[KERNELS] = { "u8_to_s8", "u8_to_s16", "u8_to_f32", "mix", "fir", "magnitude_squared_add" };
+
+// million complex samples per second
+static double measure(const kernels_t * kernels, int kernel) {
+    static uint8_t bytes[2 * BLOCK_SAMPLES];
+    static float iq[2 * (BLOCK_SAMPLES + FIR_TAPS)], table[2 * BLOCK_SAMPLES], out[2 * BLOCK_SAMPLES], taps[FIR_TAPS];
+    static int filled = 0;
+    uint32_t i;
+    if (!filled) {
+        for (i = 0; i < 2 * BLOCK_SAMPLES; i++) bytes[i] = (uint8_t) rand();
+        for (i = 0; i < 2 * (BLOCK_SAMPLES + FIR_TAPS); i++) iq[i] = (float) (rand() % 256) - 127.5f;
+        // the mix works in place block after block, turning without growing keeps the samples at their size
+        for (i = 0; i < BLOCK_SAMPLES; i++) {
+            table[2 * i] = (float) cos(0.01 * i);
+            table[2 * i + 1] = (float) sin(0.01 * i);
+        }
+        for (i = 0; i < FIR_TAPS; i++) taps[i] = (float) rand() / RAND_MAX;
+        filled = 1;
+    }
+
+    double start = now_seconds();
+    int b;
+    for (b = 0; b < blocks; b++) {
+        switch (kernel) {
+            case U8_TO_S8: kernels->u8_to_s8(bytes, 2 * BLOCK_SAMPLES, (uint8_t *) out); break;
+            case U8_TO_S16: kernels->u8_to_s16(bytes, 2 * BLOCK_SAMPLES, (int16_t *) out); break;
+            case U8_TO_F32: kernels->u8_to_f32(bytes, 2 * BLOCK_SAMPLES, 1.0f, out); break;
+            case MIX: kernels->mix(iq, BLOCK_SAMPLES, table, 1.0f, 0.0f); break;
+            case FIR: kernels->fir(iq, BLOCK_SAMPLES, taps, FIR_TAPS, out); break;
+            default: kernels->magnitude_squared_add(iq, BLOCK_SAMPLES, out); break;
+        }
+    }
+    return BLOCK_SAMPLES * (double) blocks / (now_seconds() - start) / 1e6;
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    double reference[KERNELS];
+    int kernel;
+    for (kernel = 0; kernel < KERNELS; kernel++) reference[kernel] = measure(kernels_variant(0), kernel);
+
+    int index;
+    for (index = 0; kernels_variant(index) != NULL; index++) {
+        const kernels_t * kernels = kernels_variant(index);
+        for (kernel = 0; kernel < KERNELS; kernel++) {
+            double msps = index == 0 ? reference[kernel] : measure(kernels, kernel);
+            printf("%-6s %-22s %8.1f Msps %6.2f%% of a core at 2.4 Msps %5.1fx the reference\n",
+                   kernels->name, NAMES[kernel], msps, 100 * 2.4 / msps, msps / reference[kernel]);
+        }
+    }
+    printf("%s is used\n", kernels_get()->name);
+    return 0;
+}
@@ -0,0 +1,123 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Checks every set of kernels this CPU runs against the plain C reference, for lengths around every vector width
+// so that the tails are covered too. The conversions have to match exactly, the float kernels to rounding.
+// Exits with 1 if anything is off, so it can run as a test.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+
+#include "kernels.h"
+
+#define MAX_LENGTH (300)
+#define MAX_TAPS (23)
+// relative to the size of the values that went into a result
+#define TOLERANCE (1e-5)
+
+static int failures = 0;
+
+static float random_float(void) {
+    return (float) rand() / RAND_MAX * 2 - 1;
+}
+
+static void check(const kernels_t * kernels, const char * kernel, uint32_t length, int same) {
+    if (same) return;
+    printf("%-6s %-22s differs for length %u\n", kernels->name, kernel, length);
+    failures++;
+}
+
+static int floats_close(const float * a, const float * b, uint32_t count, float scale) {
+    uint32_t i;
+    for (i = 0; i < count; i++) {
+        if (fabsf(a[i] - b[i]) > TOLERANCE * scale) return 0;
+    }
+    return 1;
+}
+
+static void test(const kernels_t * kernels, const kernels_t * reference, uint32_t length) {
+    static uint8_t bytes[2 * MAX_LENGTH];
+    static float iq[2 * (MAX_LENGTH + MAX_TAPS)], table[2 * MAX_LENGTH], taps[MAX_TAPS];
+    static uint8_t s8[2][2 * MAX_LENGTH];
+    static int16_t s16[2][2 * MAX_LENGTH];
+    static float f32[2][2 * (MAX_LENGTH + MAX_TAPS)];
+    uint32_t i;
+    for (i = 0; i < 2 * length; i++) bytes[i] = (uint8_t) rand();
+    for (i = 0; i < 2 * (length + MAX_TAPS); i++) iq[i] = random_float() * 100;
+    for (i = 0; i < length; i++) {
+        double angle = 2 * M_PI * random_float();
+        table[2 * i] = (float) cos(angle);
+        table[2 * i + 1] = (float) sin(angle);
+    }
+    for (i = 0; i < MAX_TAPS; i++) taps[i] = random_float();
+
+    // the output is larger than the input so that writing past the end shows up
+    memset(s8, 0, sizeof(s8));
+    reference->u8_to_s8(bytes, 2 * length, s8[0]);
+    kernels->u8_to_s8(bytes, 2 * length, s8[1]);
+    check(kernels, "u8_to_s8", length, memcmp(s8[0], s8[1], sizeof(s8[0])) == 0);
+
+    memset(s16, 0, sizeof(s16));
+    reference->u8_to_s16(bytes, 2 * length, s16[0]);
+    kernels->u8_to_s16(bytes, 2 * length, s16[1]);
+    check(kernels, "u8_to_s16", length, memcmp(s16[0], s16[1], sizeof(s16[0])) == 0);
+
+    memset(f32, 0, sizeof(f32));
+    reference->u8_to_f32(bytes, 2 * length, 1.0f / 128, f32[0]);
+    kernels->u8_to_f32(bytes, 2 * length, 1.0f / 128, f32[1]);
+    check(kernels, "u8_to_f32", length, memcmp(f32[0], f32[1], sizeof(f32[0])) == 0);
+
+    memcpy(f32[0], iq, sizeof(f32[0]));
+    memcpy(f32[1], iq, sizeof(f32[1]));
+    reference->mix(f32[0], length, table, 0.6f, -0.8f);
+    kernels->mix(f32[1], length, table, 0.6f, -0.8f);
+    check(kernels, "mix", length, floats_close(f32[0], f32[1], 2 * (MAX_LENGTH + MAX_TAPS), 100));
+
+    int count;
+    for (count = 1; count <= MAX_TAPS; count += 11) {
+        char name[32];
+        memset(f32, 0, sizeof(f32));
+        reference->fir(iq, length, taps, count, f32[0]);
+        kernels->fir(iq, length, taps, count, f32[1]);
+        snprintf(name, sizeof(name), "fir with %d taps", count);
+        check(kernels, name, length, floats_close(f32[0], f32[1], 2 * (MAX_LENGTH + MAX_TAPS), 100.0f * count));
+    }
+
+    for (i = 0; i < MAX_LENGTH + MAX_TAPS; i++) f32[0][i] = f32[1][i] = (float) i;
+    reference->magnitude_squared_add(iq, length, f32[0]);
+    kernels->magnitude_squared_add(iq, length, f32[1]);
+    check(kernels, "magnitude_squared_add", length, floats_close(f32[0], f32[1], MAX_LENGTH + MAX_TAPS, 2e4f));
+}
+
+int main(void) {
+    const kernels_t * reference = kernels_variant(0);
+    int index;
+    for (index = 1; kernels_variant(index) != NULL; index++) {
+        const kernels_t * kernels = kernels_variant(index);
+        uint32_t length;
+        for (length = 0; length <= MAX_LENGTH; length++) test(kernels, reference, length);
+        printf("%-6s checked against %s\n", kernels->name, reference->name);
+    }
+    printf("%s is used\n", kernels_get()->name);
+    if (failures != 0) printf("%d differences\n", failures);
+    return failures != 0;
+}
@@ -0,0 +1,92 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how fast the samples are converted to every output format, from the 8 bit samples of the dongle and from
+// the float samples that decimation or correction leave, and checks on the way that both give the same bytes for
+// every possible input. Blocks are the size of a default USB transfer, the dongle delivers 2.4 Msps in a typical setup.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "sampleformat.h"
+
+#define BLOCK_SAMPLES (131072)
+#define DEFAULT_BLOCKS (2000)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+// every one of the 256 values goes through both conversions, returns 1 if they agree
+static int same_both_ways(sample_format_t format) {
+    uint8_t in[256];
+    float iq[256];
+    uint8_t direct[256 * sizeof(float)];
+    uint8_t through_float[256 * sizeof(float)];
+    int v;
+    for (v = 0; v < 256; v++) {
+        in[v] = (uint8_t) v;
+        iq[v] = v - 127.5f;
+    }
+    size_t bytes = sampleformat_from_u8(format, in, 128, direct);
+    return bytes == sampleformat_from_float(format, iq, 128, through_float) && memcmp(direct, through_float, bytes) == 0;
+}
+
+static void benchmark(sample_format_t format) {
+    static uint8_t in[2 * BLOCK_SAMPLES];
+    static float iq[2 * BLOCK_SAMPLES];
+    static uint8_t out[2 * sizeof(float) * BLOCK_SAMPLES];
+    uint32_t n;
+    for (n = 0; n < 2 * BLOCK_SAMPLES; n++) {
+        in[n] = (uint8_t) rand();
+        iq[n] = in[n] - 127.5f;
+    }
+
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < blocks; i++) sampleformat_from_u8(format, in, BLOCK_SAMPLES, out);
+    double from_u8 = now_seconds() - start;
+
+    start = now_seconds();
+    for (i = 0; i < blocks; i++) sampleformat_from_float(format, iq, BLOCK_SAMPLES, out);
+    double from_float = now_seconds() - start;
+
+    double samples = BLOCK_SAMPLES * (double) blocks;
+    printf("%-3s  from u8 %7.1f Msps %5.2f%% of a core at 2.4 Msps  from float %7.1f Msps %5.2f%%  %s\n",
+           sampleformat_name(format),
+           samples / from_u8 / 1e6, 100 * 2.4e6 * from_u8 / samples,
+           samples / from_float / 1e6, 100 * 2.4e6 * from_float / samples,
+           same_both_ways(format) ? "same both ways" : "DIFFERENT both ways");
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    int format;
+    for (format = 0; format < SAMPLE_FORMATS; format++) benchmark((sample_format_t) format);
+    return 0;
+}
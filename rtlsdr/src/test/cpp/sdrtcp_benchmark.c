@@ -0,0 +1,437 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures the CPU time the rtl_tcp server spends per MB sent, with plain sends and with MSG_ZEROCOPY
+// over TCP, and over a unix domain socket. A second run feeds at the 3.2 Msps of a dongle and also
+// covers the low latency profile and the shared ring, where the reader maps the samples instead of receiving them.
+// Every block carries the time it was fed, so the reader sees how old samples are when they arrive. A reader
+// that is slower than the stream, like a weak Wi-Fi link, shows how much latency piles up in queues and sockets.
+//
+// By default a reader thread in the same process drains the data over loopback. The kernel
+// always copies loopback traffic, so zero-copy only shows its gain with an external client:
+//
+//   sdrtcp_benchmark 10 external
+//   nc <device address> 14424 > /dev/null   (once for every mode)
+//
+// At the end buffers are lent to the server like the zero-copy USB path does, and the idle time must not grow
+// while a client is served. The exit code is 1 if it did.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdarg.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <time.h>
+#include <arpa/inet.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <stdatomic.h>
+#include <sys/resource.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+#include "sdrtcp.h"
+
+#define PORT (14424)
+#define UNIX_NAME "sdrtcp_benchmark"
+#define FEED_SAMPLES (131072)
+#define DEFAULT_SECONDS (5)
+#define DONGLE_RATE (3200000)
+#define SHARED_RING_BYTES (4 * 1024 * 1024)
+// the slow reader takes this share of the stream
+#define SLOW_READER_SHARE (0.8)
+// a reader that cares about latency doesn't let data pile up on its side either
+#define LOW_LATENCY_RCVBUF (64 * 1024)
+// buffers lent to the server by the idle time check, more than it can hold at the same time
+#define LENT_BUFFERS (256)
+
+static int verbose = 0;
+static volatile int closed = 0;
+static volatile int reading = 0;
+static int reader_unix = 0;
+static int reader_shared_ring = 0;
+static volatile int64_t reader_received = 0;
+static volatile int64_t reader_lost = 0;
+static double reader_bytes_per_second = 0; // 0 reads as fast as possible
+static double reader_age_sum = 0;
+static double reader_age_max = 0;
+static int64_t reader_blocks = 0;
+static int reader_low_latency = 0;
+static size_t block_bytes = FEED_SAMPLES * 2;
+
+void common_logf(const char *format, ...) {
+    if (!verbose) return;
+    va_list args;
+    va_start(args, format);
+    vfprintf(stderr, format, args);
+    fputc('\n', stderr);
+    va_end(args);
+}
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static double cpu_seconds(void) {
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    return usage.ru_utime.tv_sec + usage.ru_utime.tv_usec / 1e6 + usage.ru_stime.tv_sec + usage.ru_stime.tv_usec / 1e6;
+}
+
+static void on_command(sdrtcp_t * server, void * ctx, sdr_tcp_command_t * command) {
+}
+
+static void on_closed(sdrtcp_t * server, void * ctx) {
+    closed = 1;
+}
+
+static void reader_record(const char * block_start) {
+    double fed;
+    memcpy(&fed, block_start, sizeof(fed));
+    double age = now_seconds() - fed;
+    reader_age_sum += age;
+    if (age > reader_age_max) reader_age_max = age;
+    reader_blocks++;
+}
+
+// follows the protocol described at sdrtcp_shared_ring_t, copying out what it reads like a real consumer would
+static void read_shared_ring(int s, char * data, size_t size) {
+    char info[sizeof(dongle_info_t)];
+    union {
+        struct cmsghdr header;
+        char space[CMSG_SPACE(sizeof(int))];
+    } control;
+    struct iovec iov = { info, sizeof(info) };
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control.space;
+    msg.msg_controllen = sizeof(control.space);
+
+    struct cmsghdr * cmsg;
+    int fd = -1;
+    if (recvmsg(s, &msg, MSG_WAITALL) <= 0 || (cmsg = CMSG_FIRSTHDR(&msg)) == NULL || cmsg->cmsg_type != SCM_RIGHTS) {
+        printf("no shared ring received\n");
+        return;
+    }
+    memcpy(&fd, CMSG_DATA(cmsg), sizeof(int));
+
+    struct stat st;
+    fstat(fd, &st);
+    const uint8_t * mapping = mmap(NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (mapping == MAP_FAILED) {
+        perror("mmap");
+        return;
+    }
+    sdrtcp_shared_ring_t * ring = (sdrtcp_shared_ring_t *) mapping;
+    const uint8_t * ring_data = mapping + ring->data_offset;
+    uint64_t position = atomic_load(&ring->written);
+
+    while (reading && !atomic_load(&ring->closed)) {
+        uint64_t written = atomic_load_explicit(&ring->written, memory_order_acquire);
+        if (written == position) {
+            // the futex changes before the server wakes anybody, so a write after this load is never missed
+            uint32_t futex = atomic_load(&ring->futex);
+            if (atomic_load(&ring->written) == position) {
+                struct timespec timeout = { 0, 100000000 };
+                syscall(SYS_futex, &ring->futex, FUTEX_WAIT, futex, &timeout, NULL, 0);
+            }
+            continue;
+        }
+
+        size_t length = written - position;
+        if (length > size) length = size;
+        size_t offset = position & (ring->capacity - 1);
+        size_t first = ring->capacity - offset;
+        if (first > length) first = length;
+        memcpy(data, ring_data + offset, first);
+        memcpy(data + first, ring_data, length - first);
+
+        atomic_thread_fence(memory_order_acquire);
+        if (atomic_load(&ring->claimed) > position + ring->capacity) {
+            uint64_t resume = atomic_load(&ring->written) - ring->capacity;
+            reader_lost += resume - position;
+            position = resume;
+            continue;
+        }
+        // blocks are fed whole, so every block starts at a multiple of its size
+        uint64_t block = block_bytes;
+        uint64_t start;
+        for (start = (position + block - 1) / block * block; start + sizeof(double) <= position + length; start += block) {
+            reader_record(data + (start - position));
+        }
+        position += length;
+        reader_received += length;
+    }
+    munmap((void *) mapping, st.st_size);
+}
+
+// reads one fed block at a time, the first bytes of every block are the time it was fed
+static void read_blocks(int s, char * data) {
+    const size_t block = block_bytes;
+    double start = now_seconds();
+    int64_t received = 0;
+
+    if (recv(s, data, sizeof(dongle_info_t), MSG_WAITALL) != sizeof(dongle_info_t)) return;
+    while (reading && recv(s, data, block, MSG_WAITALL) == (ssize_t) block) {
+        reader_record(data);
+        reader_received += block;
+        received += block;
+
+        if (reader_bytes_per_second > 0) {
+            double early = start + received / reader_bytes_per_second - now_seconds();
+            if (early > 0) usleep((useconds_t) (early * 1e6));
+        }
+    }
+}
+
+static void * reader(void * arg) {
+    static char data[1 << 20];
+    struct sockaddr_storage remote;
+    socklen_t remote_length;
+    memset(&remote, 0, sizeof(remote));
+
+    if (reader_unix) {
+        struct sockaddr_un * remote_un = (struct sockaddr_un *) &remote;
+        remote_un->sun_family = AF_UNIX;
+        memcpy(remote_un->sun_path + 1, UNIX_NAME, strlen(UNIX_NAME));
+        remote_length = offsetof(struct sockaddr_un, sun_path) + 1 + strlen(UNIX_NAME);
+    } else {
+        struct sockaddr_in * remote_in = (struct sockaddr_in *) &remote;
+        remote_in->sin_family = AF_INET;
+        remote_in->sin_port = htons(PORT);
+        remote_in->sin_addr.s_addr = inet_addr("127.0.0.1");
+        remote_length = sizeof(*remote_in);
+    }
+
+    int s = socket(remote.ss_family, SOCK_STREAM, 0);
+    if (reader_low_latency) {
+        int rcvbuf = LOW_LATENCY_RCVBUF;
+        setsockopt(s, SOL_SOCKET, SO_RCVBUF, &rcvbuf, sizeof(rcvbuf));
+    }
+    if (connect(s, (struct sockaddr *) &remote, remote_length) != 0) {
+        perror("connect");
+        close(s);
+        return NULL;
+    }
+    if (reader_shared_ring) {
+        read_shared_ring(s, data, sizeof(data));
+    } else {
+        read_blocks(s, data);
+    }
+    close(s);
+    return NULL;
+}
+
+static void benchmark(const char * name, const char * address, int zerocopy, int low_latency, int shared_ring, int rate, double reader_share, double seconds, int external) {
+    static unsigned char samples[FEED_SAMPLES * 2];
+    sdrtcp_t server;
+    pthread_t reader_thread;
+
+    memset(samples, 0x7f, sizeof(samples));
+    closed = 0;
+
+    sdrtcp_init(&server);
+    sdrtcp_set_option(&server, SDRTCP_OPTION_SEND_ZEROCOPY, zerocopy);
+    sdrtcp_set_option(&server, SDRTCP_OPTION_SHARED_RING_BYTES, shared_ring ? SHARED_RING_BYTES : 0);
+    sdrtcp_set_option(&server, SDRTCP_OPTION_LOW_LATENCY, low_latency);
+    sdrtcp_set_sample_rate(&server, rate);
+    uint32_t preferred = sdrtcp_preferred_feed_bytes(&server, rate);
+    block_bytes = preferred != 0 ? preferred : FEED_SAMPLES * 2;
+    if (!sdrtcp_open_socket(&server, address, PORT, "RTL0", 5, 29)) {
+        printf("%-14s cannot listen on %s\n", name, address);
+        sdrtcp_free(&server);
+        return;
+    }
+    sdrtcp_serve_client_async(&server, NULL, on_command, on_closed);
+
+    if (external) {
+        printf("%-14s waiting for a client on port %d\n", name, PORT);
+    } else {
+        reading = 1;
+        reader_unix = strncmp(address, "unix:", 5) == 0;
+        reader_shared_ring = shared_ring;
+        reader_low_latency = low_latency;
+        reader_bytes_per_second = reader_share * rate * 2;
+        reader_age_sum = 0;
+        reader_age_max = 0;
+        reader_blocks = 0;
+        pthread_create(&reader_thread, NULL, reader, NULL);
+    }
+    while (server.clients_count == 0 && !closed) usleep(1000);
+
+    int64_t sent = sdrtcp_get_metric(&server, SDRTCP_METRIC_SENT_BYTES);
+    int64_t sent_zerocopy = sdrtcp_get_metric(&server, SDRTCP_METRIC_ZEROCOPY_SENT_BYTES);
+    int64_t received = reader_received;
+    int64_t lost = reader_lost;
+    double cpu = cpu_seconds();
+    double start = now_seconds();
+    int64_t blocks = 0;
+
+    // a single client slows the feed down to what it takes, so without a rate this runs as fast as the socket allows
+    while (now_seconds() - start < seconds && !closed) {
+        if (rate > 0) {
+            double due = start + (double) blocks * block_bytes / 2 / rate;
+            double early = due - now_seconds();
+            if (early > 0) usleep((useconds_t) (early * 1e6));
+        }
+        double fed = now_seconds();
+        memcpy(samples, &fed, sizeof(fed));
+        sdrtcp_feed(&server, samples, block_bytes / 2);
+        blocks++;
+    }
+
+    double elapsed = now_seconds() - start;
+    cpu = cpu_seconds() - cpu;
+
+    if (rate > 0) {
+        double mb = (reader_received - received) / 1e6;
+        int64_t written = sdrtcp_get_metric(&server, SDRTCP_METRIC_BUFFERS_WRITTEN);
+        double server_ms = written > 0 ? sdrtcp_get_metric(&server, SDRTCP_METRIC_BUFFER_AGE_MICROS) / 1000.0 / written : 0;
+        printf("%-20s %5.1f MB/s %6.3f ms CPU/MB %5.1f%% of a core  waited %6.1f ms in server, %6.1f ms end to end, at most %6.1f ms",
+               name, mb / elapsed, mb > 0 ? cpu * 1000 / mb : 0, 100 * cpu / elapsed,
+               server_ms, reader_blocks > 0 ? 1000 * reader_age_sum / reader_blocks : 0, 1000 * reader_age_max);
+        if (shared_ring) printf("  %lld bytes overrun", (long long) (reader_lost - lost));
+        printf("\n");
+    } else {
+        double mb = (sdrtcp_get_metric(&server, SDRTCP_METRIC_SENT_BYTES) - sent) / 1e6;
+        double mb_zerocopy = (sdrtcp_get_metric(&server, SDRTCP_METRIC_ZEROCOPY_SENT_BYTES) - sent_zerocopy) / 1e6;
+        printf("%-14s %8.1f MB/s %8.3f ms CPU/MB  %5.1f%% sent zero-copy, %lld completions copied by the kernel\n",
+               name, mb / elapsed, mb > 0 ? cpu * 1000 / mb : 0, mb > 0 ? 100 * mb_zerocopy / mb : 0,
+               (long long) sdrtcp_get_metric(&server, SDRTCP_METRIC_ZEROCOPY_COPIED));
+    }
+
+    reading = 0;
+    sdrtcp_stop_serving_client(&server);
+    while (!closed) usleep(10000);
+    if (!external) pthread_join(reader_thread, NULL);
+    sdrtcp_free(&server);
+}
+
+static atomic_int lent_busy[LENT_BUFFERS];
+
+static void on_lent_released(unsigned char * buf, void * ctx) {
+    atomic_store(&lent_busy[(intptr_t) ctx], 0);
+}
+
+// feeds lent buffers the way the zero-copy USB path does, the idle time must not grow while a client is served
+// returns 0 if it did
+static int check_idle_while_lent(const char * address, double seconds) {
+    static unsigned char samples[LENT_BUFFERS][FEED_SAMPLES * 2];
+    sdrtcp_t server;
+    pthread_t reader_thread;
+    int i;
+
+    closed = 0;
+    sdrtcp_init(&server);
+    sdrtcp_set_option(&server, SDRTCP_OPTION_ZERO_COPY, 1);
+    block_bytes = FEED_SAMPLES * 2;
+    if (!sdrtcp_open_socket(&server, address, PORT, "RTL0", 5, 29)) {
+        printf("idle check cannot listen on %s\n", address);
+        sdrtcp_free(&server);
+        return 0;
+    }
+    sdrtcp_serve_client_async(&server, NULL, on_command, on_closed);
+    for (i = 0; i < LENT_BUFFERS; i++) atomic_init(&lent_busy[i], 0);
+
+    // nobody is connected yet, so this is idle time
+    double start = now_seconds();
+    while (now_seconds() - start < 0.2) {
+        sdrtcp_feed(&server, samples[0], FEED_SAMPLES);
+        usleep(10000);
+    }
+
+    reading = 1;
+    reader_unix = 0;
+    reader_shared_ring = 0;
+    reader_low_latency = 0;
+    reader_bytes_per_second = 0;
+    pthread_create(&reader_thread, NULL, reader, NULL);
+    while (server.clients_count == 0 && !closed) usleep(1000);
+
+    // the first block after the client connects ends the idle time
+    int64_t lent = 0, copied = 0, idle = -1;
+    start = now_seconds();
+    int next = 0;
+    while (now_seconds() - start < seconds && !closed) {
+        if (atomic_load(&lent_busy[next])) {
+            usleep(1000);
+            continue;
+        }
+        double fed = now_seconds();
+        memcpy(samples[next], &fed, sizeof(fed));
+        atomic_store(&lent_busy[next], 1);
+        if (sdrtcp_feed_lent(&server, samples[next], FEED_SAMPLES, on_lent_released, (void *) (intptr_t) next)) {
+            lent++;
+        } else {
+            atomic_store(&lent_busy[next], 0);
+            sdrtcp_feed(&server, samples[next], FEED_SAMPLES);
+            copied++;
+        }
+        next = (next + 1) % LENT_BUFFERS;
+        if (idle < 0) idle = sdrtcp_get_metric(&server, SDRTCP_METRIC_IDLE_MILLIS);
+        usleep(2000);
+    }
+    int64_t grown = sdrtcp_get_metric(&server, SDRTCP_METRIC_IDLE_MILLIS) - idle;
+
+    reading = 0;
+    sdrtcp_stop_serving_client(&server);
+    while (!closed) usleep(10000);
+    pthread_join(reader_thread, NULL);
+    sdrtcp_free(&server);
+
+    printf("zero-copy idle time  %lld blocks lent, %lld copied, idle time grew by %lld ms while serving%s\n",
+           (long long) lent, (long long) copied, (long long) grown, grown == 0 && lent > 0 ? "" : "  FAILED");
+    return grown == 0 && lent > 0;
+}
+
+int main(int argc, char ** argv) {
+    double seconds = argc > 1 ? atof(argv[1]) : DEFAULT_SECONDS;
+    int external = argc > 2 && strcmp(argv[2], "external") == 0;
+    verbose = getenv("SDRTCP_VERBOSE") != NULL;
+    if (seconds <= 0) seconds = DEFAULT_SECONDS;
+
+    printf("Sending blocks of %d samples for %.0f s to %s client, CPU time includes the feeding thread%s\n",
+           FEED_SAMPLES, seconds, external ? "an external" : "a loopback", external ? "" : " and the reader");
+    const char * tcp_address = external ? "0.0.0.0" : "127.0.0.1";
+    benchmark("tcp", tcp_address, 0, 0, 0, 0, 0, seconds, external);
+    benchmark("tcp zero-copy", tcp_address, 1, 0, 0, 0, 0, seconds, external);
+    if (external) return 0;
+    benchmark("unix", "unix:@" UNIX_NAME, 0, 0, 0, 0, 0, seconds, 0);
+
+    printf("Feeding %.1f Msps like a dongle\n", DONGLE_RATE / 1e6);
+    benchmark("tcp", tcp_address, 0, 0, 0, DONGLE_RATE, 0, seconds, 0);
+    benchmark("tcp low latency", tcp_address, 0, 1, 0, DONGLE_RATE, 0, seconds, 0);
+    benchmark("unix", "unix:@" UNIX_NAME, 0, 0, 0, DONGLE_RATE, 0, seconds, 0);
+    benchmark("shared ring", "unix:@" UNIX_NAME, 0, 0, 1, DONGLE_RATE, 0, seconds, 0);
+    benchmark("tcp slow", tcp_address, 0, 0, 0, DONGLE_RATE, SLOW_READER_SHARE, seconds, 0);
+    benchmark("tcp low latency slow", tcp_address, 0, 1, 0, DONGLE_RATE, SLOW_READER_SHARE, seconds, 0);
+
+    return check_idle_while_lent(tcp_address, 1) ? 0 : 1;
+}
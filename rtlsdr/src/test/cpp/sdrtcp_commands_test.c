@@ -0,0 +1,231 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Checks that the commands a client sends reach the command callback complete and in order, however TCP cuts them
+// up: one at a time split into pieces, many in a single segment, more than fit into one read, and nothing after a
+// command that stops the server. The commands are TCP_SET_FREQ with a counter as the parameter.
+// Exits with 1 if anything is off, so it can run as a test.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdarg.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <time.h>
+#include <arpa/inet.h>
+#include <netinet/tcp.h>
+#include <sys/socket.h>
+
+#include "sdrtcp.h"
+#include "tcp_commands.h"
+
+#define PORT (14427)
+#define COMMANDS (1000)
+#define WAIT_MS (5000)
+
+static int failures = 0;
+static int verbose = 0;
+static volatile int closed = 0;
+
+// filled by the event loop
+static pthread_mutex_t received_locker = PTHREAD_MUTEX_INITIALIZER;
+static uint32_t received[4 * COMMANDS];
+static int received_count = 0;
+static int others = 0;
+
+void common_logf(const char *format, ...) {
+    if (!verbose) return;
+    va_list args;
+    va_start(args, format);
+    vfprintf(stderr, format, args);
+    fputc('\n', stderr);
+    va_end(args);
+}
+
+static void on_command(sdrtcp_t * server, void * ctx, sdr_tcp_command_t * command) {
+    pthread_mutex_lock(&received_locker);
+    if (command->command == TCP_SET_FREQ && received_count < 4 * COMMANDS) received[received_count++] = command->parameter;
+    else if (command->command != TCP_ANDROID_EXIT) others++;
+    pthread_mutex_unlock(&received_locker);
+    if (command->command == TCP_ANDROID_EXIT) sdrtcp_stop_serving_client(server);
+}
+
+static void on_closed(sdrtcp_t * server, void * ctx) {
+    closed = 1;
+}
+
+static int count_received(void) {
+    pthread_mutex_lock(&received_locker);
+    int count = received_count;
+    pthread_mutex_unlock(&received_locker);
+    return count;
+}
+
+// waits until count commands arrived, or a while longer if none more are expected
+static void wait_for(int count) {
+    int waited;
+    for (waited = 0; waited < WAIT_MS && count_received() < count; waited++) usleep(1000);
+}
+
+static size_t encode(uint8_t * out, uint8_t code, uint32_t parameter) {
+    out[0] = code;
+    parameter = htonl(parameter);
+    memcpy(out + 1, &parameter, sizeof(parameter));
+    return sizeof(sdr_tcp_command_t);
+}
+
+static int start(sdrtcp_t * server) {
+    closed = 0;
+    received_count = 0;
+    others = 0;
+    sdrtcp_init(server);
+    if (!sdrtcp_open_socket(server, "127.0.0.1", PORT, "RTL0", 5, 29)) {
+        printf("cannot listen on port %d\n", PORT);
+        sdrtcp_free(server);
+        return -1;
+    }
+    sdrtcp_serve_client_async(server, NULL, on_command, on_closed);
+
+    int s = socket(AF_INET, SOCK_STREAM, 0);
+    struct sockaddr_in remote;
+    memset(&remote, 0, sizeof(remote));
+    remote.sin_family = AF_INET;
+    remote.sin_port = htons(PORT);
+    remote.sin_addr.s_addr = inet_addr("127.0.0.1");
+    int one = 1;
+    setsockopt(s, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+    if (connect(s, (struct sockaddr *) &remote, sizeof(remote)) != 0) {
+        perror("connect");
+        close(s);
+        return -1;
+    }
+    return s;
+}
+
+static void stop(sdrtcp_t * server, int s) {
+    close(s);
+    sdrtcp_stop_serving_client(server);
+    int waited;
+    for (waited = 0; waited < WAIT_MS && !closed; waited++) usleep(1000);
+    sdrtcp_free(server);
+}
+
+static void check(const char * test, int expected, uint32_t first) {
+    int count = count_received();
+    int in_order = 1, i;
+    for (i = 0; i < count; i++) {
+        if (received[i] != first + (uint32_t) i) in_order = 0;
+    }
+    int ok = count == expected && in_order && others == 0;
+    printf("%-40s %4d of %4d commands%s%s\n", test, count, expected, in_order ? "" : ", out of order", ok ? "" : "  FAILED");
+    if (!ok) failures++;
+}
+
+// every command of the stream goes out in pieces of 1 to max_piece bytes, with a pause so that they arrive apart
+static void test_pieces(int max_piece) {
+    static uint8_t stream[COMMANDS * sizeof(sdr_tcp_command_t)];
+    sdrtcp_t server;
+    int s = start(&server);
+    if (s < 0) {
+        failures++;
+        return;
+    }
+
+    size_t length = 0;
+    int i;
+    for (i = 0; i < COMMANDS; i++) length += encode(stream + length, TCP_SET_FREQ, (uint32_t) i);
+    size_t sent = 0;
+    while (sent < length) {
+        size_t piece = 1 + (size_t) rand() % (size_t) max_piece;
+        if (piece > length - sent) piece = length - sent;
+        if (send(s, stream + sent, piece, 0) != (ssize_t) piece) break;
+        sent += piece;
+        usleep(200);
+    }
+    wait_for(COMMANDS);
+
+    char name[64];
+    snprintf(name, sizeof(name), "split into pieces of 1 to %d bytes", max_piece);
+    check(name, COMMANDS, 0);
+    stop(&server, s);
+}
+
+// commands as many at once as one segment holds, more than a single read takes
+static void test_together(int together) {
+    static uint8_t stream[4 * COMMANDS * sizeof(sdr_tcp_command_t)];
+    sdrtcp_t server;
+    int s = start(&server);
+    if (s < 0) {
+        failures++;
+        return;
+    }
+
+    size_t length = 0;
+    int i;
+    for (i = 0; i < together; i++) length += encode(stream + length, TCP_SET_FREQ, (uint32_t) i);
+    if (send(s, stream, length, 0) != (ssize_t) length) perror("send");
+    wait_for(together);
+
+    char name[64];
+    snprintf(name, sizeof(name), "%d in one send", together);
+    check(name, together, 0);
+    stop(&server, s);
+}
+
+// the commands behind one that stops the server are not wanted anymore, even when they came with it
+static void test_stop(void) {
+    static uint8_t stream[2 * 10 * sizeof(sdr_tcp_command_t)];
+    sdrtcp_t server;
+    int s = start(&server);
+    if (s < 0) {
+        failures++;
+        return;
+    }
+
+    size_t length = 0;
+    int i;
+    for (i = 0; i < 10; i++) length += encode(stream + length, TCP_SET_FREQ, (uint32_t) i);
+    length += encode(stream + length, TCP_ANDROID_EXIT, 0);
+    for (i = 10; i < 19; i++) length += encode(stream + length, TCP_SET_FREQ, (uint32_t) i);
+    if (send(s, stream, length, 0) != (ssize_t) length) perror("send");
+
+    int waited;
+    for (waited = 0; waited < WAIT_MS && !closed; waited++) usleep(1000);
+    // anything dispatched after the stop would have come right behind it
+    usleep(100000);
+    check("10, a stop and 9 more in one send", 10, 0);
+    stop(&server, s);
+}
+
+int main(int argc, char ** argv) {
+    verbose = argc > 1 && strcmp(argv[1], "-v") == 0;
+    srand((unsigned int) time(NULL));
+    test_pieces(1);
+    test_pieces(7);
+    test_pieces(1000);
+    test_together(2);
+    test_together(SDRTCP_COMMANDS_PER_READ);
+    test_together(SDRTCP_COMMANDS_PER_READ + 1);
+    test_together(COMMANDS);
+    test_stop();
+    if (failures != 0) printf("%d tests failed\n", failures);
+    return failures != 0;
+}
@@ -0,0 +1,333 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how long it takes to stop a streaming session and have a client receive samples from the next one,
+// the way the app restarts when the settings change. A session goes through the same steps as openAsync
+// in rtlsdrdevice.c: open the socket, serve, stream until cancelled, give the lent buffers back and return.
+// The dongle is a thread feeding blocks at the rate of a dongle. It sleeps on an eventfd between blocks,
+// which the closed callback signals the way rtlsdr_cancel_async interrupts libusb.
+//
+// The client reconnects as soon as its connection ends and times the first samples of the new session.
+// Every stop is measured in phases:
+//   stop -> closed      the server disconnects the clients and lets go of a blocked feeder
+//   closed -> over      the dongle stops streaming and every lent buffer is back
+//   over -> listening   the next session opens its socket
+//   listening -> data   the client is connected again and has received a whole block
+//
+//   sdrtcp_restart_benchmark [restarts]
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdarg.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <poll.h>
+#include <time.h>
+#include <arpa/inet.h>
+#include <sys/socket.h>
+#include <sys/eventfd.h>
+
+#include "sdrtcp.h"
+
+#define PORT (14425)
+#define FEED_SAMPLES (131072)
+#define DONGLE_RATE (3200000)
+#define DEFAULT_RESTARTS (20)
+// as many buffers as rtlsdrdevice.c lets the server borrow
+#define LENT_BUFFERS (8)
+// the client tries to connect again this often while the server is down
+#define RECONNECT_INTERVAL_US (500)
+// a feed that hasn't returned for this long is waiting for a client that doesn't read
+#define BLOCKED_FEED_US (50000)
+
+enum {
+    PHASE_CLOSED,
+    PHASE_OVER,
+    PHASE_LISTENING,
+    PHASE_DATA,
+    PHASES_COUNT
+};
+
+static const char * phase_names[PHASES_COUNT] = { "stop->closed", "closed->over", "over->listening", "listening->data" };
+
+typedef struct session {
+    sdrtcp_t server;
+    int zero_copy;
+    int paced;
+    int cancel_fd;
+    volatile int64_t feeding_since_us;
+
+    pthread_mutex_t lent_locker;
+    pthread_cond_t lent_returned;
+    int lent_count;
+    unsigned char * spare[LENT_BUFFERS];
+    int spare_count;
+
+    volatile int64_t closed_us;
+} session_t;
+
+static int verbose = 0;
+static volatile int running = 1;
+static volatile int client_stall = 0;
+// bumped every time a session is over, a stalled client lets go of its connection then
+static volatile int sessions_over = 0;
+static volatile int64_t client_data_us = 0;
+static volatile int64_t client_data_count = 0;
+
+void common_logf(const char *format, ...) {
+    if (!verbose) return;
+    va_list args;
+    va_start(args, format);
+    vfprintf(stderr, format, args);
+    fputc('\n', stderr);
+    va_end(args);
+}
+
+static int64_t now_us(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000L;
+}
+
+static void on_command(sdrtcp_t * server, void * ctx, sdr_tcp_command_t * command) {
+}
+
+// like tcpClosedCallback, cancels the streaming
+static void on_closed(sdrtcp_t * server, void * ctx) {
+    session_t * session = (session_t *) ctx;
+    uint64_t one = 1;
+    session->closed_us = now_us();
+    if (write(session->cancel_fd, &one, sizeof(one)) != sizeof(one)) perror("write");
+}
+
+static void on_lent_release(unsigned char * buf, void * ctx) {
+    session_t * session = (session_t *) ctx;
+    pthread_mutex_lock(&session->lent_locker);
+    session->spare[session->spare_count++] = buf;
+    session->lent_count--;
+    pthread_cond_broadcast(&session->lent_returned);
+    pthread_mutex_unlock(&session->lent_locker);
+}
+
+// stands in for rtlsdr_read_async, returns once cancelled and every lent buffer is back
+static void * dongle(void * arg) {
+    session_t * session = (session_t *) arg;
+    static unsigned char samples[FEED_SAMPLES * 2];
+    int64_t start = now_us();
+    int64_t blocks = 0;
+    struct pollfd cancel = { session->cancel_fd, POLLIN, 0 };
+
+    for (;;) {
+        int timeout_ms = 0;
+        if (session->paced) {
+            int64_t due = start + blocks * 1000000LL * FEED_SAMPLES / DONGLE_RATE;
+            int64_t early = due - now_us();
+            if (early > 0) timeout_ms = (int) ((early + 999) / 1000);
+        }
+        if (poll(&cancel, 1, timeout_ms) != 0) break;
+
+        session->feeding_since_us = now_us();
+        if (session->zero_copy) {
+            pthread_mutex_lock(&session->lent_locker);
+            unsigned char * buf = session->spare_count > 0 ? session->spare[--session->spare_count] : NULL;
+            if (buf != NULL) session->lent_count++;
+            pthread_mutex_unlock(&session->lent_locker);
+
+            if (buf == NULL || !sdrtcp_feed_lent(&session->server, buf, FEED_SAMPLES, on_lent_release, session)) {
+                if (buf != NULL) on_lent_release(buf, session);
+                sdrtcp_feed(&session->server, samples, FEED_SAMPLES);
+            }
+        } else {
+            sdrtcp_feed(&session->server, samples, FEED_SAMPLES);
+        }
+        session->feeding_since_us = 0;
+        blocks++;
+    }
+
+    // like the lend callback getting NULL, the clients have to give everything back now
+    sdrtcp_stop_serving_client(&session->server);
+    pthread_mutex_lock(&session->lent_locker);
+    while (session->lent_count > 0) pthread_cond_wait(&session->lent_returned, &session->lent_locker);
+    pthread_mutex_unlock(&session->lent_locker);
+    return NULL;
+}
+
+static int client_connect(void) {
+    struct sockaddr_in remote;
+    memset(&remote, 0, sizeof(remote));
+    remote.sin_family = AF_INET;
+    remote.sin_port = htons(PORT);
+    remote.sin_addr.s_addr = inet_addr("127.0.0.1");
+
+    while (running) {
+        int s = socket(AF_INET, SOCK_STREAM, 0);
+        if (connect(s, (struct sockaddr *) &remote, sizeof(remote)) == 0) return s;
+        close(s);
+        usleep(RECONNECT_INTERVAL_US);
+    }
+    return -1;
+}
+
+// stays connected for as long as the server lets it, a stalled client stops reading after the first block
+static void * client(void * arg) {
+    static char data[FEED_SAMPLES * 2];
+
+    while (running) {
+        int s = client_connect();
+        if (s == -1) break;
+
+        int sessions = sessions_over;
+        if (recv(s, data, sizeof(dongle_info_t), MSG_WAITALL) == sizeof(dongle_info_t)
+            && recv(s, data, sizeof(data), MSG_WAITALL) == sizeof(data)) {
+            client_data_us = now_us();
+            client_data_count++;
+
+            if (client_stall) {
+                while (running && sessions_over == sessions) usleep(100);
+            } else {
+                while (recv(s, data, sizeof(data), 0) > 0);
+            }
+        }
+        close(s);
+    }
+    return NULL;
+}
+
+static int session_start(session_t * session, pthread_t * dongle_thread) {
+    sdrtcp_set_option(&session->server, SDRTCP_OPTION_ZERO_COPY, session->zero_copy);
+    if (!sdrtcp_open_socket(&session->server, "127.0.0.1", PORT, "RTL0", 5, 29)) return 0;
+    sdrtcp_set_sample_rate(&session->server, DONGLE_RATE);
+
+    uint64_t cancelled;
+    while (read(session->cancel_fd, &cancelled, sizeof(cancelled)) > 0);
+    session->closed_us = 0;
+    session->feeding_since_us = 0;
+
+    sdrtcp_serve_client_async(&session->server, (void *) session, on_command, on_closed);
+    pthread_create(dongle_thread, NULL, dongle, session);
+    return 1;
+}
+
+static void benchmark(const char * name, int zero_copy, int stall, int restarts) {
+    session_t session;
+    pthread_t dongle_thread;
+    pthread_t client_thread;
+    double sum[PHASES_COUNT] = { 0 };
+    double max[PHASES_COUNT] = { 0 };
+    double total_sum = 0;
+    double total_max = 0;
+    int i, p;
+
+    memset(&session, 0, sizeof(session));
+    sdrtcp_init(&session.server);
+    session.zero_copy = zero_copy;
+    // a stalled client is there to block the feeder, which happens sooner without pacing
+    session.paced = !stall;
+    session.cancel_fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    pthread_mutex_init(&session.lent_locker, NULL);
+    pthread_cond_init(&session.lent_returned, NULL);
+    for (i = 0; i < LENT_BUFFERS; i++) {
+        session.spare[i] = (unsigned char *) calloc(FEED_SAMPLES, 2);
+    }
+    session.spare_count = LENT_BUFFERS;
+
+    running = 1;
+    client_stall = stall;
+    client_data_count = 0;
+    if (!session_start(&session, &dongle_thread)) {
+        printf("%-16s cannot listen on port %d\n", name, PORT);
+        return;
+    }
+    pthread_create(&client_thread, NULL, client, NULL);
+    while (client_data_count == 0) usleep(100);
+
+    for (i = 0; i < restarts; i++) {
+        if (stall) {
+            // only stops once the feeder is stuck waiting for the client
+            int64_t since;
+            while ((since = session.feeding_since_us) == 0 || now_us() - since < BLOCKED_FEED_US) usleep(100);
+        } else {
+            usleep(20000);
+        }
+
+        int64_t stopped = now_us();
+        sdrtcp_stop_serving_client(&session.server);
+        pthread_join(dongle_thread, NULL);
+        int64_t over = now_us();
+        int64_t closed = session.closed_us;
+        sessions_over++;
+
+        int64_t count = client_data_count;
+        if (!session_start(&session, &dongle_thread)) {
+            printf("%-16s cannot listen on port %d again\n", name, PORT);
+            break;
+        }
+        int64_t listening = now_us();
+        while (client_data_count == count) usleep(50);
+
+        double phases[PHASES_COUNT] = {
+            (closed - stopped) / 1000.0,
+            (over - closed) / 1000.0,
+            (listening - over) / 1000.0,
+            (client_data_us - listening) / 1000.0,
+        };
+        for (p = 0; p < PHASES_COUNT; p++) {
+            sum[p] += phases[p];
+            if (phases[p] > max[p]) max[p] = phases[p];
+        }
+        double total = (client_data_us - stopped) / 1000.0;
+        total_sum += total;
+        if (total > total_max) total_max = total;
+    }
+
+    running = 0;
+    sdrtcp_stop_serving_client(&session.server);
+    pthread_join(dongle_thread, NULL);
+    sessions_over++;
+    pthread_join(client_thread, NULL);
+
+    printf("%-16s", name);
+    for (p = 0; p < PHASES_COUNT; p++) {
+        printf("  %s %6.2f ms (max %6.2f)", phase_names[p], sum[p] / restarts, max[p]);
+    }
+    printf("  stop->data %6.2f ms (max %6.2f)\n", total_sum / restarts, total_max);
+
+    sdrtcp_free(&session.server);
+    close(session.cancel_fd);
+    for (i = 0; i < session.spare_count; i++) {
+        free(session.spare[i]);
+    }
+    pthread_mutex_destroy(&session.lent_locker);
+    pthread_cond_destroy(&session.lent_returned);
+}
+
+int main(int argc, char ** argv) {
+    int restarts = argc > 1 ? atoi(argv[1]) : DEFAULT_RESTARTS;
+    verbose = getenv("SDRTCP_VERBOSE") != NULL;
+    if (restarts <= 0) restarts = DEFAULT_RESTARTS;
+
+    printf("Restarting a session %d times while a loopback client streams %.1f Msps\n", restarts, DONGLE_RATE / 1e6);
+    benchmark("streaming", 0, 0, restarts);
+    benchmark("zero-copy", 1, 0, restarts);
+    benchmark("blocked feeder", 0, 1, restarts);
+    benchmark("blocked lent", 1, 1, restarts);
+    return 0;
+}
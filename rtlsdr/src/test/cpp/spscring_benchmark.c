@@ -0,0 +1,203 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Compares handing buffers between the USB thread and a sender thread using
+// the mutex based workpool and the lock-free spscring. The workpool is not part
+// of the library anymore, its sources are kept next to this file for the comparison.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
+#include <time.h>
+
+#include "workpool.h"
+#include "spscring.h"
+
+#define BUFFERS (5)
+#define BUFFER_SAMPLES (512)
+#define DEFAULT_ITERATIONS (1000000)
+
+static int iterations = DEFAULT_ITERATIONS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void report(const char * name, double seconds, long checksum) {
+    printf("%-12s %8.1f ns/buffer %12.0f buffers/s (checksum %ld)\n", name, seconds * 1e9 / iterations, iterations / seconds, checksum);
+}
+
+// workpool: id 0 is the free list, id 1 is filled buffers waiting for the sender
+
+static workpool_t pool;
+
+// a single thread passing buffers through both stages shows the bookkeeping cost without any context switching
+static void benchmark_workpool_single_thread(void) {
+    long checksum = 0;
+
+    pool_init(&pool, BUFFERS, EXTBUFF_TYPE_USHORT);
+    pool_set_threads(&pool, 2);
+
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < iterations; i++) {
+        extbuffer_t * buffer = pool_get_wait_lock(&pool, 0, 1);
+        extbuffer_preparetohandle(buffer, BUFFER_SAMPLES);
+        buffer->ushortbuffer[0] = (uint16_t) (i & 0xFF);
+        pool_get_unlock(&pool, 0, buffer);
+
+        buffer = pool_get_wait_lock(&pool, 1, 1);
+        checksum += buffer->ushortbuffer[0];
+        pool_get_unlock(&pool, 1, buffer);
+    }
+    report("workpool/1", now_seconds() - start, checksum);
+
+    pool_free(&pool);
+}
+
+static void * workpool_consumer(void * arg) {
+    long * checksum = (long *) arg;
+    int received = 0;
+    while (received < iterations) {
+        extbuffer_t * buffer = pool_get_wait_lock(&pool, 1, 1);
+        if (buffer == NULL) continue;
+        *checksum += buffer->ushortbuffer[0];
+        pool_get_unlock(&pool, 1, buffer);
+        received++;
+    }
+    return NULL;
+}
+
+static void benchmark_workpool(void) {
+    long checksum = 0;
+    pthread_t consumer;
+
+    pool_init(&pool, BUFFERS, EXTBUFF_TYPE_USHORT);
+    pool_set_threads(&pool, 2);
+
+    double start = now_seconds();
+    pthread_create(&consumer, NULL, workpool_consumer, &checksum);
+    int sent = 0;
+    while (sent < iterations) {
+        extbuffer_t * buffer = pool_get_wait_lock(&pool, 0, 1);
+        if (buffer == NULL) continue;
+        extbuffer_preparetohandle(buffer, BUFFER_SAMPLES);
+        buffer->ushortbuffer[0] = (uint16_t) (sent & 0xFF);
+        pool_get_unlock(&pool, 0, buffer);
+        sent++;
+    }
+    pthread_join(consumer, NULL);
+    report("workpool", now_seconds() - start, checksum);
+
+    pool_free(&pool);
+}
+
+// spscring: preallocated buffers travel to the sender in one ring and come back in another
+
+static spscring_t filled;
+static spscring_t empty;
+
+static void benchmark_spscring_single_thread(void) {
+    long checksum = 0;
+    uint16_t * buffers[BUFFERS];
+
+    spscring_init(&filled, BUFFERS);
+    spscring_init(&empty, BUFFERS);
+    int i;
+    for (i = 0; i < BUFFERS; i++) {
+        buffers[i] = (uint16_t *) calloc(BUFFER_SAMPLES, sizeof(uint16_t));
+        spscring_push(&empty, buffers[i]);
+    }
+
+    double start = now_seconds();
+    for (i = 0; i < iterations; i++) {
+        uint16_t * buffer = (uint16_t *) spscring_pop(&empty);
+        buffer[0] = (uint16_t) (i & 0xFF);
+        spscring_push(&filled, buffer);
+
+        buffer = (uint16_t *) spscring_pop(&filled);
+        checksum += buffer[0];
+        spscring_push(&empty, buffer);
+    }
+    report("spscring/1", now_seconds() - start, checksum);
+
+    for (i = 0; i < BUFFERS; i++) free(buffers[i]);
+    spscring_free(&filled);
+    spscring_free(&empty);
+}
+
+static void * spscring_consumer(void * arg) {
+    long * checksum = (long *) arg;
+    int received = 0;
+    while (received < iterations) {
+        uint16_t * buffer = (uint16_t *) spscring_pop_wait(&filled, 1000);
+        if (buffer == NULL) continue;
+        *checksum += buffer[0];
+        while (!spscring_push_wait(&empty, buffer, 1000));
+        received++;
+    }
+    return NULL;
+}
+
+static void benchmark_spscring(void) {
+    long checksum = 0;
+    pthread_t consumer;
+    uint16_t * buffers[BUFFERS];
+
+    spscring_init(&filled, BUFFERS);
+    spscring_init(&empty, BUFFERS);
+    int i;
+    for (i = 0; i < BUFFERS; i++) {
+        buffers[i] = (uint16_t *) calloc(BUFFER_SAMPLES, sizeof(uint16_t));
+        spscring_push(&empty, buffers[i]);
+    }
+
+    double start = now_seconds();
+    pthread_create(&consumer, NULL, spscring_consumer, &checksum);
+    int sent = 0;
+    while (sent < iterations) {
+        uint16_t * buffer = (uint16_t *) spscring_pop_wait(&empty, 1000);
+        if (buffer == NULL) continue;
+        buffer[0] = (uint16_t) (sent & 0xFF);
+        while (!spscring_push_wait(&filled, buffer, 1000));
+        sent++;
+    }
+    pthread_join(consumer, NULL);
+    report("spscring", now_seconds() - start, checksum);
+
+    for (i = 0; i < BUFFERS; i++) free(buffers[i]);
+    spscring_free(&filled);
+    spscring_free(&empty);
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) iterations = atoi(argv[1]);
+    if (iterations <= 0) iterations = DEFAULT_ITERATIONS;
+
+    printf("Handing %d buffers of %d samples between two threads through %d slots\n", iterations, BUFFER_SAMPLES, BUFFERS);
+    benchmark_workpool_single_thread();
+    benchmark_spscring_single_thread();
+    benchmark_workpool();
+    benchmark_spscring();
+    return 0;
+}
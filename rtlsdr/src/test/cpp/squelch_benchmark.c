@@ -0,0 +1,132 @@
+/*
+ * rtl_tcp_andro is a library that uses libusb and librtlsdr to
+ * turn your Realtek RTL2832 based DVB dongle into a SDR receiver.
+ * It independently implements the rtl-tcp API protocol for native Android usage.
+ * Copyright (C) 2022 by Signalware Ltd <driver@sdrtouch.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Measures how many samples per second the squelch measures the power of on one core, and what it saves on a mostly
+// idle channel. The capture is noise with a burst of a tone every few seconds, fed in blocks like the dongle delivers
+// them. The power of both is read back against what was put in, and the gate is run over a minute of it to count the
+// bursts it opened for and the share of the samples it sent, the hold time included.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+#include <time.h>
+
+#include "squelch.h"
+
+#define SAMPLE_RATE (2400000)
+#define BLOCK_SAMPLES (16384)
+#define DEFAULT_BLOCKS (2000)
+#define NOISE_RMS (1.5)
+#define TONE_AMPLITUDE (40.0)
+#define TONE_FREQUENCY (0.05)
+#define BURST_MS (300)
+#define BURST_EVERY_MS (5000)
+#define CAPTURE_SECONDS (60)
+#define THRESHOLD_DB (-30.0)
+#define HOLD_MS (200)
+
+static int blocks = DEFAULT_BLOCKS;
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+// roughly Gaussian, the sum of four uniform values
+static double noise(void) {
+    double sum = 0;
+    int k;
+    for (k = 0; k < 4; k++) {
+        sum += rand() / (double) RAND_MAX - 0.5;
+    }
+    return sum * sqrt(3.0);
+}
+
+static void capture(uint8_t * iq, float * floats, uint32_t samples, double amplitude) {
+    uint32_t n;
+    for (n = 0; n < samples; n++) {
+        double angle = 2 * M_PI * TONE_FREQUENCY * n;
+        double i = amplitude * cos(angle) + NOISE_RMS * noise();
+        double q = amplitude * sin(angle) + NOISE_RMS * noise();
+        iq[2 * n] = (uint8_t) lrint(127.5 + i);
+        iq[2 * n + 1] = (uint8_t) lrint(127.5 + q);
+        floats[2 * n] = (float) i;
+        floats[2 * n + 1] = (float) q;
+    }
+}
+
+int main(int argc, char ** argv) {
+    if (argc > 1) blocks = atoi(argv[1]);
+    if (blocks <= 0) blocks = DEFAULT_BLOCKS;
+
+    static uint8_t quiet[2 * BLOCK_SAMPLES], loud[2 * BLOCK_SAMPLES];
+    static float quiet_floats[2 * BLOCK_SAMPLES], loud_floats[2 * BLOCK_SAMPLES];
+    capture(quiet, quiet_floats, BLOCK_SAMPLES, 0);
+    capture(loud, loud_floats, BLOCK_SAMPLES, TONE_AMPLITUDE);
+
+    // the 8 bit samples are rounded, which adds 1/12 to the power of each of I and Q
+    const double full_scale = 127.5 * 127.5;
+    const double noise_power = 2 * NOISE_RMS * NOISE_RMS, rounding = 2.0 / 12, tone_power = TONE_AMPLITUDE * TONE_AMPLITUDE;
+    printf("noise  8 bit %6.2f dB (%6.2f expected)  float %6.2f dB (%6.2f expected)\n",
+           squelch_power_u8(quiet, BLOCK_SAMPLES), 10 * log10((noise_power + rounding) / full_scale),
+           squelch_power_float(quiet_floats, BLOCK_SAMPLES), 10 * log10(noise_power / full_scale));
+    printf("tone   8 bit %6.2f dB (%6.2f expected)  float %6.2f dB (%6.2f expected)\n",
+           squelch_power_u8(loud, BLOCK_SAMPLES), 10 * log10((tone_power + noise_power + rounding) / full_scale),
+           squelch_power_float(loud_floats, BLOCK_SAMPLES), 10 * log10((tone_power + noise_power) / full_scale));
+
+    // a minute of capture, the gate only sees the power of every block
+    const double block_us = 1e6 * BLOCK_SAMPLES / SAMPLE_RATE;
+    const int64_t captured = (int64_t) CAPTURE_SECONDS * SAMPLE_RATE / BLOCK_SAMPLES;
+    double quiet_db = squelch_power_u8(quiet, BLOCK_SAMPLES), loud_db = squelch_power_u8(loud, BLOCK_SAMPLES);
+    squelch_t squelch;
+    squelch_init(&squelch);
+    int64_t b, sent = 0, bursts = 0, loud_blocks = 0, missed = 0;
+    for (b = 0; b < captured; b++) {
+        int64_t us = (int64_t) (b * block_us);
+        int is_loud = us % (BURST_EVERY_MS * 1000) < BURST_MS * 1000;
+        squelch_state_t state = squelch_update(&squelch, is_loud ? loud_db : quiet_db, THRESHOLD_DB, HOLD_MS * 1000, us);
+        if (state == SQUELCH_OPENS) bursts++;
+        if (state == SQUELCH_OPENS || state == SQUELCH_OPEN) sent++;
+        if (is_loud) loud_blocks++;
+        if (is_loud && state != SQUELCH_OPENS && state != SQUELCH_OPEN) missed++;
+    }
+    printf("%d s, a %d ms burst every %d ms, %.0f dB threshold, %d ms hold: %lld bursts, %lld loud blocks missed, %.1f%% of the samples sent\n",
+           CAPTURE_SECONDS, BURST_MS, BURST_EVERY_MS, THRESHOLD_DB, HOLD_MS, (long long) bursts, (long long) missed, 100.0 * sent / captured);
+
+    volatile double sink = 0;
+    double start = now_seconds();
+    int i;
+    for (i = 0; i < blocks; i++) {
+        sink += squelch_power_u8(quiet, BLOCK_SAMPLES);
+    }
+    double elapsed = now_seconds() - start;
+    printf("power of 8 bit  %7.1f Msps  %5.2f%% of a core at 2.4 Msps\n", BLOCK_SAMPLES * (double) blocks / elapsed / 1e6,
+           100 * 2.4e6 * elapsed / (BLOCK_SAMPLES * (double) blocks));
+
+    start = now_seconds();
+    for (i = 0; i < blocks; i++) {
+        sink += squelch_power_float(quiet_floats, BLOCK_SAMPLES);
+    }
+    elapsed = now_seconds() - start;
+    printf("power of float  %7.1f Msps  %5.2f%% of a core at 2.4 Msps\n", BLOCK_SAMPLES * (double) blocks / elapsed / 1e6,
+           100 * 2.4e6 * elapsed / (BLOCK_SAMPLES * (double) blocks));
+    return sink != 0 ? 0 : 1;
+}
@@ -20,6 +20,7 @@
 
 #include "workpool.h"
 #include <stdlib.h>
+#include <sys/time.h>
 
 #define WORKPOOL_WARNINGS (DEBUG_MODE)
 
@@ -20,6 +20,9 @@
 
 package com.sdrtouch.core;
 
+import static com.sdrtouch.tools.Check.intInRange;
+import static com.sdrtouch.tools.Check.intOneOf;
+import static com.sdrtouch.tools.Check.powerOfTwoInRange;
 import static com.sdrtouch.tools.Check.stringLessThan;
 
 import com.sdrtouch.tools.ArgumentParser;
@@ -29,12 +32,44 @@ import java.io.Serializable;
 public class SdrTcpArguments implements Serializable {
 	private static final long serialVersionUID = 1L;
     private static final int MAX_STRING_LENGTH = 256;
+    private static final int MAX_UNIX_PATH_LENGTH = 107;
+    private static final String UNIX_ADDRESS_PREFIX = "unix:";
+    private static final int MAX_CLIENTS = 8;
+    private static final int MAX_SLOW_CLIENT_POLICY = 4;
+    private static final int MAX_PORT = 65535;
+    private static final int MAX_SHARED_RING_BYTES = 1 << 30;
+    private static final int MAX_DECIMATION = 256;
+    private static final int MAX_CHANNELIZER_CHANNELS = 1024;
+    private static final int MIN_SPECTRUM_SIZE = 16;
+    private static final int MAX_SPECTRUM_SIZE = 65536;
+    private static final int MAX_SPECTRUM_OVERLAP_PERCENT = 95;
+    private static final int MAX_SPECTRUM_AVERAGES = 100000;
 
     private static final int DEFAULT_GAIN = 24;
     private static final int DEFAULT_PPM = 0;
     private static final long DEFAULT_FREQUENCY = 100000000;
     private static final long DEFAULT_SAMPLING_RATE = 2048000;
     private static final int DEFAULT_BIAST = 0;
+    private static final int DEFAULT_MAX_CLIENTS = 1;
+    private static final int DEFAULT_PERSISTENT = 0;
+    private static final int DEFAULT_ZERO_COPY = 0;
+    private static final int DEFAULT_WRITE_BATCH_BYTES = 1024 * 1024;
+    private static final int DEFAULT_SEND_ZERO_COPY = 0;
+    private static final int DEFAULT_SLOW_CLIENT_POLICY = 0;
+    private static final int DEFAULT_LATENCY_BUDGET_MS = 1000;
+    private static final int DEFAULT_UDP_PORT = 0;
+    private static final int DEFAULT_SHARED_RING_BYTES = 0;
+    private static final int DEFAULT_QUEUE_MS = 500;
+    private static final int DEFAULT_QUEUE_MEMORY_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_LOW_LATENCY = 0;
+    private static final int DEFAULT_DECIMATION = 1;
+    private static final int DEFAULT_SAMPLE_BITS = 8;
+    private static final int DEFAULT_CHANNELIZER_CHANNELS = 0;
+    private static final int DEFAULT_SPECTRUM_SIZE = 0;
+    private static final int DEFAULT_SPECTRUM_OVERLAP_PERCENT = 50;
+    private static final int DEFAULT_SPECTRUM_AVERAGES = 100;
+    private static final int DEFAULT_SPECTRUM_BITS = 8;
+    private static final int DEFAULT_IQ_CORRECTION = 0;
 
 	private final int gain;
 	private final long samplerateHz;
@@ -43,6 +78,27 @@ public class SdrTcpArguments implements Serializable {
 	private final int port;
 	private final int ppm;
     private final int biast;
+    private final int maxClients;
+    private final boolean persistent;
+    private final boolean zeroCopy;
+    private final int writeBatchBytes;
+    private final boolean sendZeroCopy;
+    private final int slowClientPolicy;
+    private final int latencyBudgetMs;
+    private final String udpAddress;
+    private final int udpPort;
+    private final int sharedRingBytes;
+    private final int queueMs;
+    private final int queueMemoryBytes;
+    private final boolean lowLatency;
+    private final int decimation;
+    private final int sampleBits;
+    private final int channelizerChannels;
+    private final int spectrumSize;
+    private final int spectrumOverlapPercent;
+    private final int spectrumAverages;
+    private final int spectrumBits;
+    private final boolean iqCorrection;
 
 	public static SdrTcpArguments fromString(String arguments) throws IllegalArgumentException {
 		return new SdrTcpArguments(new ArgumentParser(arguments));
@@ -53,9 +109,39 @@ public class SdrTcpArguments implements Serializable {
         this.samplerateHz = arguments.getLongArgumentOrDefault("s", DEFAULT_SAMPLING_RATE);
         this.frequencyHz = arguments.getLongArgumentOrDefault("f", DEFAULT_FREQUENCY);
         this.address = stringLessThan(arguments.getStringArgument("a"), MAX_STRING_LENGTH);
-        this.port = arguments.getIntArgument("p");
+        if (isUnixAddress(address)) {
+            stringLessThan(address.substring(UNIX_ADDRESS_PREFIX.length()), MAX_UNIX_PATH_LENGTH);
+            this.port = arguments.getIntArgumentOrDefault("p", 0);
+        } else {
+            this.port = arguments.getIntArgument("p");
+        }
         this.ppm = arguments.getIntArgumentOrDefault("P", DEFAULT_PPM);
         this.biast = arguments.getIntArgumentOrDefault("T", DEFAULT_BIAST);
+        this.maxClients = intInRange("-c", arguments.getIntArgumentOrDefault("c", DEFAULT_MAX_CLIENTS), 1, MAX_CLIENTS);
+        this.persistent = arguments.getIntArgumentOrDefault("k", DEFAULT_PERSISTENT) != 0;
+        this.zeroCopy = arguments.getIntArgumentOrDefault("z", DEFAULT_ZERO_COPY) != 0;
+        this.writeBatchBytes = intInRange("-w", arguments.getIntArgumentOrDefault("w", DEFAULT_WRITE_BATCH_BYTES), 0, Integer.MAX_VALUE);
+        this.sendZeroCopy = arguments.getIntArgumentOrDefault("Z", DEFAULT_SEND_ZERO_COPY) != 0;
+        this.slowClientPolicy = intInRange("-O", arguments.getIntArgumentOrDefault("O", DEFAULT_SLOW_CLIENT_POLICY), 0, MAX_SLOW_CLIENT_POLICY);
+        this.latencyBudgetMs = intInRange("-L", arguments.getIntArgumentOrDefault("L", DEFAULT_LATENCY_BUDGET_MS), 1, Integer.MAX_VALUE);
+        String udpAddress = arguments.getStringArgumentOrDefault("U", null);
+        this.udpAddress = udpAddress == null ? null : stringLessThan(udpAddress, MAX_STRING_LENGTH);
+        this.udpPort = intInRange("-u", arguments.getIntArgumentOrDefault("u", DEFAULT_UDP_PORT), 0, MAX_PORT);
+        this.sharedRingBytes = intInRange("-m", arguments.getIntArgumentOrDefault("m", DEFAULT_SHARED_RING_BYTES), 0, MAX_SHARED_RING_BYTES);
+        if (sharedRingBytes != 0 && !isUnixAddress(address)) throw new IllegalArgumentException("Shared ring needs a unix: address");
+        this.queueMs = intInRange("-q", arguments.getIntArgumentOrDefault("q", DEFAULT_QUEUE_MS), 1, Integer.MAX_VALUE);
+        this.queueMemoryBytes = intInRange("-M", arguments.getIntArgumentOrDefault("M", DEFAULT_QUEUE_MEMORY_BYTES), 0, Integer.MAX_VALUE);
+        this.lowLatency = arguments.getIntArgumentOrDefault("l", DEFAULT_LOW_LATENCY) != 0;
+        this.decimation = powerOfTwoInRange("-d", arguments.getIntArgumentOrDefault("d", DEFAULT_DECIMATION), 1, MAX_DECIMATION);
+        this.sampleBits = intOneOf("-b", arguments.getIntArgumentOrDefault("b", DEFAULT_SAMPLE_BITS), 8, 16);
+        int channelizerChannels = arguments.getIntArgumentOrDefault("C", DEFAULT_CHANNELIZER_CHANNELS);
+        this.channelizerChannels = channelizerChannels == 0 ? 0 : powerOfTwoInRange("-C", channelizerChannels, 2, MAX_CHANNELIZER_CHANNELS);
+        int spectrumSize = arguments.getIntArgumentOrDefault("F", DEFAULT_SPECTRUM_SIZE);
+        this.spectrumSize = spectrumSize == 0 ? 0 : powerOfTwoInRange("-F", spectrumSize, MIN_SPECTRUM_SIZE, MAX_SPECTRUM_SIZE);
+        this.spectrumOverlapPercent = intInRange("-V", arguments.getIntArgumentOrDefault("V", DEFAULT_SPECTRUM_OVERLAP_PERCENT), 0, MAX_SPECTRUM_OVERLAP_PERCENT);
+        this.spectrumAverages = intInRange("-A", arguments.getIntArgumentOrDefault("A", DEFAULT_SPECTRUM_AVERAGES), 1, MAX_SPECTRUM_AVERAGES);
+        this.spectrumBits = intOneOf("-B", arguments.getIntArgumentOrDefault("B", DEFAULT_SPECTRUM_BITS), 8, 16);
+        this.iqCorrection = arguments.getIntArgumentOrDefault("I", DEFAULT_IQ_CORRECTION) != 0;
 	}
 
     public int getGain() {
@@ -78,12 +164,105 @@ public class SdrTcpArguments implements Serializable {
         return port;
     }
 
+    /** True if {@link #getAddress()} names a unix domain socket, as "unix:/path" or "unix:@abstract". */
+    public boolean isUnixSocket() {
+        return isUnixAddress(address);
+    }
+
     public int getPpm() {
         return ppm;
     }
 
     public int getBiasT() { return biast; }
 
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+    public boolean isSendZeroCopy() {
+        return sendZeroCopy;
+    }
+
+    public int getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    public int getLatencyBudgetMs() {
+        return latencyBudgetMs;
+    }
+
+    public String getUdpAddress() {
+        return udpAddress;
+    }
+
+    public int getUdpPort() {
+        return udpPort;
+    }
+
+    public int getSharedRingBytes() {
+        return sharedRingBytes;
+    }
+
+    public int getQueueMs() {
+        return queueMs;
+    }
+
+    public int getQueueMemoryBytes() {
+        return queueMemoryBytes;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    public int getDecimation() {
+        return decimation;
+    }
+
+    public int getSampleBits() {
+        return sampleBits;
+    }
+
+    public int getChannelizerChannels() {
+        return channelizerChannels;
+    }
+
+    public int getSpectrumSize() {
+        return spectrumSize;
+    }
+
+    public int getSpectrumOverlapPercent() {
+        return spectrumOverlapPercent;
+    }
+
+    public int getSpectrumAverages() {
+        return spectrumAverages;
+    }
+
+    public int getSpectrumBits() {
+        return spectrumBits;
+    }
+
+    public boolean isIqCorrection() {
+        return iqCorrection;
+    }
+
+    private static boolean isUnixAddress(String address) {
+        return address.startsWith(UNIX_ADDRESS_PREFIX);
+    }
+
     @Override
     public String toString() {
         return "SdrTcpArguments{" +
@@ -94,6 +273,27 @@ public class SdrTcpArguments implements Serializable {
                 ", port=" + port +
                 ", ppm=" + ppm +
                 ", biast=" + biast +
+                ", maxClients=" + maxClients +
+                ", persistent=" + persistent +
+                ", zeroCopy=" + zeroCopy +
+                ", writeBatchBytes=" + writeBatchBytes +
+                ", sendZeroCopy=" + sendZeroCopy +
+                ", slowClientPolicy=" + slowClientPolicy +
+                ", latencyBudgetMs=" + latencyBudgetMs +
+                ", udpAddress='" + udpAddress + '\'' +
+                ", udpPort=" + udpPort +
+                ", sharedRingBytes=" + sharedRingBytes +
+                ", queueMs=" + queueMs +
+                ", queueMemoryBytes=" + queueMemoryBytes +
+                ", lowLatency=" + lowLatency +
+                ", decimation=" + decimation +
+                ", sampleBits=" + sampleBits +
+                ", channelizerChannels=" + channelizerChannels +
+                ", spectrumSize=" + spectrumSize +
+                ", spectrumOverlapPercent=" + spectrumOverlapPercent +
+                ", spectrumAverages=" + spectrumAverages +
+                ", spectrumBits=" + spectrumBits +
+                ", iqCorrection=" + iqCorrection +
                 '}';
     }
 }
@@ -39,6 +39,21 @@ public class Check {
 		if (text != null && text.length() > max_length) throw new IllegalArgumentException("String cannot exceed "+max_length);
 		return text;
 	}
+
+	public static int intInRange(String name, int value, int min, int max) {
+		if (value < min || value > max) throw new IllegalArgumentException(name+" must be from "+min+" to "+max);
+		return value;
+	}
+
+	public static int powerOfTwoInRange(String name, int value, int min, int max) {
+		if (value < min || value > max || (value & (value - 1)) != 0) throw new IllegalArgumentException(name+" must be a power of two from "+min+" to "+max);
+		return value;
+	}
+
+	public static int intOneOf(String name, int value, int first, int second) {
+		if (value != first && value != second) throw new IllegalArgumentException(name+" must be "+first+" or "+second);
+		return value;
+	}
 	
 	private Check() {}
 }